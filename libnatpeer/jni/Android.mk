@@ -15,6 +15,7 @@ LOCAL_C_INCLUDES       := $(LOCAL_PATH)                        \
                           $(NDK_ROOT)/external/jansson/src     \
                           $(NDK_ROOT)/external/jansson/android
 LOCAL_STATIC_LIBRARIES := libnatpeer libjansson
+LOCAL_LDLIBS           := -lz
 
 include $(BUILD_EXECUTABLE)
 include $(NDK_ROOT)/external/jansson/Android.mk
@@ -5,23 +5,34 @@
     The actual library itself.
 
 */
+#define _GNU_SOURCE
 #include <stdio.h>
 #include <stdlib.h>
+#include <stddef.h>
 #include <string.h>
+#include <errno.h>
+#include <fcntl.h>
 #include <unistd.h>
 #include <netinet/ip.h>
 #include <linux/tcp.h>
 #include <linux/if.h>
 #include <linux/if_packet.h>
+#include <linux/filter.h>
 #include <sys/time.h>
+#include <sys/mman.h>
 #include <sys/socket.h>
 #include <sys/types.h>
 #include <sys/ioctl.h>
+#include <sys/un.h>
+#include <sys/wait.h>
 #include <net/ethernet.h>
 #include <arpa/inet.h>
 #include <netdb.h>
+#include <poll.h>
+#include <time.h>
 #include <jansson.h>
 #include <pthread.h>
+#include <zlib.h>
 
 #include "natpeer.h"
 #include "libnatpeer.h"
@@ -151,96 +162,242 @@ np_set_sock_ttl(int sock, const uint8_t ttl)
   }
 }
 
+static int64_t
+np_now_ms(void)
+{
+  struct timespec ts;
+
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return (int64_t) ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+}
+
+static uint64_t
+np_cpu_ns(void)
+{
+  struct timespec ts;
+
+  if (clock_gettime(CLOCK_THREAD_CPUTIME_ID, &ts) < 0)
+    return 0;
+  return (uint64_t) ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+static int
+np_capture_open(np_capture_t *cap, uint32_t raddr, uint16_t rport,
+                uint16_t lport)
+{
+  /*
+     Loads are relative to the network header, so the filter works on
+     interfaces with and without an Ethernet header. Fragments other than
+     the first are refused, they carry no TCP header.
+  */
+  struct sock_filter code[] = {
+    /*  0 */ BPF_STMT(BPF_LD  | BPF_B | BPF_ABS, SKF_NET_OFF + 9),
+    /*  1 */ BPF_JUMP(BPF_JMP | BPF_JEQ | BPF_K, IPPROTO_TCP, 0, 16),
+    /*  2 */ BPF_STMT(BPF_LD  | BPF_H | BPF_ABS, SKF_NET_OFF + 6),
+    /*  3 */ BPF_JUMP(BPF_JMP | BPF_JSET | BPF_K, 0x1fff, 14, 0),
+    /*  4 */ BPF_STMT(BPF_LDX | BPF_B | BPF_MSH, SKF_NET_OFF),
+    /* from the peer */
+    /*  5 */ BPF_STMT(BPF_LD  | BPF_W | BPF_ABS, SKF_NET_OFF + 12),
+    /*  6 */ BPF_JUMP(BPF_JMP | BPF_JEQ | BPF_K, ntohl(raddr), 0, 4),
+    /*  7 */ BPF_STMT(BPF_LD  | BPF_H | BPF_IND, SKF_NET_OFF),
+    /*  8 */ BPF_JUMP(BPF_JMP | BPF_JEQ | BPF_K, rport, 0, 2),
+    /*  9 */ BPF_STMT(BPF_LD  | BPF_H | BPF_IND, SKF_NET_OFF + 2),
+    /* 10 */ BPF_JUMP(BPF_JMP | BPF_JEQ | BPF_K, lport, 6, 0),
+    /* to the peer */
+    /* 11 */ BPF_STMT(BPF_LD  | BPF_W | BPF_ABS, SKF_NET_OFF + 16),
+    /* 12 */ BPF_JUMP(BPF_JMP | BPF_JEQ | BPF_K, ntohl(raddr), 0, 5),
+    /* 13 */ BPF_STMT(BPF_LD  | BPF_H | BPF_IND, SKF_NET_OFF),
+    /* 14 */ BPF_JUMP(BPF_JMP | BPF_JEQ | BPF_K, lport, 0, 3),
+    /* 15 */ BPF_STMT(BPF_LD  | BPF_H | BPF_IND, SKF_NET_OFF + 2),
+    /* 16 */ BPF_JUMP(BPF_JMP | BPF_JEQ | BPF_K, rport, 0, 1),
+    /* 17 */ BPF_STMT(BPF_RET | BPF_K, 0xffff),
+    /* 18 */ BPF_STMT(BPF_RET | BPF_K, 0),
+  };
+  struct sock_fprog prog;
+  struct tpacket_req3 req;
+  struct sockaddr_ll sll;
+  int version = TPACKET_V3;
+
+  memset(cap, 0, sizeof(np_capture_t));
+  /* bound to a protocol only once the filter is attached, so nothing
+     unfiltered is queued in between */
+  cap->fd = socket(AF_PACKET, SOCK_RAW, 0);
+  if (cap->fd < 0)
+    return -1;
+
+  prog.len    = sizeof(code) / sizeof(code[0]);
+  prog.filter = code;
+  if (setsockopt(cap->fd, SOL_SOCKET, SO_ATTACH_FILTER, &prog,
+                 sizeof(prog)) < 0 ||
+      setsockopt(cap->fd, SOL_PACKET, PACKET_VERSION, &version,
+                 sizeof(version)) < 0)
+    goto fail;
+
+  memset(&req, 0, sizeof(req));
+  req.tp_block_size     = NP_RING_BLOCK_SIZE;
+  req.tp_block_nr       = NP_RING_BLOCKS;
+  req.tp_frame_size     = NP_RING_FRAME_SIZE;
+  req.tp_frame_nr       = NP_RING_BLOCK_SIZE / NP_RING_FRAME_SIZE *
+                          NP_RING_BLOCKS;
+  /* a block with a handshake packet in it is handed over at once rather
+     than when it is full */
+  req.tp_retire_blk_tov = NP_RING_RETIRE;
+  if (setsockopt(cap->fd, SOL_PACKET, PACKET_RX_RING, &req, sizeof(req)) < 0)
+    goto fail;
+  cap->ring = mmap(NULL, NP_RING_BLOCK_SIZE * NP_RING_BLOCKS,
+                   PROT_READ | PROT_WRITE, MAP_SHARED, cap->fd, 0);
+  if (cap->ring == MAP_FAILED) {
+    cap->ring = NULL;
+    goto fail;
+  }
+
+  memset(&sll, 0, sizeof(sll));
+  sll.sll_family   = AF_PACKET;
+  sll.sll_protocol = htons(ETH_P_ALL);
+  if (bind(cap->fd, (struct sockaddr *) &sll, sizeof(sll)) < 0)
+    goto fail;
+  return 0;
+
+fail:
+  DEBUG("unable to set up capture: %s\n", strerror(errno));
+  np_capture_close(cap);
+  return -1;
+}
+
+static struct iphdr *
+np_capture_next(np_capture_t *cap, int64_t deadline, uint32_t *len,
+                uint8_t *outgoing)
+{
+  struct tpacket_block_desc *desc;
+  struct tpacket3_hdr *hdr;
+  struct sockaddr_ll *sll;
+  struct pollfd pfd;
+  int64_t remaining;
+
+  while (!cap->held || cap->left == 0) {
+    desc = (struct tpacket_block_desc *)
+           (cap->ring + cap->block * NP_RING_BLOCK_SIZE);
+    if (cap->held) {
+      /* every packet of the block has been read, hand it back */
+      __sync_synchronize();
+      desc->hdr.bh1.block_status = TP_STATUS_KERNEL;
+      cap->held  = NP_FALSE;
+      cap->block = (cap->block + 1) % NP_RING_BLOCKS;
+      continue;
+    }
+    if (desc->hdr.bh1.block_status & TP_STATUS_USER) {
+      __sync_synchronize();
+      cap->held = NP_TRUE;
+      cap->left = desc->hdr.bh1.num_pkts;
+      cap->next = (uint8_t *) desc + desc->hdr.bh1.offset_to_first_pkt;
+      continue;
+    }
+    remaining = deadline - np_now_ms();
+    if (remaining <= 0)
+      return NULL;
+    pfd.fd      = cap->fd;
+    pfd.events  = POLLIN | POLLERR;
+    pfd.revents = 0;
+    if (poll(&pfd, 1, (int) remaining) < 0 && errno != EINTR)
+      return NULL;
+  }
+
+  hdr = (struct tpacket3_hdr *) cap->next;
+  cap->next += hdr->tp_next_offset;
+  cap->left--;
+  cap->examined++;
+  sll = (struct sockaddr_ll *)
+        ((uint8_t *) hdr + TPACKET_ALIGN(sizeof(struct tpacket3_hdr)));
+  *outgoing = sll->sll_pkttype == PACKET_OUTGOING;
+  *len = hdr->tp_snaplen - (hdr->tp_net - hdr->tp_mac);
+  return (struct iphdr *) ((uint8_t *) hdr + hdr->tp_net);
+}
+
+static void
+np_capture_close(np_capture_t *cap)
+{
+  if (cap->ring != NULL)
+    munmap(cap->ring, NP_RING_BLOCK_SIZE * NP_RING_BLOCKS);
+  if (cap->fd >= 0)
+    close(cap->fd);
+  cap->ring = NULL;
+  cap->fd   = -1;
+}
+
 static int
 np_raw_sock_listener(np_opts_t *np_opts)
 {
-  ssize_t size;
-  socklen_t addr_size;
-  struct sockaddr addr;
-  uint32_t daddr;
-  int raw_sock;
+  np_capture_t cap;
+  struct iphdr *iph;
+  struct tcphdr *tcph;
+  tcphdr_t *tcp;
+  uint8_t *ack = NULL;
+  uint8_t flags, want, outgoing;
+  uint32_t len, size = 0;
+  int64_t deadline;
 
   if (np_opts->dst_ip == NP_NONE)
     np_error_exit("please specify destination addr\n");
 
-  daddr = inet_addr(np_opts->dst_ip);
-  uint8_t *buffer = (uint8_t *) malloc(65536);
-  raw_sock = socket(AF_PACKET, SOCK_RAW, htons(ETH_P_ALL));
-  if (raw_sock < 0)
-    np_error("unable to open raw socket");
-
-  addr_size = sizeof(addr);
+  if (np_capture_open(&cap, inet_addr(np_opts->dst_ip), np_opts->dst_prt,
+                      np_opts->src_prt) < 0) {
+    printf("[WARN] unable to capture the handshake\n");
+    return -1;
+  }
+  deadline = np_now_ms() +
+             (np_opts->timeout > 0 ? np_opts->timeout : NP_CAPTURE_TIMEOUT);
 
+  /* the filter admits the connection only, what is left to tell apart is
+     the packets of the handshake */
   DEBUG("capturing outgoing TCP SYN\n");
-  while (1) {
-    size = recvfrom(raw_sock, buffer, 65536, 0, &addr, &addr_size);
-    if (size < 0) {
-      DEBUG("unable to receive data\n");
+  want = NP_TCP_SYN;
+  while (ack == NULL) {
+    iph = np_capture_next(&cap, deadline, &len, &outgoing);
+    if (iph == NULL)
+      break;
+    if (len < iph->ihl * 4 + sizeof(struct tcphdr))
       continue;
-    }
-    struct iphdr *iph = (struct iphdr *) (buffer + sizeof(struct ethhdr));
-    if (iph->protocol != 6 || iph->daddr != daddr) {
+    tcph  = (struct tcphdr *) ((uint8_t *) iph + iph->ihl * 4);
+    flags = ((uint8_t *) tcph)[13] & (NP_TCP_SYN | NP_TCP_ACK);
+    if (flags != want || outgoing != (want != (NP_TCP_SYN | NP_TCP_ACK)))
       continue;
-    }
-    uint16_t iphlen;
-    iphlen = iph->ihl * 4;
-    struct tcphdr *tcph = (struct tcphdr *) (buffer + sizeof(struct ethhdr)
-                                                    + iphlen);
 
-    tcphdr_t *tcp = (tcphdr_t *) tcph;
-    if ((uint8_t) tcph->syn == 1) {
+    if (want == NP_TCP_SYN) {
+      tcp = (tcphdr_t *) tcph;
       DEBUG("TCP SYN captured\n");
       DEBUG("TCP seq: %u\n", (uint32_t) ntohl(tcph->seq));
       DEBUG("TCP ts_val: %u\n", (uint32_t) ntohl(tcp->opts.ts_val));
       DEBUG("forwarding TCP handshake data\n");
-      np_connection_send_info(NULL, ntohl(tcph->seq), ntohl(tcp->opts.ts_val));
-      break;
-    }
-  }
+      np_connection_send_info(NULL, ntohl(tcph->seq),
+                              ntohl(tcp->opts.ts_val));
+      DEBUG("capturing incoming SYN-ACK...\n");
+      want = NP_TCP_SYN | NP_TCP_ACK;
 
-  DEBUG("capturing incoming SYN-ACK...\n");
-  while (1) {
-    size = recvfrom(raw_sock, buffer, 65536, 0, &addr, &addr_size);
-    if (size < 0) {
-      DEBUG("unable to receive data\n");
-      continue;
-    }
-    struct iphdr *iph = (struct iphdr *) (buffer + sizeof(struct ethhdr));
-    if (iph->protocol != 6 || iph->saddr != daddr) {
-      continue;
-    }
-    uint16_t iphlen;
-    iphlen = iph->ihl * 4;
-    struct tcphdr *tcph = (struct tcphdr *) (buffer + sizeof(struct ethhdr)
-                                             + iphlen);
-    if (tcph->ack == 1 && tcph->syn == 1) {
+    } else if (want == (NP_TCP_SYN | NP_TCP_ACK)) {
       DEBUG("...TCP SYN-ACK captured\n");
-      break;
-    }
-  }
+      DEBUG("capturing outgoing TCP ACK...\n");
+      want = NP_TCP_ACK;
 
-  DEBUG("capturing outgoing TCP ACK...\n");
-  while (1) {
-    size = recvfrom(raw_sock, buffer, 65536, 0, &addr, &addr_size);
-    if (size < 0) {
-      DEBUG("unable to receive data\n");
-      continue;
-    }
-    struct iphdr *iph = (struct iphdr *) (buffer + sizeof(struct ethhdr));
-    if (iph->protocol != 6 || iph->daddr != daddr) {
-      continue;
-    }
-    struct tcphdr *tcph = (struct tcphdr *) (buffer + sizeof(struct ethhdr)
-                                             + sizeof(struct iphdr));
-    if ((uint8_t) tcph->ack == 1 && (uint8_t) tcph->syn == 0) {
+    } else {
       DEBUG("...TCP ACK captured\n");
-      break;
+      /* the packet is only valid until the ring moves on */
+      size = ntohs(iph->tot_len) < len ? ntohs(iph->tot_len) : len;
+      ack  = malloc(size);
+      if (ack == NULL)
+        break;
+      memcpy(ack, iph, size);
     }
   }
-  close(raw_sock);
+  DEBUG("%llu packets examined\n", (unsigned long long) cap.examined);
+  np_capture_close(&cap);
+
+  if (ack == NULL) {
+    printf("[WARN] TCP handshake not captured\n");
+    return -1;
+  }
   DEBUG("resending TCP ACK\n");
-  np_increase_ttl_resend(np_opts, buffer, size);
-  free(buffer);
+  np_increase_ttl_resend(np_opts, ack, size);
+  free(ack);
   return 0;
 }
 
@@ -254,16 +411,10 @@ np_raw_sock_listener_thread(void *args)
 }
 
 static int
-np_connection_local_forward(int remote_sock)
+np_local_listen(void)
 {
-  DEBUG("forwarding local socket\n");
-  int serv_sock = 0, cli_sock = 0, maxfd;
-  socklen_t socklen;
-  struct sockaddr_in serv_addr, client_addr;
-
-  fd_set sockets;
-  char buf[NP_BUF_SIZE];
-  ssize_t n;
+  int serv_sock;
+  struct sockaddr_in serv_addr;
 
   memset(&serv_addr, 0, sizeof(serv_addr));
   serv_addr.sin_family = AF_INET;
@@ -281,7 +432,22 @@ np_connection_local_forward(int remote_sock)
   printf("[INFO] connect to 127.0.0.1:%d to access requested service\n",
     NP_LOCAL_PORT);
   listen(serv_sock, 5);
+  return serv_sock;
+}
+
+static int
+np_connection_local_forward(int remote_sock)
+{
+  DEBUG("forwarding local socket\n");
+  int serv_sock = 0, cli_sock = 0, maxfd;
+  socklen_t socklen;
+  struct sockaddr_in client_addr;
+
+  fd_set sockets;
+  char buf[NP_BUF_SIZE];
+  ssize_t n;
 
+  serv_sock = np_local_listen();
   socklen = sizeof(client_addr);
   cli_sock = accept(serv_sock, (struct sockaddr *) &client_addr, &socklen);
   if (cli_sock < 0) {
@@ -320,6 +486,416 @@ end:
   return 0;
 }
 
+static int
+np_mux_send(int sock, uint8_t type, uint32_t stream, const void *payload,
+            uint16_t len)
+{
+  return np_mux_send_frame(sock, type, 0, stream, payload, len);
+}
+
+static int
+np_mux_send_frame(int sock, uint8_t type, uint8_t flags, uint32_t stream,
+                  const void *payload, uint16_t len)
+{
+  uint8_t frame[sizeof(np_mux_hdr_t) + NP_MUX_MAX_PAYLOAD];
+  np_mux_hdr_t *hdr = (np_mux_hdr_t *) frame;
+  size_t size = sizeof(np_mux_hdr_t) + len;
+  size_t sent = 0;
+  ssize_t n;
+
+  memset(hdr, 0, sizeof(np_mux_hdr_t));
+  hdr->type   = type;
+  hdr->flags  = flags;
+  hdr->len    = htons(len);
+  hdr->stream = htonl(stream);
+  if (len > 0)
+    memcpy(frame + sizeof(np_mux_hdr_t), payload, len);
+
+  while (sent < size) {
+    n = send(sock, frame + sent, size - sent, MSG_NOSIGNAL);
+    if (n < 0 && errno == EINTR)
+      continue;
+    if (n <= 0)
+      return -1;
+    sent += n;
+  }
+  return 0;
+}
+
+static int
+np_mux_recv(int sock, np_mux_hdr_t *hdr, uint8_t *payload)
+{
+  if (recv(sock, hdr, sizeof(np_mux_hdr_t), MSG_WAITALL) !=
+      sizeof(np_mux_hdr_t))
+    return -1;
+  hdr->len    = ntohs(hdr->len);
+  hdr->stream = ntohl(hdr->stream);
+  if (hdr->len > NP_MUX_MAX_PAYLOAD) {
+    DEBUG("frame too long: %u\n", hdr->len);
+    return -1;
+  }
+  if (hdr->len > 0 && recv(sock, payload, hdr->len, MSG_WAITALL) != hdr->len)
+    return -1;
+  return 0;
+}
+
+static void
+np_mux_remember(uint8_t *hist, uint32_t *hist_len, const uint8_t *data,
+                uint32_t len)
+{
+  uint32_t keep;
+
+  if (len >= NP_MUX_DICT) {
+    memcpy(hist, data + len - NP_MUX_DICT, NP_MUX_DICT);
+    *hist_len = NP_MUX_DICT;
+    return;
+  }
+  keep = *hist_len < NP_MUX_DICT - len ? *hist_len : NP_MUX_DICT - len;
+  memmove(hist, hist + *hist_len - keep, keep);
+  memcpy(hist + keep, data, len);
+  *hist_len = keep + len;
+}
+
+static int
+np_mux_deflate(np_mux_codec_t *codec, np_mux_stream_t *s,
+               const uint8_t *data, uint32_t len, uint8_t *out)
+{
+  uint64_t start = np_cpu_ns();
+  int n = -1;
+
+  deflateReset(&codec->def);
+  if (s->hist_out_len > 0)
+    deflateSetDictionary(&codec->def, s->hist_out, s->hist_out_len);
+  codec->def.next_in   = (Bytef *) data;
+  codec->def.avail_in  = len;
+  codec->def.next_out  = out;
+  /* output no smaller than the input is of no use */
+  codec->def.avail_out = len - 1;
+  if (len > 1 && deflate(&codec->def, Z_FINISH) == Z_STREAM_END)
+    n = len - 1 - codec->def.avail_out;
+
+  np_mux_remember(s->hist_out, &s->hist_out_len, data, len);
+  codec->bytes_in  += len;
+  codec->bytes_out += n < 0 ? len : (uint32_t) n;
+  codec->cpu_ns    += np_cpu_ns() - start;
+  return n;
+}
+
+static int
+np_mux_inflate(np_mux_codec_t *codec, np_mux_stream_t *s,
+               const uint8_t *payload, uint16_t len)
+{
+  uint64_t start = np_cpu_ns();
+  uint32_t room = NP_MUX_INIT_WINDOW - s->buf_len;
+  uint8_t *out = s->buf + s->buf_len;
+  uint32_t n;
+
+  if (room > NP_MUX_MAX_PAYLOAD)
+    room = NP_MUX_MAX_PAYLOAD;
+  inflateReset(&codec->inf);
+  if (s->hist_in_len > 0 &&
+      inflateSetDictionary(&codec->inf, s->hist_in, s->hist_in_len) != Z_OK)
+    return -1;
+  codec->inf.next_in   = (Bytef *) payload;
+  codec->inf.avail_in  = len;
+  codec->inf.next_out  = out;
+  codec->inf.avail_out = room;
+  /* a frame which does not end within the room is corrupt, too long or
+     beyond the window */
+  if (inflate(&codec->inf, Z_FINISH) != Z_STREAM_END)
+    return -1;
+  n = room - codec->inf.avail_out;
+
+  np_mux_remember(s->hist_in, &s->hist_in_len, out, n);
+  codec->bytes_in  += n;
+  codec->bytes_out += len;
+  codec->cpu_ns    += np_cpu_ns() - start;
+  return n;
+}
+
+static void
+np_mux_close(np_mux_stream_t *s)
+{
+  DEBUG("stream %u closed\n", s->id);
+  close(s->fd);
+  free(s->buf);
+  free(s->hist_out);
+  memset(s, 0, sizeof(np_mux_stream_t));
+  s->fd = -1;
+}
+
+static int
+np_mux_dispatch(int remote_sock, np_mux_stream_t *streams,
+                np_mux_codec_t *codec, np_mux_hdr_t *hdr, uint8_t *payload)
+{
+  np_mux_stream_t *s = NULL;
+  uint32_t increment;
+  int i, n;
+
+  if (hdr->type == NP_MUX_OPEN)
+    /* the client does not serve anything to the device */
+    return np_mux_send(remote_sock, NP_MUX_RESET, hdr->stream, NULL, 0);
+
+  for (i = 0; i < NP_MUX_STREAMS; i++) {
+    if (streams[i].fd >= 0 && streams[i].id == hdr->stream)
+      s = &streams[i];
+  }
+  if (s == NULL)
+    /* late frames of a stream which has been reset */
+    return 0;
+
+  switch (hdr->type) {
+  case NP_MUX_ACCEPT:
+    s->accepted = NP_TRUE;
+    /* only agreed to if offered, which is whenever there is a codec */
+    if (codec == NULL || !(hdr->flags & NP_MUX_F_DEFLATE))
+      break;
+    s->hist_out = malloc(2 * NP_MUX_DICT);
+    if (s->hist_out == NULL) {
+      np_mux_close(s);
+      return np_mux_send(remote_sock, NP_MUX_RESET, hdr->stream, NULL, 0);
+    }
+    s->hist_in = s->hist_out + NP_MUX_DICT;
+    s->deflate = NP_TRUE;
+    break;
+
+  case NP_MUX_DATA:
+    if (s->remote_fin)
+      break;
+    if (s->buf_off > 0) {
+      memmove(s->buf, s->buf + s->buf_off, s->buf_len);
+      s->buf_off = 0;
+    }
+    if (hdr->flags & NP_MUX_F_DEFLATE) {
+      n = s->deflate ? np_mux_inflate(codec, s, payload, hdr->len) : -1;
+      if (n < 0) {
+        DEBUG("stream %u sent a bad compressed frame\n", s->id);
+        np_mux_close(s);
+        return np_mux_send(remote_sock, NP_MUX_RESET, hdr->stream, NULL, 0);
+      }
+      s->buf_len += n;
+      break;
+    }
+    if (hdr->len > NP_MUX_INIT_WINDOW - s->buf_len) {
+      DEBUG("stream %u exceeded its window\n", s->id);
+      np_mux_close(s);
+      return np_mux_send(remote_sock, NP_MUX_RESET, hdr->stream, NULL, 0);
+    }
+    memcpy(s->buf + s->buf_len, payload, hdr->len);
+    if (s->deflate)
+      np_mux_remember(s->hist_in, &s->hist_in_len, payload, hdr->len);
+    s->buf_len += hdr->len;
+    break;
+
+  case NP_MUX_WINDOW:
+    if (hdr->len != sizeof(increment))
+      return -1;
+    memcpy(&increment, payload, sizeof(increment));
+    s->window += ntohl(increment);
+    break;
+
+  case NP_MUX_FIN:
+    s->remote_fin = NP_TRUE;
+    break;
+
+  case NP_MUX_RESET:
+    DEBUG("stream %u refused or reset\n", s->id);
+    np_mux_close(s);
+    break;
+
+  default:
+    DEBUG("unknown frame type %u\n", hdr->type);
+    return -1;
+  }
+  return 0;
+}
+
+static void
+np_mux_flush(int remote_sock, np_mux_stream_t *s)
+{
+  uint32_t grant;
+  ssize_t n;
+
+  n = send(s->fd, s->buf + s->buf_off, s->buf_len, MSG_NOSIGNAL);
+  if (n < 0) {
+    if (errno == EAGAIN || errno == EINTR)
+      return;
+    np_mux_send(remote_sock, NP_MUX_RESET, s->id, NULL, 0);
+    np_mux_close(s);
+    return;
+  }
+  s->buf_off  += n;
+  s->buf_len  -= n;
+  s->consumed += n;
+  if (s->buf_len == 0)
+    s->buf_off = 0;
+
+  /* grant in batches rather than a WINDOW frame per write */
+  if (s->consumed >= NP_MUX_INIT_WINDOW / 2) {
+    grant = htonl(s->consumed);
+    s->consumed = 0;
+    np_mux_send(remote_sock, NP_MUX_WINDOW, s->id, &grant, sizeof(grant));
+  }
+}
+
+static void
+np_mux_pump(int remote_sock, np_mux_stream_t *s, np_mux_codec_t *codec)
+{
+  uint8_t buf[NP_MUX_MAX_PAYLOAD], out[NP_MUX_MAX_PAYLOAD];
+  size_t len = s->window < NP_MUX_MAX_PAYLOAD ? s->window : NP_MUX_MAX_PAYLOAD;
+  ssize_t n;
+  int c;
+
+  n = recv(s->fd, buf, len, 0);
+  if (n < 0) {
+    if (errno == EAGAIN || errno == EINTR)
+      return;
+    np_mux_send(remote_sock, NP_MUX_RESET, s->id, NULL, 0);
+    np_mux_close(s);
+
+  } else if (n == 0) {
+    s->local_fin = NP_TRUE;
+    np_mux_send(remote_sock, NP_MUX_FIN, s->id, NULL, 0);
+
+  } else {
+    /* the window counts data, however small it gets on the wire */
+    s->window -= n;
+    c = s->deflate ? np_mux_deflate(codec, s, buf, n, out) : -1;
+    if (c < 0)
+      np_mux_send(remote_sock, NP_MUX_DATA, s->id, buf, n);
+    else
+      np_mux_send_frame(remote_sock, NP_MUX_DATA, NP_MUX_F_DEFLATE, s->id,
+                        out, c);
+  }
+}
+
+static int
+np_mux_forward(int remote_sock, const char *service, uint8_t compress)
+{
+  DEBUG("multiplexing local sockets\n");
+  np_mux_stream_t streams[NP_MUX_STREAMS], *s;
+  np_mux_codec_t state, *codec = NULL;
+  np_mux_hdr_t hdr;
+  uint8_t payload[NP_MUX_MAX_PAYLOAD];
+  uint32_t next_id = 1;
+  int serv_sock, cli_sock, maxfd, i;
+  fd_set rd, wr;
+
+  memset(streams, 0, sizeof(streams));
+  for (i = 0; i < NP_MUX_STREAMS; i++)
+    streams[i].fd = -1;
+  if (compress) {
+    memset(&state, 0, sizeof(state));
+    if (deflateInit2(&state.def, Z_BEST_SPEED, Z_DEFLATED, -MAX_WBITS, 8,
+                     Z_DEFAULT_STRATEGY) != Z_OK)
+      printf("[WARN] compression unavailable\n");
+    else if (inflateInit2(&state.inf, -MAX_WBITS) != Z_OK) {
+      deflateEnd(&state.def);
+      printf("[WARN] compression unavailable\n");
+    } else
+      codec = &state;
+  }
+  serv_sock = np_local_listen();
+
+  while (1) {
+    FD_ZERO(&rd);
+    FD_ZERO(&wr);
+    FD_SET(remote_sock, &rd);
+    FD_SET(serv_sock, &rd);
+    maxfd = remote_sock > serv_sock ? remote_sock : serv_sock;
+    for (i = 0; i < NP_MUX_STREAMS; i++) {
+      s = &streams[i];
+      if (s->fd < 0)
+        continue;
+      /* a client whose window is used up is not read from, so it only
+         stalls its own stream */
+      if (s->accepted && !s->local_fin && s->window > 0)
+        FD_SET(s->fd, &rd);
+      if (s->buf_len > 0)
+        FD_SET(s->fd, &wr);
+      if (s->fd > maxfd)
+        maxfd = s->fd;
+    }
+
+    if (select(maxfd + 1, &rd, &wr, NULL, NULL) < 0) {
+      if (errno == EINTR)
+        continue;
+      break;
+    }
+
+    if (FD_ISSET(remote_sock, &rd)) {
+      if (np_mux_recv(remote_sock, &hdr, payload) < 0 ||
+          np_mux_dispatch(remote_sock, streams, codec, &hdr, payload) < 0)
+        break;
+    }
+
+    for (i = 0; i < NP_MUX_STREAMS; i++) {
+      s = &streams[i];
+      if (s->fd >= 0 && FD_ISSET(s->fd, &wr))
+        np_mux_flush(remote_sock, s);
+      if (s->fd >= 0 && FD_ISSET(s->fd, &rd))
+        np_mux_pump(remote_sock, s, codec);
+      if (s->fd < 0 || !s->remote_fin || s->buf_len > 0)
+        continue;
+      if (!s->shut) {
+        shutdown(s->fd, SHUT_WR);
+        s->shut = NP_TRUE;
+      }
+      if (s->local_fin)
+        np_mux_close(s);
+    }
+
+    if (FD_ISSET(serv_sock, &rd)) {
+      cli_sock = accept(serv_sock, NULL, NULL);
+      if (cli_sock < 0)
+        continue;
+      s = NULL;
+      for (i = 0; i < NP_MUX_STREAMS && s == NULL; i++) {
+        if (streams[i].fd < 0)
+          s = &streams[i];
+      }
+      if (s == NULL) {
+        printf("[WARN] too many local clients\n");
+        close(cli_sock);
+        continue;
+      }
+      s->buf = malloc(NP_MUX_INIT_WINDOW);
+      if (s->buf == NULL) {
+        close(cli_sock);
+        continue;
+      }
+      fcntl(cli_sock, F_SETFL, fcntl(cli_sock, F_GETFL) | O_NONBLOCK);
+      s->fd     = cli_sock;
+      s->id     = next_id;
+      s->window = NP_MUX_INIT_WINDOW;
+      next_id  += 2;
+      DEBUG("local client connected, stream %u\n", s->id);
+      if (np_mux_send_frame(remote_sock, NP_MUX_OPEN,
+                            codec != NULL ? NP_MUX_F_DEFLATE : 0, s->id,
+                            service, strlen(service)) < 0)
+        break;
+    }
+  }
+
+  DEBUG("multiplexed connection closed\n");
+  for (i = 0; i < NP_MUX_STREAMS; i++) {
+    if (streams[i].fd >= 0)
+      np_mux_close(&streams[i]);
+  }
+  if (codec != NULL) {
+    if (codec->bytes_out > 0)
+      printf("[INFO] compression: %llu bytes to %llu, ratio %.2f, "
+             "%.1f ms CPU\n", (unsigned long long) codec->bytes_in,
+             (unsigned long long) codec->bytes_out,
+             (double) codec->bytes_in / codec->bytes_out,
+             codec->cpu_ns / 1e6);
+    deflateEnd(&codec->def);
+    inflateEnd(&codec->inf);
+  }
+  close(serv_sock);
+  return 0;
+}
+
 static void
 np_sock_connect(np_opts_t *np_opts)
 {
@@ -386,7 +962,10 @@ np_sock_connect(np_opts_t *np_opts)
     printf("[INFO] connection established!\n");
 
   np_set_sock_ttl(sock, NP_MAX_TTL);
-  np_connection_local_forward(sock);
+  if (np_opts->mux == NP_TRUE)
+    np_mux_forward(sock, np_opts->service, np_opts->compress);
+  else
+    np_connection_local_forward(sock);
   close(sock);
 }
 
@@ -586,7 +1165,7 @@ static int
 np_increase_ttl_resend(np_opts_t *np_opts, uint8_t *packet, uint32_t size)
 {
   struct iphdr *iph;
-  iph        = (struct iphdr *) (packet + sizeof(struct ethhdr));
+  iph        = (struct iphdr *) packet;
   iph->ttl   = NP_MAX_TTL;
   iph->check = htons(0);
   iph->check = np_ip_chksum((uint16_t *) iph, ntohs(iph->tot_len) >> 1);
@@ -748,6 +1327,9 @@ np_connection_request(np_opts_t *np_opts)
     json_object_set(json, "nat", json_nat);
   }
 
+  if (np_opts->mux == NP_TRUE)
+    json_object_set(json, "mux", json_true());
+
   json_str = json_dumps(json, JSON_INDENT(2) | JSON_ENCODE_ANY);
   DEBUG("%s\n", json_str);
 
@@ -770,6 +1352,13 @@ np_connection_request(np_opts_t *np_opts)
 
   DEBUG("root size: %i\n", (int) json_array_size(root));
   json = json_array_get(root, 0);
+  if (!json_is_object(json))
+    np_error_exit("unexpected response from server\n");
+  json_t *json_error = json_object_get(json, NP_ERROR);
+  if (json_is_string(json_error)) {
+    fprintf(stderr, "server: %s\n", json_string_value(json_error));
+    exit(1);
+  }
 
   int port, peer_port;
   json_t *json_ip, *json_port, *json_peer_ip, *json_peer_port, *json_id;
@@ -795,6 +1384,9 @@ np_connection_request(np_opts_t *np_opts)
   np_s_opts->src_prt = local_port;
   np_s_opts->dst_ip  = pip;
   np_s_opts->dst_prt = peer_port;
+  np_s_opts->service = np_opts->service;
+  np_s_opts->mux     = np_opts->mux;
+  np_s_opts->compress = np_opts->compress;
   DEBUG("pub  addr: %s:%i\n", ip, port);
   DEBUG("loc  addr: %s:%i\n", np_s_opts->src_ip, np_s_opts->src_prt);
   DEBUG("peer addr: %s:%i\n", np_s_opts->dst_ip, np_s_opts->dst_prt);
@@ -834,6 +1426,292 @@ np_connection_establish(np_opts_t *np_opts)
   return 0;
 }
 
+static int
+np_daemon_authorized(int sock)
+{
+  struct ucred cred;
+  socklen_t len = sizeof(cred);
+  if (getsockopt(sock, SOL_SOCKET, SO_PEERCRED, &cred, &len) < 0)
+    return NP_FALSE;
+  if (cred.uid == 0 ||
+      (np_daemon_uid >= 0 && cred.uid == (uid_t) np_daemon_uid))
+    return NP_TRUE;
+  DEBUG("rejected client with uid %u\n", (unsigned) cred.uid);
+  return NP_FALSE;
+}
+
+static void
+np_daemon_punch(np_cmd_t *cmd, np_res_t *res)
+{
+  struct timeval start, end;
+  int status;
+  pid_t pid;
+
+  gettimeofday(&start, NULL);
+  fflush(stdout);
+  pid = fork();
+  if (pid < 0) {
+    res->status = NP_RES_ERROR;
+    res->code   = htonl(errno);
+    return;
+  }
+
+  if (pid == 0) {
+    char local_ip[INET_ADDRSTRLEN], remote_ip[INET_ADDRSTRLEN];
+    char net_if[sizeof(cmd->net_if)];
+    np_opts_t opts;
+    memset(&opts, 0, sizeof(opts));
+    inet_ntop(AF_INET, &cmd->local_addr,  local_ip,  INET_ADDRSTRLEN);
+    inet_ntop(AF_INET, &cmd->remote_addr, remote_ip, INET_ADDRSTRLEN);
+    memcpy(net_if, cmd->net_if, sizeof(net_if));
+    net_if[sizeof(net_if) - 1] = '\0';
+
+    opts.action    = NP_CON_RESP;
+    opts.ttl       = NP_MAX_TTL;
+    opts.tcp_flags = NP_TCP_SYN;
+    opts.dst_ip    = local_ip;
+    opts.dst_prt   = ntohs(cmd->local_port);
+    opts.src_ip    = remote_ip;
+    opts.src_prt   = ntohs(cmd->remote_port);
+    opts.seq       = ntohl(cmd->seq);
+    opts.ts_val    = ntohl(cmd->ts_val);
+    opts.net_if    = net_if;
+    opts.nat       = cmd->nat ? NP_TRUE : NP_FALSE;
+    status = np_connection_response(&opts);
+    fflush(stdout);
+    _exit(status);
+  }
+
+  if (waitpid(pid, &status, 0) < 0) {
+    res->status = NP_RES_ERROR;
+    res->code   = htonl(errno);
+    return;
+  }
+  gettimeofday(&end, NULL);
+  res->elapsed_us = htonl((end.tv_sec - start.tv_sec) * 1000000 +
+                          (end.tv_usec - start.tv_usec));
+  if (WIFEXITED(status) && WEXITSTATUS(status) == 0) {
+    res->status = NP_RES_OK;
+  } else {
+    res->status = NP_RES_FAILED;
+    res->code   = htonl(WIFEXITED(status) ? WEXITSTATUS(status)
+                                          : -WTERMSIG(status));
+  }
+  DEBUG("punch done, status %u\n", res->status);
+}
+
+static void *
+np_daemon_client_thread(void *args)
+{
+  int sock = (int) (intptr_t) args;
+  np_cmd_t cmd;
+  np_res_t res;
+
+  while (recv(sock, &cmd, sizeof(cmd), MSG_WAITALL) == sizeof(cmd)) {
+    memset(&res, 0, sizeof(res));
+    res.version = NP_CMD_VER;
+
+    if (cmd.version != NP_CMD_VER) {
+      res.status = NP_RES_ERROR;
+      res.code   = htonl(EINVAL);
+
+    } else if (cmd.type == NP_CMD_PUNCH) {
+      np_daemon_punch(&cmd, &res);
+
+    } else if (cmd.type == NP_CMD_STOP) {
+      DEBUG("stop requested\n");
+      res.status = NP_RES_OK;
+
+    } else {
+      res.status = NP_RES_ERROR;
+      res.code   = htonl(EINVAL);
+    }
+
+    if (send(sock, &res, sizeof(res), 0) != sizeof(res))
+      break;
+
+    if (cmd.type == NP_CMD_STOP) {
+      /* wakes up accept() in np_daemon */
+      np_daemon_running = 0;
+      shutdown(np_daemon_sock, SHUT_RDWR);
+      break;
+    }
+  }
+  close(sock);
+  return NULL;
+}
+
+int
+np_daemon(np_opts_t *np_opts)
+{
+  struct sockaddr_un addr;
+  socklen_t addr_len;
+  size_t name_len;
+  pthread_t thread;
+  int cli_sock;
+
+  /* any app may connect to an abstract socket, so the commands of a root
+     daemon are only taken from the uid it serves */
+  if (np_opts->uid < 0)
+    np_error_exit("the daemon needs -uid of the app it serves\n");
+
+  name_len = strlen(np_opts->sock_name);
+  if (name_len + 1 > sizeof(addr.sun_path))
+    np_error_exit("socket name too long\n");
+
+  np_daemon_uid  = np_opts->uid;
+  np_daemon_sock = socket(AF_UNIX, SOCK_STREAM, 0);
+  if (np_daemon_sock < 0)
+    np_error("unable to open local socket");
+
+  /* abstract namespace, the name starts with a NUL byte */
+  memset(&addr, 0, sizeof(addr));
+  addr.sun_family = AF_UNIX;
+  memcpy(addr.sun_path + 1, np_opts->sock_name, name_len);
+  addr_len = offsetof(struct sockaddr_un, sun_path) + 1 + name_len;
+
+  if (bind(np_daemon_sock, (struct sockaddr *) &addr, addr_len) < 0)
+    np_error("unable to bind local socket");
+  if (listen(np_daemon_sock, 8) < 0)
+    np_error("unable to listen on local socket");
+
+  printf("[INFO] helper listening on @%s\n", np_opts->sock_name);
+  fflush(stdout);
+
+  np_daemon_running = 1;
+  while (np_daemon_running) {
+    cli_sock = accept(np_daemon_sock, NULL, NULL);
+    if (cli_sock < 0) {
+      if (errno == EINTR)
+        continue;
+      break;
+    }
+    if (!np_daemon_authorized(cli_sock)) {
+      close(cli_sock);
+      continue;
+    }
+    if (pthread_create(&thread, NULL, &np_daemon_client_thread,
+                       (void *) (intptr_t) cli_sock) != 0) {
+      close(cli_sock);
+      continue;
+    }
+    pthread_detach(thread);
+  }
+
+  close(np_daemon_sock);
+  printf("[INFO] helper stopped\n");
+  return 0;
+}
+
+/*
+
+    Examines packets for the duration the way the handshake listener used
+    to, copying every frame on the host out of a plain packet socket and
+    matching it in userspace.
+
+*/
+static uint64_t
+np_capture_bench_copy(int64_t duration, uint32_t raddr, uint16_t rport,
+                      uint16_t lport, uint64_t *matched)
+{
+  uint8_t *buffer = malloc(65536);
+  struct timeval tv = { 0, 100000 };
+  struct iphdr *iph;
+  struct tcphdr *tcph;
+  uint64_t examined = 0;
+  int64_t deadline = np_now_ms() + duration;
+  ssize_t size;
+  int sock;
+
+  sock = socket(AF_PACKET, SOCK_RAW, htons(ETH_P_ALL));
+  if (sock < 0 || buffer == NULL)
+    np_error("unable to open raw socket");
+  setsockopt(sock, SOL_SOCKET, SO_RCVTIMEO, &tv, sizeof(tv));
+
+  while (np_now_ms() < deadline) {
+    size = recv(sock, buffer, 65536, 0);
+    if (size < (ssize_t) (sizeof(struct ethhdr) + sizeof(struct iphdr)))
+      continue;
+    examined++;
+    iph = (struct iphdr *) (buffer + sizeof(struct ethhdr));
+    if (iph->protocol != IPPROTO_TCP ||
+        (iph->saddr != raddr && iph->daddr != raddr))
+      continue;
+    tcph = (struct tcphdr *) ((uint8_t *) iph + iph->ihl * 4);
+    if ((ntohs(tcph->source) == rport && ntohs(tcph->dest) == lport) ||
+        (ntohs(tcph->source) == lport && ntohs(tcph->dest) == rport))
+      (*matched)++;
+  }
+  close(sock);
+  free(buffer);
+  return examined;
+}
+
+/*
+
+    Examines packets for the duration with the filtered ring capture.
+
+*/
+static uint64_t
+np_capture_bench_ring(int64_t duration, uint32_t raddr, uint16_t rport,
+                      uint16_t lport, uint64_t *matched, uint32_t *drops)
+{
+  struct tpacket_stats_v3 stats;
+  socklen_t stats_len = sizeof(stats);
+  np_capture_t cap;
+  int64_t deadline = np_now_ms() + duration;
+  uint32_t len;
+  uint8_t outgoing;
+
+  if (np_capture_open(&cap, raddr, rport, lport) < 0)
+    np_error("unable to open capture");
+  while (np_capture_next(&cap, deadline, &len, &outgoing) != NULL)
+    ;
+  *matched = cap.examined;
+  memset(&stats, 0, sizeof(stats));
+  getsockopt(cap.fd, SOL_PACKET, PACKET_STATISTICS, &stats, &stats_len);
+  *drops = stats.tp_drops;
+  np_capture_close(&cap);
+  return *matched;
+}
+
+int
+np_capture_bench(np_opts_t *np_opts)
+{
+  const char *mode[] = { "copy", "ring" };
+  int64_t duration = np_opts->timeout > 0 ? np_opts->timeout
+                                          : NP_CAPTURE_TIMEOUT;
+  uint64_t examined, matched, cpu;
+  uint32_t raddr, drops;
+  int i;
+
+  if (np_opts->dst_ip == NP_NONE || np_opts->dst_prt == NP_NONE ||
+      np_opts->src_prt == NP_NONE)
+    np_error_exit("please specify dst ip, dst port and src port\n");
+  raddr = inet_addr(np_opts->dst_ip);
+
+  printf("[INFO] capturing %s:%u <-> local port %u for %lld ms per mode\n",
+         np_opts->dst_ip, np_opts->dst_prt, np_opts->src_prt,
+         (long long) duration);
+  for (i = 0; i < 2; i++) {
+    matched = 0;
+    drops   = 0;
+    cpu     = np_cpu_ns();
+    if (i == 0)
+      examined = np_capture_bench_copy(duration, raddr, np_opts->dst_prt,
+                                       np_opts->src_prt, &matched);
+    else
+      examined = np_capture_bench_ring(duration, raddr, np_opts->dst_prt,
+                                       np_opts->src_prt, &matched, &drops);
+    cpu = np_cpu_ns() - cpu;
+    printf("[INFO] %s: %llu packets examined, %.0f/s, %llu matched, "
+           "%u dropped, %.1f ms CPU\n", mode[i],
+           (unsigned long long) examined, examined * 1000.0 / duration,
+           (unsigned long long) matched, drops, cpu / 1e6);
+  }
+  return 0;
+}
+
 void
 np_test(np_opts_t *np_opts)
 {
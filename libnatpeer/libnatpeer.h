@@ -10,6 +10,9 @@
 static int         np_serv_sock;
 static np_opts_t  *np_s_opts;
 static const char *np_connection_id;
+static int         np_daemon_sock;
+static int32_t     np_daemon_uid;
+static volatile int np_daemon_running;
 
 /*
 
@@ -25,6 +28,63 @@ typedef struct {
   uint16_t len;
 } tcp_pseudo_t;
 
+/*
+
+    A stream of the multiplexer, bound to one local client.
+
+*/
+typedef struct {
+  int      fd;          /* local client socket, -1 if the slot is free */
+  uint32_t id;          /* stream ID */
+  uint8_t  accepted;    /* whether the device has accepted the stream */
+  uint8_t  local_fin;   /* whether the local client has finished sending */
+  uint8_t  remote_fin;  /* whether the device has finished sending */
+  uint8_t  shut;        /* whether the local client has been sent FIN */
+  int32_t  window;      /* bytes which may still be sent to the device */
+  uint32_t consumed;    /* bytes written to the client but not yet granted */
+  uint8_t *buf;         /* data not yet written to the local client */
+  uint32_t buf_off;
+  uint32_t buf_len;
+  uint8_t  deflate;     /* whether the device agreed to compress the stream */
+  uint8_t *hist_out;    /* last data sent, the dictionary of the next frame */
+  uint32_t hist_out_len;
+  uint8_t *hist_in;     /* last data received */
+  uint32_t hist_in_len;
+} np_mux_stream_t;
+
+/*
+
+    Compression state shared by the streams of the multiplexer, every frame
+    is compressed on its own so the streams need no state of their own but
+    their dictionaries.
+
+*/
+typedef struct {
+  z_stream def;
+  z_stream inf;
+  uint64_t bytes_in;    /* data of compressed streams */
+  uint64_t bytes_out;   /* the same data as it was on the wire */
+  uint64_t cpu_ns;      /* CPU time spent compressing and decompressing */
+} np_mux_codec_t;
+
+/*
+
+    Capture of the packets of one TCP connection. A BPF filter attached to
+    the packet socket admits only the packets of the connection, and the
+    kernel hands them over in blocks of a TPACKET_V3 ring mapped into memory,
+    so there is no copy nor system call per packet.
+
+*/
+typedef struct {
+  int      fd;          /* packet socket */
+  uint8_t *ring;        /* NP_RING_BLOCKS blocks of NP_RING_BLOCK_SIZE bytes */
+  uint32_t block;       /* block being read or waited for */
+  uint8_t  held;        /* whether the block has been handed over to us */
+  uint32_t left;        /* packets of the held block not yet read */
+  uint8_t *next;        /* next packet of the held block */
+  uint64_t examined;    /* packets read */
+} np_capture_t;
+
 /*
 
     Struct for different options in TCP header.
@@ -112,12 +172,68 @@ static void np_set_sock_ttl(int, const uint8_t);
 
 /*
 
-    Opens a raw socket, captures outgoing TCP SYN packet, incoming SYN-ACK
-    packet and outgoing ACK packet.
+    Returns milliseconds of a monotonic clock.
+
+*/
+static int64_t np_now_ms(void);
+
+/*
+
+    Returns CPU time used by the calling thread in nanoseconds.
+
+*/
+static uint64_t np_cpu_ns(void);
+
+/*
+
+    Starts capturing TCP packets between given remote address and port and
+    given local port, in both directions. The address is in network byte
+    order, the ports in host byte order. Returns -1 if the socket, the
+    filter or the ring cannot be set up.
+
+*/
+static int np_capture_open(np_capture_t *, uint32_t, uint16_t, uint16_t);
+
+/*
+
+    Returns the IP header of the next captured packet, waiting for it until
+    given np_now_ms() time at the latest, or NULL if none arrives by then.
+    Sets the length from the IP header on and whether the packet was
+    outgoing. The packet is valid until the next call.
+
+*/
+static struct iphdr *np_capture_next(np_capture_t *, int64_t, uint32_t *,
+                                     uint8_t *);
+
+/*
+
+    Stops capturing and releases the ring.
+
+*/
+static void np_capture_close(np_capture_t *);
+
+/*
+
+    Captures outgoing TCP SYN packet, incoming SYN-ACK packet and outgoing
+    ACK packet of the connection to the peer, giving up after the timeout of
+    the options, NP_CAPTURE_TIMEOUT by default. Returns -1 if the capture
+    could not be started or timed out.
 
 */
 static int np_raw_sock_listener(np_opts_t *);
 
+/*
+
+    Benchmark modes of np_capture_bench: examining every frame on the host
+    copied out of a plain packet socket, and examining only the filtered
+    frames of the ring. Both return the number of packets examined.
+
+*/
+static uint64_t np_capture_bench_copy(int64_t, uint32_t, uint16_t, uint16_t,
+                                      uint64_t *);
+static uint64_t np_capture_bench_ring(int64_t, uint32_t, uint16_t, uint16_t,
+                                      uint64_t *, uint32_t *);
+
 /*
 
     Wrapper for np_raw_sock_listener function.
@@ -133,6 +249,107 @@ static void * np_raw_sock_listener_thread(void *);
 */
 static int np_connection_local_forward(int);
 
+/*
+
+    Opens the local server socket on NP_LOCAL_PORT.
+
+*/
+static int np_local_listen(void);
+
+/*
+
+    Sends a frame of the stream multiplexer, the whole frame or nothing.
+
+*/
+static int np_mux_send(int, uint8_t, uint32_t, const void *, uint16_t);
+
+/*
+
+    Like np_mux_send, but with flags in the header.
+
+*/
+static int np_mux_send_frame(int, uint8_t, uint8_t, uint32_t, const void *,
+                             uint16_t);
+
+/*
+
+    Appends data to the dictionary of a stream, keeping the last NP_MUX_DICT
+    bytes of it.
+
+*/
+static void np_mux_remember(uint8_t *, uint32_t *, const uint8_t *,
+                            uint32_t);
+
+/*
+
+    Compresses data of a stream into the buffer, which has room for as much
+    as the data. Returns the compressed length, or -1 if the data should be
+    sent as it is.
+
+*/
+static int np_mux_deflate(np_mux_codec_t *, np_mux_stream_t *,
+                          const uint8_t *, uint32_t, uint8_t *);
+
+/*
+
+    Decompresses a frame of a stream to the end of its buffer. Returns the
+    length of the data, or -1 if the frame is corrupt or does not fit the
+    window.
+
+*/
+static int np_mux_inflate(np_mux_codec_t *, np_mux_stream_t *,
+                          const uint8_t *, uint16_t);
+
+/*
+
+    Receives a frame of the stream multiplexer.
+
+*/
+static int np_mux_recv(int, np_mux_hdr_t *, uint8_t *);
+
+/*
+
+    Closes the local client of a stream and frees its slot.
+
+*/
+static void np_mux_close(np_mux_stream_t *);
+
+/*
+
+    Handles a frame received from the device, decompressing its data if it
+    was sent compressed.
+
+*/
+static int np_mux_dispatch(int, np_mux_stream_t *, np_mux_codec_t *,
+                           np_mux_hdr_t *, uint8_t *);
+
+/*
+
+    Writes buffered data of a stream to its local client and grants the
+    device more window once enough of it has been written.
+
+*/
+static void np_mux_flush(int, np_mux_stream_t *);
+
+/*
+
+    Reads from a local client as far as the window of its stream allows and
+    sends it to the device, compressed if that makes it smaller.
+
+*/
+static void np_mux_pump(int, np_mux_stream_t *, np_mux_codec_t *);
+
+/*
+
+    Like np_connection_local_forward, but accepts any number of local clients
+    and carries each of them as a separate stream over the one connection, so
+    that further connections to the device need no new hole punching. With
+    compression on, every stream offers it to the device, and the ratio and
+    CPU cost are printed when the connection closes.
+
+*/
+static int np_mux_forward(int, const char *, uint8_t);
+
 /*
 
     Creates plain TCP socket and connects to given end-point in the options.
@@ -170,8 +387,8 @@ static int np_packet_send(np_opts_t *, uint8_t *, uint32_t);
 
 /*
 
-    Increases the TTL of a captured packet to maximum, recalculates the IP
-    header checksum and resends the packet.
+    Increases the TTL of a captured IP packet to maximum, recalculates the
+    IP header checksum and resends the packet.
 
 */
 static int np_increase_ttl_resend(np_opts_t *, uint8_t *, uint32_t);
@@ -201,6 +418,29 @@ static int np_connection_send_info(np_opts_t *, uint32_t, uint32_t);
 */
 static int np_connection_send_fake(np_opts_t *);
 
+/*
+
+    Checks whether the peer of a local socket may send commands to the helper
+    daemon: root and the uid given with -uid may, nobody else.
+
+*/
+static int np_daemon_authorized(int);
+
+/*
+
+    Serves commands of one client of the helper daemon until it disconnects.
+
+*/
+static void * np_daemon_client_thread(void *);
+
+/*
+
+    Runs a punch command in a child process, so that a failing punch does not
+    take the daemon down with it, and fills in the result.
+
+*/
+static void np_daemon_punch(np_cmd_t *, np_res_t *);
+
 /*
 
     Allocates memory for private options struct.
@@ -231,3 +471,12 @@ int np_connection_response(np_opts_t *);
 
 */
 int np_connection_establish(np_opts_t *);
+
+/*
+
+    Runs as a resident helper: listens on an abstract local socket and
+    responds to connection requests on behalf of the application, without a
+    new privileged process being started for each of them.
+
+*/
+int np_daemon(np_opts_t *);
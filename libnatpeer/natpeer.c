@@ -28,7 +28,12 @@ static np_opts_t opts = {
   .ack_seq   = 0,
   .payload   = 0,
   .nat       = NP_FALSE,
-  .service   = NULL
+  .service   = NULL,
+  .sock_name = NP_SOCK_NAME,
+  .uid       = -1,
+  .mux       = NP_FALSE,
+  .compress  = NP_FALSE,
+  .timeout   = 0
 };
 
 /*
@@ -106,6 +111,10 @@ np_parse_args(int argc, char **argv)
       opts.ack_seq = atoi(argv[++i]);
       DEBUG("-ack %d\n", opts.ack_seq);
 
+    } else if (strcmp(argv[i], "-timeout") == 0) {
+      opts.timeout = atoi(argv[++i]);
+      DEBUG("-timeout %u\n", opts.timeout);
+
     } else if (strcmp(argv[i], "-payload") == 0) {
       opts.payload = atoi(argv[++i]);
       DEBUG("-payload %d\n", opts.payload);
@@ -114,10 +123,26 @@ np_parse_args(int argc, char **argv)
       opts.service = argv[++i];
       DEBUG("-service %s\n", opts.service);
 
+    } else if (strcmp(argv[i], "-sock") == 0) {
+      opts.sock_name = argv[++i];
+      DEBUG("-sock %s\n", opts.sock_name);
+
+    } else if (strcmp(argv[i], "-uid") == 0) {
+      opts.uid = atoi(argv[++i]);
+      DEBUG("-uid %d\n", opts.uid);
+
     } else if (strcmp(argv[i], "--nat") == 0) {
       opts.nat = NP_TRUE;
       DEBUG("--nat %d\n", opts.nat);
 
+    } else if (strcmp(argv[i], "--mux") == 0) {
+      opts.mux = NP_TRUE;
+      DEBUG("--mux %d\n", opts.mux);
+
+    } else if (strcmp(argv[i], "--compress") == 0) {
+      opts.compress = NP_TRUE;
+      DEBUG("--compress %d\n", opts.compress);
+
     } else if (argv[i][0] == '-' && argv[i][1] == 'f') {
       DEBUG("-f\n");
       np_parse_tcp_flags(argv[i], strlen(argv[i]));
@@ -130,6 +155,14 @@ np_parse_args(int argc, char **argv)
       opts.action = NP_CON_RESP;
       DEBUG("--response\n");
 
+    } else if (strcmp(argv[i], "--daemon") == 0) {
+      opts.action = NP_DAEMON;
+      DEBUG("--daemon\n");
+
+    } else if (strcmp(argv[i], "--bench") == 0) {
+      DEBUG("--bench\n");
+      opts.action = NP_BENCH;
+
     } else if (strcmp(argv[i], "--test") == 0) {
       DEBUG("--test\n");
       opts.action = NP_TEST;
@@ -151,6 +184,12 @@ main(int argc, char **argv)
   else if (opts.action == NP_CON_RESP)
     np_connection_response(&opts);
 
+  else if (opts.action == NP_DAEMON)
+    np_daemon(&opts);
+
+  else if (opts.action == NP_BENCH)
+    np_capture_bench(&opts);
+
   else if (opts.action == NP_TEST)
     np_test(&opts);
 
@@ -30,6 +30,30 @@
 #define NP_PORT       "port"
 #define NP_PEER_IP    "peer_ip"
 #define NP_PEER_PORT  "peer_port"
+#define NP_ERROR      "error"
+#define NP_SOCK_NAME  "natpeer"
+#define NP_CMD_VER    1
+#define NP_CMD_PUNCH  1
+#define NP_CMD_STOP   2
+#define NP_RES_OK     0
+#define NP_RES_FAILED 1
+#define NP_RES_ERROR  2
+#define NP_MUX_OPEN   1
+#define NP_MUX_ACCEPT 2
+#define NP_MUX_DATA   3
+#define NP_MUX_WINDOW 4
+#define NP_MUX_FIN    5
+#define NP_MUX_RESET  6
+#define NP_MUX_MAX_PAYLOAD 16384
+#define NP_MUX_INIT_WINDOW 262144
+#define NP_MUX_STREAMS     16
+#define NP_MUX_F_DEFLATE   1
+#define NP_MUX_DICT        8192
+#define NP_CAPTURE_TIMEOUT 10000
+#define NP_RING_BLOCK_SIZE 65536
+#define NP_RING_BLOCKS     8
+#define NP_RING_FRAME_SIZE 2048
+#define NP_RING_RETIRE     1
 
 /* toggle debugging on/off */
 #define DEBUG_LEVEL 1
@@ -51,6 +75,8 @@ typedef enum
   NP_TEST,
   NP_CON_ESTAB,
   NP_CON_RESP,
+  NP_DAEMON,
+  NP_BENCH,
 } np_action_t;
 
 /*
@@ -76,11 +102,75 @@ typedef struct
   uint32_t    payload;   /* TCP packet payload size */
   uint8_t     nat;       /* whether given peer is behind NAT or not */
   char       *service;   /* service to be accessed */
+  char       *sock_name; /* abstract socket name of the helper daemon */
+  int32_t     uid;       /* uid which may send commands to the daemon */
+  uint8_t     mux;       /* whether local clients share one connection */
+  uint8_t     compress;  /* whether to offer compression of mux streams */
+  uint32_t    timeout;   /* milliseconds to wait for the handshake */
 } np_opts_t;
 
+/*
+
+    Command sent to the helper daemon over its local socket. All multi-byte
+    fields are in network byte order, addresses are IPv4.
+
+*/
+typedef struct
+{
+  uint8_t  version;     /* NP_CMD_VER */
+  uint8_t  type;        /* NP_CMD_PUNCH or NP_CMD_STOP */
+  uint8_t  nat;         /* whether given peer is behind NAT or not */
+  uint8_t  reserved;
+  uint32_t local_addr;  /* local address of the service */
+  uint32_t remote_addr; /* address of the remote peer */
+  uint16_t local_port;  /* local port of the service */
+  uint16_t remote_port; /* port of the remote peer */
+  uint32_t seq;         /* TCP sequence number of the remote peer */
+  uint32_t ts_val;      /* TCP timestamp value of the remote peer */
+  char     net_if[16];  /* network interface, NUL terminated */
+} np_cmd_t;
+
+/*
+
+    Result of a command, sent back by the helper daemon. Multi-byte fields are
+    in network byte order.
+
+*/
+typedef struct
+{
+  uint8_t  version;     /* NP_CMD_VER */
+  uint8_t  status;      /* NP_RES_OK, NP_RES_FAILED or NP_RES_ERROR */
+  uint16_t reserved;
+  int32_t  code;        /* exit status of the punch, or errno */
+  uint32_t elapsed_us;  /* time the command took in microseconds */
+} np_res_t;
+
+/*
+
+    Header of a frame of the stream multiplexer, followed by 'len' bytes of
+    payload. Multi-byte fields are in network byte order. Streams opened by
+    the client have odd IDs, streams opened by the device even ones.
+
+    NP_MUX_F_DEFLATE in 'flags' offers compression on OPEN, agrees to it on
+    ACCEPT and marks a compressed payload on DATA. A compressed payload is a
+    complete raw deflate stream of at most NP_MUX_MAX_PAYLOAD bytes of data,
+    with the last NP_MUX_DICT bytes of data sent in the same direction as its
+    dictionary. Windows count data before compression.
+
+*/
+typedef struct
+{
+  uint8_t  type;        /* NP_MUX_OPEN ... NP_MUX_RESET */
+  uint8_t  flags;       /* NP_MUX_F_DEFLATE */
+  uint16_t len;         /* payload length, at most NP_MUX_MAX_PAYLOAD */
+  uint32_t stream;      /* stream ID */
+} np_mux_hdr_t;
+
 int  np_init                (void);
 int  np_connection_establish(np_opts_t *);
 int  np_connection_response (np_opts_t *);
+int  np_daemon              (np_opts_t *);
+int  np_capture_bench       (np_opts_t *);
 void np_test                (np_opts_t *);
 
 #endif /* _NATPEER_H_ */
@@ -10,9 +10,9 @@ extern "C" {
 /*
  * Class:     ee_ut_cs_mc_natpeer_jni_NativeLibrary
  * Method:    injectFrom
- * Signature: (Ljava/lang/String;ILjava/lang/String;Ljava/lang/String;IJJZ)V
+ * Signature: (Ljava/lang/String;ILjava/lang/String;Ljava/lang/String;IJJZ)Z
  */
-JNIEXPORT void JNICALL Java_ee_ut_cs_mc_natpeer_jni_NativeLibrary_injectFrom
+JNIEXPORT jboolean JNICALL Java_ee_ut_cs_mc_natpeer_jni_NativeLibrary_injectFrom
   (JNIEnv *, jclass, jstring, jint, jstring, jstring, jint, jlong, jlong, jboolean);
 
 #ifdef __cplusplus
@@ -9,7 +9,12 @@ import android.util.Log;
 
 import com.google.android.gcm.GCMBaseIntentService;
 
-import ee.ut.cs.mc.natpeer.util.Common;
+import ee.ut.cs.mc.natpeer.event.EventBus;
+import ee.ut.cs.mc.natpeer.event.MessageReceivedEvent;
+import ee.ut.cs.mc.natpeer.event.RegisteredEvent;
+import ee.ut.cs.mc.natpeer.event.UnregisteredEvent;
+import ee.ut.cs.mc.natpeer.metrics.Metrics;
+import ee.ut.cs.mc.natpeer.metrics.Phase;
 import ee.ut.cs.mc.natpeer.util.Consts;
 
 /**
@@ -30,23 +35,33 @@ public class GCMIntentService extends GCMBaseIntentService {
     protected void onRegistered(Context context, String gcmID) {
         Log.i(Consts.TAG, "GCMRegistrar: Device successfully registered "
             + "at GCM (" + gcmID + ")");
-        fireEvent(context, Consts.EVENT_GCM_REGISTERED, Consts.GCM_ID, gcmID);
+        EventBus.getDefault().post(new RegisteredEvent(gcmID));
     }
 
     @Override
     protected void onUnregistered(Context context, String gcmID) {
         Log.i(Consts.TAG, "GCMRegistrar: Device successfully "
             + "unregistered at GCM (" + gcmID + ")");
-        fireEvent(context, Consts.EVENT_GCM_UNREGISTERED, Consts.GCM_ID, gcmID);
+        EventBus.getDefault().post(new UnregisteredEvent(gcmID));
     }
 
     @Override
     protected void onMessage(Context context, Intent intent) {
+        long receivedAt = Metrics.now();
         Log.i(Consts.TAG, "GCMRegistrar: Message received from GCM");
         String message = intent.getStringExtra("message");
         Log.d(Consts.TAG, "Message: " + message);
-        fireEvent(context, Consts.EVENT_GCM_MESSAGE_RECEIVED,
-            Consts.GCM_MESSAGE_BODY, message);
+        try {
+            JSONObject json = new JSONObject(message);
+            long sentAt = json.optLong(Consts.GCM_TIMESTAMP);
+            if (sentAt > 0)
+                Metrics.getDefault().recordDuration(Phase.GCM_DELIVERY,
+                    (System.currentTimeMillis() - sentAt) * 1000, true);
+            EventBus.getDefault().post(
+                new MessageReceivedEvent(json, receivedAt));
+        } catch (JSONException e) {
+            Log.d(Consts.TAG, "GCMRegistrar: Malformed message: " + message);
+        }
     }
 
     @Override
@@ -65,22 +80,4 @@ public class GCMIntentService extends GCMBaseIntentService {
         return super.onRecoverableError(context, error);
     }
 
-    /**
-     * Fires an event when device is either registered, unregistered or a
-     * message is received.
-     * 
-     */
-    private void fireEvent(Context context, String eventType, String eventKey,
-        String eventValue) {
-        Log.d(Consts.TAG, "GCMRegistrar: Firing event: " + eventType);
-        JSONObject json = new JSONObject();
-        try {
-            json.put(Consts.EVENT_TYPE, eventType);
-            json.put(eventKey, eventValue);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        Common.fireEvent(context, json);
-    }
-
 }
@@ -0,0 +1,73 @@
+package ee.ut.cs.mc.natpeer.event;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.util.Log;
+import ee.ut.cs.mc.natpeer.util.Consts;
+
+/**
+ * In-process event bus. Handlers are registered for an exact event class
+ * and are called directly by {@link #post(Object)}, so events are passed on
+ * as objects without serializing them or going through a system broadcast.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class EventBus {
+
+    private static final EventBus DEFAULT = new EventBus();
+
+    private final ConcurrentHashMap<Class<?>,
+        CopyOnWriteArrayList<EventHandler<?>>> mHandlers;
+
+    public EventBus() {
+        mHandlers = new ConcurrentHashMap<Class<?>,
+            CopyOnWriteArrayList<EventHandler<?>>>();
+    }
+
+    /**
+     * Returns the bus shared by all components of the application.
+     */
+    public static EventBus getDefault() {
+        return DEFAULT;
+    }
+
+    public <E> void register(Class<E> type, EventHandler<? super E> handler) {
+        CopyOnWriteArrayList<EventHandler<?>> handlers = mHandlers.get(type);
+        if (handlers == null) {
+            CopyOnWriteArrayList<EventHandler<?>> created =
+                new CopyOnWriteArrayList<EventHandler<?>>();
+            handlers = mHandlers.putIfAbsent(type, created);
+            if (handlers == null)
+                handlers = created;
+        }
+        handlers.addIfAbsent(handler);
+    }
+
+    public <E> void unregister(Class<E> type, EventHandler<? super E> handler) {
+        CopyOnWriteArrayList<EventHandler<?>> handlers = mHandlers.get(type);
+        if (handlers != null)
+            handlers.remove(handler);
+    }
+
+    /**
+     * Delivers an event to all handlers registered for its class.
+     *
+     * @return number of handlers the event was delivered to
+     */
+    @SuppressWarnings("unchecked")
+    public int post(Object event) {
+        CopyOnWriteArrayList<EventHandler<?>> handlers = mHandlers.get(event
+            .getClass());
+        if (handlers == null || handlers.isEmpty()) {
+            Log.d(Consts.TAG, "EventBus: No handler for "
+                + event.getClass().getSimpleName());
+            return 0;
+        }
+        for (EventHandler<?> handler : handlers)
+            ((EventHandler<Object>) handler).onEvent(event);
+        return handlers.size();
+    }
+
+}
@@ -0,0 +1,16 @@
+package ee.ut.cs.mc.natpeer.event;
+
+/**
+ * Receives events of one type from the {@link EventBus}.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public interface EventHandler<E> {
+
+    /**
+     * Called on the thread which posted the event, must not block.
+     */
+    void onEvent(E event);
+
+}
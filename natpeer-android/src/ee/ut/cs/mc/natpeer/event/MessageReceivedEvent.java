@@ -0,0 +1,35 @@
+package ee.ut.cs.mc.natpeer.event;
+
+import org.json.JSONObject;
+
+/**
+ * A message pushed by the rendezvous server has been received.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class MessageReceivedEvent {
+
+    private final JSONObject mMessage;
+    private final long mReceivedAt;
+
+    /**
+     * @param message
+     *            - the message, already parsed
+     * @param receivedAt
+     *            - value of Metrics.now() when the message arrived
+     */
+    public MessageReceivedEvent(JSONObject message, long receivedAt) {
+        mMessage = message;
+        mReceivedAt = receivedAt;
+    }
+
+    public JSONObject getMessage() {
+        return mMessage;
+    }
+
+    public long getReceivedAt() {
+        return mReceivedAt;
+    }
+
+}
@@ -0,0 +1,21 @@
+package ee.ut.cs.mc.natpeer.event;
+
+/**
+ * The device has been registered at GCM.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class RegisteredEvent {
+
+    private final String mGcmID;
+
+    public RegisteredEvent(String gcmID) {
+        mGcmID = gcmID;
+    }
+
+    public String getGcmID() {
+        return mGcmID;
+    }
+
+}
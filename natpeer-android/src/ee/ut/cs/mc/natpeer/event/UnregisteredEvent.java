@@ -0,0 +1,21 @@
+package ee.ut.cs.mc.natpeer.event;
+
+/**
+ * The device has been unregistered at GCM.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class UnregisteredEvent {
+
+    private final String mGcmID;
+
+    public UnregisteredEvent(String gcmID) {
+        mGcmID = gcmID;
+    }
+
+    public String getGcmID() {
+        return mGcmID;
+    }
+
+}
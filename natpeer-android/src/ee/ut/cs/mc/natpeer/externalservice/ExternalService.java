@@ -1,5 +1,7 @@
 package ee.ut.cs.mc.natpeer.externalservice;
 
+import ee.ut.cs.mc.natpeer.relay.TrafficClass;
+
 /**
  * Describes an external service and its attributes.
  * 
@@ -10,11 +12,15 @@ public class ExternalService {
 
     private final String mName;
     private final int mLocalPort;
+    private final TrafficClass mTraffic;
     private String mID;
+    private int mRelayPort;
+    private volatile boolean mCompressed;
 
     public ExternalService(String name, int port) {
         mName = name;
         mLocalPort = port;
+        mTraffic = new TrafficClass(name);
     }
 
     public String getName() {
@@ -33,4 +39,43 @@ public class ExternalService {
         return mID;
     }
 
+    public void setRelayPort(int port) {
+        mRelayPort = port;
+    }
+
+    /**
+     * Returns the port which relays punched connections to the service, 0 if
+     * the service is not relayed.
+     */
+    public int getRelayPort() {
+        return mRelayPort;
+    }
+
+    /**
+     * Returns the share of the uplink, the rate cap and the throughput of
+     * the service.
+     */
+    public TrafficClass getTraffic() {
+        return mTraffic;
+    }
+
+    /**
+     * Sets whether multiplexed streams to the service are compressed when
+     * the peer offers to. Worth it for text such as web pages and logs.
+     */
+    public void setCompressed(boolean compressed) {
+        mCompressed = compressed;
+    }
+
+    public boolean isCompressed() {
+        return mCompressed;
+    }
+
+    /**
+     * Returns the port which punched connections should be made to.
+     */
+    public int getPunchPort() {
+        return mRelayPort != 0 ? mRelayPort : mLocalPort;
+    }
+
 }
@@ -1,12 +1,20 @@
 package ee.ut.cs.mc.natpeer.externalservice;
 
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import android.annotation.SuppressLint;
-import android.content.Context;
 import android.util.Log;
-import ee.ut.cs.mc.natpeer.util.Common;
+import ee.ut.cs.mc.natpeer.mux.MuxServer;
+import ee.ut.cs.mc.natpeer.relay.RelayEngine;
+import ee.ut.cs.mc.natpeer.relay.RelayStats;
+import ee.ut.cs.mc.natpeer.relay.RelayWatch;
+import ee.ut.cs.mc.natpeer.relay.TrafficClass;
+import ee.ut.cs.mc.natpeer.settings.SettingsStore;
 import ee.ut.cs.mc.natpeer.util.Consts;
 import ee.ut.cs.mc.natpeer.util.ServerCommon;
 
@@ -19,32 +27,67 @@ import ee.ut.cs.mc.natpeer.util.ServerCommon;
  */
 public class ExternalServiceManager {
 
-    private final Set<ExternalService> mServices;
-    private final Context mContext;
+    private static final String LOCALHOST = "127.0.0.1";
+
+    private final ExternalServiceRegistry mRegistry;
+    private final SettingsStore mSettings;
+    private final RelayEngine mRelay;
+    private final MuxServer mMux;
 
     /**
      * Creates a new ExternalServiceManager instance.
      * 
-     * @param context
+     * @param settings
+     *            - settings which hold the device ID
      */
     @SuppressLint("Instantiatable")
-    public ExternalServiceManager(Context context) {
-        mServices = new LinkedHashSet<ExternalService>();
-        mContext = context;
+    public ExternalServiceManager(SettingsStore settings) {
+        mRegistry = new ExternalServiceRegistry();
+        mSettings = settings;
+        mRelay = new RelayEngine();
+        mMux = new MuxServer(new MuxServer.ServiceResolver() {
+
+            @Override
+            public int resolve(String name) {
+                ExternalService service = mRegistry.findByName(name);
+                return service != null ? service.getPort() : 0;
+            }
+
+            @Override
+            public TrafficClass getTraffic(String name) {
+                ExternalService service = mRegistry.findByName(name);
+                return service != null ? service.getTraffic() : null;
+            }
+
+            @Override
+            public boolean isCompressed(String name) {
+                ExternalService service = mRegistry.findByName(name);
+                return service != null && service.isCompressed();
+            }
+        });
         Log.i(Consts.TAG, "ExternalServiceManager created");
     }
 
     /**
-     * Unregisters all services at the remote server.
+     * Unregisters all services at the remote server in a single request.
      * 
      */
     public void onDestroy() {
-        for (ExternalService service : mServices) {
-            boolean removed = ServerCommon.unregisterService(service);
-            if (!removed)
-                Log.d(Consts.TAG, "Unable to unregister " + service.getName()
-                    + " service.");
+        List<ExternalService> removed = new ArrayList<ExternalService>();
+        for (ExternalService service : mRegistry.getServices()) {
+            if (!mRegistry.remove(service))
+                continue;
+            closeRelay(service);
+            removed.add(service);
+        }
+        if (!removed.isEmpty()) {
+            String deviceID = mSettings.get().getDeviceID();
+            if (!ServerCommon.unregisterServices(removed, deviceID))
+                Log.d(Consts.TAG, "Unable to unregister " + removed.size()
+                    + " services.");
         }
+        mRelay.stop();
+        mMux.stop();
         Log.i(Consts.TAG, "ExternalServiceManager stopped, all services "
             + "unregistered");
     }
@@ -56,11 +99,15 @@ public class ExternalServiceManager {
      *            - service to be unregistered
      */
     public void removeService(ExternalService service) {
+        if (!mRegistry.remove(service))
+            return;
         boolean response = ServerCommon.unregisterService(service);
         if (response) {
-            mServices.remove(service);
+            closeRelay(service);
             Log.i(Consts.TAG, "ExternalServiceManager: Removed service: "
                 + service.getName());
+        } else if (!mRegistry.add(service)) {
+            closeRelay(service);
         }
     }
 
@@ -73,18 +120,141 @@ public class ExternalServiceManager {
      *            - port number which the service uses
      */
     public void createService(String name, int port) {
+        if (mRegistry.findByName(name) != null
+            || mRegistry.findByPort(port) != null) {
+            Log.d(Consts.TAG, "ExternalServiceManager: Service " + name
+                + " or local port " + port + " is already registered");
+            return;
+        }
         ExternalService service = new ExternalService(name, port);
-        String deviceID = Common.loadSetting(mContext, Consts.DEVICE_ID);
+        String deviceID = mSettings.get().getDeviceID();
         if (deviceID.equals(""))
             return;
         String serviceID = ServerCommon.registerService(service, deviceID);
         if (serviceID == null)
             return;
         service.setID(serviceID);
-        mServices.add(service);
+        openRelay(service);
+        if (!mRegistry.add(service)) {
+            Log.d(Consts.TAG, "ExternalServiceManager: Service " + name
+                + " was registered concurrently");
+            closeRelay(service);
+            ServerCommon.unregisterService(service);
+            return;
+        }
         Log.i(Consts.TAG,
             "ExternalServiceManager: Added service: " + service.getName()
-                + " on local port " + service.getPort());
+                + " on local port " + service.getPort() + ", relay port "
+                + service.getRelayPort());
+    }
+
+    /**
+     * Creates and registers a set of services at remote server in a single
+     * request. Services whose name or port is already registered are skipped.
+     * 
+     * @param ports
+     *            - local port numbers of the services by service name
+     */
+    public void createServices(Map<String, Integer> ports) {
+        String deviceID = mSettings.get().getDeviceID();
+        if (deviceID.equals(""))
+            return;
+        List<ExternalService> services = new ArrayList<ExternalService>();
+        for (Map.Entry<String, Integer> entry : ports.entrySet()) {
+            if (mRegistry.findByName(entry.getKey()) == null
+                && mRegistry.findByPort(entry.getValue()) == null)
+                services.add(new ExternalService(entry.getKey(), entry
+                    .getValue()));
+        }
+        if (services.isEmpty())
+            return;
+        if (!ServerCommon.registerServices(services, deviceID))
+            return;
+        List<ExternalService> rejected = new ArrayList<ExternalService>();
+        for (ExternalService service : services) {
+            openRelay(service);
+            if (!mRegistry.add(service)) {
+                closeRelay(service);
+                rejected.add(service);
+            }
+        }
+        if (!rejected.isEmpty())
+            ServerCommon.unregisterServices(rejected, deviceID);
+        Log.i(Consts.TAG, "ExternalServiceManager: Added "
+            + (services.size() - rejected.size()) + " services");
+    }
+
+    /**
+     * Starts watching for a punched connection from a remote host to a
+     * service.
+     * 
+     * @param service
+     *            - service the connection is punched to
+     * @param remote
+     *            - address of the remote peer
+     * @return - watch which has to be closed after use, null if the service
+     *         is not relayed
+     */
+    public RelayWatch watchRelay(ExternalService service, InetAddress remote) {
+        if (service.getRelayPort() == 0)
+            return null;
+        return mRelay.watch(service.getRelayPort(), remote);
+    }
+
+    /**
+     * Returns the port which accepts multiplexed connections, starting to
+     * listen on it first if needed. Streams over such a connection may reach
+     * any of the services.
+     *
+     * @throws IOException
+     *             if no port could be bound
+     */
+    public int getMuxPort() throws IOException {
+        return mMux.start();
+    }
+
+    /**
+     * Returns the number of open multiplexed connections and streams.
+     */
+    public String getMuxStats() {
+        return "sessions=" + mMux.getSessionCount() + " streams="
+            + mMux.getStreamCount();
+    }
+
+    /**
+     * Returns the peer and the compression totals of each multiplexed
+     * connection.
+     */
+    public List<String> getMuxSessionStats() {
+        return mMux.getSessionStats();
+    }
+
+    /**
+     * Returns the counters of the relay which carries punched connections.
+     */
+    public RelayStats getRelayStats() {
+        return mRelay.getStats();
+    }
+
+    /**
+     * Returns the registered services.
+     */
+    public List<ExternalService> getServices() {
+        return mRegistry.getServices();
+    }
+
+    /**
+     * Caps the bytes relayed to peers per second over all services.
+     * 
+     * @param bytesPerSecond
+     *            - the cap, 0 to remove it
+     */
+    public void setUplinkRate(long bytesPerSecond) {
+        mRelay.setUplinkRate(bytesPerSecond);
+    }
+
+    public long getUplinkRate() {
+        return mRelay.getUplinkRate();
     }
 
     /**
@@ -95,11 +265,45 @@ public class ExternalServiceManager {
      * @return - service with given name, null otherwise
      */
     public ExternalService findServiceByName(String name) {
-        for (ExternalService service : mServices) {
-            if (service.getName().equals(name))
-                return service;
+        return mRegistry.findByName(name);
+    }
+
+    /**
+     * Searches amongst its services for a service with given server-assigned
+     * ID.
+     * 
+     * @param id
+     *            - ID of the service
+     * @return - service with given ID, null otherwise
+     */
+    public ExternalService findServiceByID(String id) {
+        return mRegistry.findByID(id);
+    }
+
+    /**
+     * Searches amongst its services for a service on given local port.
+     * 
+     * @param port
+     *            - local port of the service
+     * @return - service on given port, null otherwise
+     */
+    public ExternalService findServiceByPort(int port) {
+        return mRegistry.findByPort(port);
+    }
+
+    private void openRelay(ExternalService service) {
+        try {
+            service.setRelayPort(mRelay.listen(0, new InetSocketAddress(
+                LOCALHOST, service.getPort()), service.getTraffic()));
+        } catch (IOException e) {
+            Log.d(Consts.TAG, "ExternalServiceManager: Unable to relay "
+                + service.getName() + ": " + e.getMessage());
         }
-        return null;
+    }
+
+    private void closeRelay(ExternalService service) {
+        if (service.getRelayPort() != 0)
+            mRelay.unlisten(service.getRelayPort());
     }
 
 }
@@ -0,0 +1,86 @@
+package ee.ut.cs.mc.natpeer.externalservice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registered services indexed by name, server-assigned ID and local port.
+ * Lookups do not lock and may run concurrently with modifications; adding
+ * and removing a service updates all indexes atomically with respect to
+ * other modifications.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class ExternalServiceRegistry {
+
+    private final ConcurrentHashMap<String, ExternalService> mByName;
+    private final ConcurrentHashMap<String, ExternalService> mByID;
+    private final ConcurrentHashMap<Integer, ExternalService> mByPort;
+
+    public ExternalServiceRegistry() {
+        mByName = new ConcurrentHashMap<String, ExternalService>();
+        mByID = new ConcurrentHashMap<String, ExternalService>();
+        mByPort = new ConcurrentHashMap<Integer, ExternalService>();
+    }
+
+    /**
+     * Adds a service which has been registered at the remote server.
+     *
+     * @param service
+     *            - service with its ID set
+     * @return true if the service was added, false if its name, ID or port is
+     *         already taken
+     */
+    public synchronized boolean add(ExternalService service) {
+        String id = service.getID();
+        if (id == null)
+            throw new IllegalArgumentException("Service has no ID: "
+                + service.getName());
+        if (mByName.containsKey(service.getName()) || mByID.containsKey(id)
+            || mByPort.containsKey(service.getPort()))
+            return false;
+        mByPort.put(service.getPort(), service);
+        mByID.put(id, service);
+        mByName.put(service.getName(), service);
+        return true;
+    }
+
+    /**
+     * Removes a service from all indexes.
+     *
+     * @return true if the service was registered
+     */
+    public synchronized boolean remove(ExternalService service) {
+        if (!mByName.remove(service.getName(), service))
+            return false;
+        mByID.remove(service.getID(), service);
+        mByPort.remove(service.getPort(), service);
+        return true;
+    }
+
+    public ExternalService findByName(String name) {
+        return mByName.get(name);
+    }
+
+    public ExternalService findByID(String id) {
+        return mByID.get(id);
+    }
+
+    public ExternalService findByPort(int port) {
+        return mByPort.get(port);
+    }
+
+    /**
+     * Returns a snapshot of all registered services.
+     */
+    public List<ExternalService> getServices() {
+        return new ArrayList<ExternalService>(mByName.values());
+    }
+
+    public int size() {
+        return mByName.size();
+    }
+
+}
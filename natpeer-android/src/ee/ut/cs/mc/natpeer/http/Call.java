@@ -0,0 +1,47 @@
+package ee.ut.cs.mc.natpeer.http;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A request on its way through {@link HttpClient}. Only touched by the
+ * selector thread of the client, apart from its future.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+final class Call {
+
+    final Request mRequest;
+    final byte[] mBytes;
+    final HttpFuture<Response> mFuture;
+    final long mDeadline;
+
+    /** Remainder to write, set once the call is given to a connection. */
+    ByteBuffer mOut;
+
+    /** Whether the call was already sent again over a new connection. */
+    boolean mRequeued;
+
+    Call(Request request, byte[] bytes, long deadline) {
+        mRequest = request;
+        mBytes = bytes;
+        mFuture = new HttpFuture<Response>();
+        mDeadline = deadline;
+    }
+
+    /**
+     * Returns true if nothing of the request has been written.
+     */
+    boolean isUnsent() {
+        return mOut == null || mOut.position() == 0;
+    }
+
+    /**
+     * Returns true if the request may be sent again after it was written, at
+     * most once and only if it is idempotent.
+     */
+    boolean mayResend() {
+        return !mRequeued && mRequest.isIdempotent();
+    }
+
+}
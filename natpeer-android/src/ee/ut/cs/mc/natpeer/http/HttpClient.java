@@ -0,0 +1,290 @@
+package ee.ut.cs.mc.natpeer.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.util.Log;
+
+import ee.ut.cs.mc.natpeer.util.Consts;
+
+/**
+ * Non-blocking HTTP/1.1 client of a single server. Keeps a small pool of
+ * keep-alive connections, and pipelines requests on them when all are busy,
+ * so several calls share a connection. All sockets are served by one
+ * selector thread, which is started with the first request, and callers get
+ * a future instead of waiting on a thread of their own.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class HttpClient implements Runnable {
+
+    private final String mHost;
+    private final int mPort;
+    private final ConcurrentLinkedQueue<Call> mSubmitted;
+
+    /** Calls waiting for a connection, used by the selector thread only. */
+    private final ArrayDeque<Call> mPending;
+    private final List<HttpConnection> mConnections;
+
+    private Selector mSelector;
+    private boolean mClosed;
+
+    private volatile int mRequests;
+    private volatile int mReused;
+    private volatile int mOpened;
+
+    public HttpClient(String host, int port) {
+        mHost = host;
+        mPort = port;
+        mSubmitted = new ConcurrentLinkedQueue<Call>();
+        mPending = new ArrayDeque<Call>();
+        mConnections = new ArrayList<HttpConnection>();
+    }
+
+    /**
+     * Sends a request. The future fails with a SocketTimeoutException if the
+     * response is not complete within the timeout, and with an IOException
+     * if the connection is lost. Cancelling it does not take back a request
+     * already written.
+     *
+     * @param timeout
+     *            - milliseconds to wait for the whole response
+     */
+    public HttpFuture<Response> execute(Request request, int timeout) {
+        Call call = new Call(request, request.encode(mHost, mPort),
+            System.currentTimeMillis() + timeout);
+        Selector selector;
+        try {
+            selector = start();
+        } catch (IOException e) {
+            call.mFuture.fail(e);
+            return call.mFuture;
+        }
+        mSubmitted.add(call);
+        selector.wakeup();
+        return call.mFuture;
+    }
+
+    /**
+     * Closes all connections and fails the calls which are not done. The
+     * client cannot be used after this.
+     */
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            if (mSelector == null)
+                return;
+        }
+        mSelector.wakeup();
+    }
+
+    /**
+     * Returns a one line summary of the pool, for the service dump.
+     */
+    public String getStats() {
+        int open;
+        synchronized (mConnections) {
+            open = mConnections.size();
+        }
+        return open + " open, " + mOpened + " opened, " + mRequests
+            + " requests, " + mReused + " on reused connections";
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isClosed()) {
+                long now = System.currentTimeMillis();
+                dispatch(now);
+                expire(now);
+                long wait = nextWakeup(now);
+                mSelector.select(wait);
+                Iterator<SelectionKey> keys = mSelector.selectedKeys()
+                    .iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(Consts.TAG, "HttpClient: Selector failed", e);
+        } finally {
+            shutdown();
+        }
+    }
+
+    private synchronized Selector start() throws IOException {
+        if (mClosed)
+            throw new IOException("Client closed");
+        if (mSelector == null) {
+            mSelector = Selector.open();
+            Thread thread = new Thread(this, "HttpClient");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return mSelector;
+    }
+
+    private synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    private void handle(SelectionKey key) {
+        HttpConnection connection = (HttpConnection) key.attachment();
+        try {
+            if (key.isConnectable())
+                connection.onConnectable();
+            if (key.isValid() && key.isWritable())
+                connection.onWritable();
+            if (key.isValid() && key.isReadable())
+                connection.onReadable();
+            if (connection.isClosing() && connection.getLoad() == 0)
+                remove(connection, new IOException("Connection closed"));
+        } catch (IOException e) {
+            remove(connection, e);
+        }
+    }
+
+    /**
+     * Hands the waiting calls to connections: an idle connection if there is
+     * one, else a new connection while the pool is not full, else the least
+     * loaded connection which is not pipelining too deep already.
+     */
+    private void dispatch(long now) {
+        Call submitted;
+        while ((submitted = mSubmitted.poll()) != null)
+            mPending.add(submitted);
+        while (!mPending.isEmpty()) {
+            Call call = mPending.peek();
+            if (call.mFuture.isDone()) {
+                mPending.poll();
+                continue;
+            }
+            HttpConnection connection = pick();
+            if (connection == null) {
+                if (mConnections.size() >= Consts.HTTP_MAX_CONNECTIONS)
+                    return;
+                try {
+                    connection = new HttpConnection(mSelector,
+                        new InetSocketAddress(mHost, mPort));
+                } catch (IOException e) {
+                    mPending.poll().mFuture.fail(e);
+                    continue;
+                }
+                synchronized (mConnections) {
+                    mConnections.add(connection);
+                }
+                mOpened++;
+            }
+            mPending.poll();
+            mRequests++;
+            if (connection.assign(call))
+                mReused++;
+        }
+    }
+
+    private HttpConnection pick() {
+        HttpConnection best = null;
+        for (HttpConnection connection : mConnections) {
+            if (connection.isClosing())
+                continue;
+            int load = connection.getLoad();
+            if (load == 0)
+                return connection;
+            if (load < Consts.HTTP_PIPELINE_DEPTH
+                && (best == null || load < best.getLoad()))
+                best = connection;
+        }
+        // keep the pool busy before pipelining
+        if (best != null && mConnections.size() < Consts.HTTP_MAX_CONNECTIONS)
+            return null;
+        return best;
+    }
+
+    /**
+     * Fails the calls past their deadline. A connection with such a call is
+     * closed, since the responses on it come in order and all later ones
+     * would wait behind it.
+     */
+    private void expire(long now) {
+        Iterator<Call> pending = mPending.iterator();
+        while (pending.hasNext()) {
+            Call call = pending.next();
+            if (call.mDeadline <= now) {
+                pending.remove();
+                call.mFuture.fail(new SocketTimeoutException(
+                    "No connection within timeout"));
+            }
+        }
+        for (HttpConnection connection : new ArrayList<HttpConnection>(
+            mConnections)) {
+            if (connection.isExpired(now))
+                remove(connection, new SocketTimeoutException(
+                    "No response within timeout"));
+            else if (connection.getLoad() == 0
+                && now - connection.getIdleSince() >= Consts.HTTP_KEEPALIVE)
+                remove(connection, new IOException("Idle"));
+        }
+    }
+
+    private long nextWakeup(long now) {
+        long next = now + Consts.HTTP_KEEPALIVE;
+        for (Call call : mPending)
+            next = Math.min(next, call.mDeadline);
+        for (HttpConnection connection : mConnections) {
+            next = Math.min(next, connection.getDeadline());
+            if (connection.getLoad() == 0)
+                next = Math.min(next, connection.getIdleSince()
+                    + Consts.HTTP_KEEPALIVE);
+        }
+        return Math.max(1, next - now);
+    }
+
+    /**
+     * Closes a connection, putting the calls which may be sent again in
+     * front of the waiting ones.
+     */
+    private void remove(HttpConnection connection, IOException cause) {
+        synchronized (mConnections) {
+            mConnections.remove(connection);
+        }
+        List<Call> requeue = new ArrayList<Call>();
+        connection.close(cause, requeue);
+        for (int i = requeue.size() - 1; i >= 0; i--)
+            mPending.addFirst(requeue.get(i));
+        if (!requeue.isEmpty())
+            Log.d(Consts.TAG, "HttpClient: Sending " + requeue.size()
+                + " requests again (" + cause.getMessage() + ")");
+    }
+
+    private void shutdown() {
+        IOException cause = new IOException("Client closed");
+        for (HttpConnection connection : new ArrayList<HttpConnection>(
+            mConnections))
+            remove(connection, cause);
+        Call call;
+        while ((call = mSubmitted.poll()) != null)
+            mPending.add(call);
+        while ((call = mPending.poll()) != null)
+            call.mFuture.fail(cause);
+        synchronized (this) {
+            mClosed = true;
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,401 @@
+package ee.ut.cs.mc.natpeer.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A keep-alive connection of {@link HttpClient}. Requests given to it are
+ * written back to back without waiting for the responses, which arrive in
+ * the same order. Only used by the selector thread of the client.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+final class HttpConnection {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private static final int MAX_HEADERS = 16 * 1024;
+
+    private static final int MAX_BUFFER = 1024 * 1024;
+
+    private static final int HEADERS = 0;
+    private static final int BODY = 1;
+    private static final int BODY_UNTIL_CLOSE = 2;
+    private static final int CHUNK_SIZE = 3;
+    private static final int CHUNK_DATA = 4;
+    private static final int CHUNK_END = 5;
+    private static final int TRAILERS = 6;
+
+    private final SocketChannel mChannel;
+    private final SelectionKey mKey;
+    private final ArrayDeque<Call> mUnwritten;
+    private final ArrayDeque<Call> mAwaiting;
+    private final ByteBuffer mReadBuffer;
+
+    private byte[] mIn;
+    private int mInLength;
+    private int mState;
+    private int mCode;
+    private Map<String, String> mHeaders;
+    private ByteArrayOutputStream mBody;
+    private long mRemaining;
+    private boolean mCloseAfter;
+
+    private boolean mConnected;
+    private boolean mClosing;
+    private int mServed;
+    private boolean mReused;
+    private boolean mReceived;
+    private long mIdleSince;
+
+    HttpConnection(Selector selector, InetSocketAddress address)
+        throws IOException {
+        if (address.isUnresolved())
+            throw new UnknownHostException(address.getHostName());
+        mChannel = SocketChannel.open();
+        try {
+            mChannel.configureBlocking(false);
+            mChannel.socket().setTcpNoDelay(true);
+            mConnected = mChannel.connect(address);
+            mKey = mChannel.register(selector, mConnected
+                ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+        } catch (IOException e) {
+            mChannel.close();
+            throw e;
+        }
+        mUnwritten = new ArrayDeque<Call>();
+        mAwaiting = new ArrayDeque<Call>();
+        mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        mIn = new byte[READ_BUFFER_SIZE];
+        mIdleSince = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the number of requests given to the connection which have not
+     * been answered yet.
+     */
+    int getLoad() {
+        return mUnwritten.size() + mAwaiting.size();
+    }
+
+    /**
+     * Returns true if no more requests may be given to the connection.
+     */
+    boolean isClosing() {
+        return mClosing;
+    }
+
+    /**
+     * Returns the time the connection became idle at, while it is idle.
+     */
+    long getIdleSince() {
+        return mIdleSince;
+    }
+
+    /**
+     * Returns the earliest deadline of the requests given to the connection,
+     * Long.MAX_VALUE if there are none.
+     */
+    long getDeadline() {
+        long deadline = Long.MAX_VALUE;
+        for (Call call : mUnwritten)
+            deadline = Math.min(deadline, call.mDeadline);
+        for (Call call : mAwaiting)
+            deadline = Math.min(deadline, call.mDeadline);
+        return deadline;
+    }
+
+    /**
+     * Returns true if a request given to the connection is past its deadline
+     * and has not been answered.
+     */
+    boolean isExpired(long now) {
+        return getDeadline() <= now;
+    }
+
+    /**
+     * Queues a request to be written.
+     *
+     * @return true if the request is written over a connection which has
+     *         already served others
+     */
+    boolean assign(Call call) {
+        if (getLoad() == 0 && mServed > 0) {
+            // a server may close an idle connection just as it is reused
+            mReused = true;
+            mReceived = false;
+        }
+        call.mOut = ByteBuffer.wrap(call.mBytes);
+        mUnwritten.add(call);
+        if (mConnected)
+            mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return mServed > 0;
+    }
+
+    void onConnectable() throws IOException {
+        mChannel.finishConnect();
+        mConnected = true;
+        mKey.interestOps(mUnwritten.isEmpty() ? SelectionKey.OP_READ
+            : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    void onWritable() throws IOException {
+        while (!mUnwritten.isEmpty()) {
+            Call call = mUnwritten.peek();
+            mChannel.write(call.mOut);
+            if (call.mOut.hasRemaining())
+                return;
+            mAwaiting.add(mUnwritten.poll());
+        }
+        mKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Reads what has arrived and completes the requests whose responses are
+     * complete.
+     *
+     * @throws EOFException
+     *             if the server closed the connection
+     */
+    void onReadable() throws IOException {
+        mReadBuffer.clear();
+        int n = mChannel.read(mReadBuffer);
+        if (n < 0) {
+            if (mState == BODY_UNTIL_CLOSE)
+                finishResponse();
+            throw new EOFException("Connection closed by server");
+        }
+        if (n == 0)
+            return;
+        mReceived = true;
+        if (mInLength + n > mIn.length) {
+            if (mInLength + n > MAX_BUFFER)
+                throw new ProtocolException("Response too large");
+            byte[] in = new byte[Math.max(mIn.length * 2, mInLength + n)];
+            System.arraycopy(mIn, 0, in, 0, mInLength);
+            mIn = in;
+        }
+        System.arraycopy(mReadBuffer.array(), 0, mIn, mInLength, n);
+        mInLength += n;
+        parse();
+    }
+
+    /**
+     * Closes the connection. Requests of which nothing was written are
+     * handed back to be sent over another connection. So are idempotent
+     * requests sent over a reused connection which the server closed without
+     * answering anything, the server closed it for being idle before it saw
+     * them. The others fail with the cause, as do all if the connection was
+     * never made.
+     *
+     * @param requeue
+     *            - receives the requests to send again
+     */
+    void close(IOException cause, List<Call> requeue) {
+        mClosing = true;
+        mKey.cancel();
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // nothing to do about it
+        }
+        if (!mConnected) {
+            for (Call call : mUnwritten)
+                call.mFuture.fail(cause);
+            mUnwritten.clear();
+        }
+        boolean stale = mReused && !mReceived;
+        for (Call call : mAwaiting) {
+            if (stale && call.mayResend()) {
+                call.mRequeued = true;
+                requeue.add(call);
+            } else
+                call.mFuture.fail(cause);
+        }
+        for (Call call : mUnwritten) {
+            if (call.isUnsent() || stale && call.mayResend()) {
+                call.mRequeued |= !call.isUnsent();
+                call.mOut = null;
+                requeue.add(call);
+            } else
+                call.mFuture.fail(cause);
+        }
+        mAwaiting.clear();
+        mUnwritten.clear();
+    }
+
+    private void parse() throws IOException {
+        int pos = 0;
+        boolean more = true;
+        while (more) {
+            switch (mState) {
+            case HEADERS:
+                int end = indexOf(pos, "\r\n\r\n");
+                if (end < 0) {
+                    if (mInLength - pos > MAX_HEADERS)
+                        throw new ProtocolException("Headers too long");
+                    more = false;
+                    break;
+                }
+                parseHeaders(new String(mIn, pos, end - pos, "ISO-8859-1"));
+                pos = end + 4;
+                break;
+            case BODY:
+                pos = readBody(pos);
+                if (mRemaining > 0)
+                    more = false;
+                else
+                    finishResponse();
+                break;
+            case BODY_UNTIL_CLOSE:
+                mBody.write(mIn, pos, mInLength - pos);
+                pos = mInLength;
+                more = false;
+                break;
+            case CHUNK_SIZE:
+                int eol = indexOf(pos, "\r\n");
+                if (eol < 0) {
+                    more = false;
+                    break;
+                }
+                String line = new String(mIn, pos, eol - pos, "ISO-8859-1");
+                int ext = line.indexOf(';');
+                try {
+                    mRemaining = Long.parseLong((ext < 0 ? line : line
+                        .substring(0, ext)).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Bad chunk size: " + line);
+                }
+                pos = eol + 2;
+                mState = mRemaining == 0 ? TRAILERS : CHUNK_DATA;
+                break;
+            case CHUNK_DATA:
+                pos = readBody(pos);
+                if (mRemaining > 0)
+                    more = false;
+                else
+                    mState = CHUNK_END;
+                break;
+            case CHUNK_END:
+                if (mInLength - pos < 2) {
+                    more = false;
+                    break;
+                }
+                pos += 2;
+                mState = CHUNK_SIZE;
+                break;
+            case TRAILERS:
+                int trailer = indexOf(pos, "\r\n");
+                if (trailer < 0) {
+                    more = false;
+                    break;
+                }
+                if (trailer == pos)
+                    finishResponse();
+                pos = trailer + 2;
+                break;
+            }
+        }
+        System.arraycopy(mIn, pos, mIn, 0, mInLength - pos);
+        mInLength -= pos;
+    }
+
+    private int readBody(int pos) {
+        int n = (int) Math.min(mRemaining, mInLength - pos);
+        mBody.write(mIn, pos, n);
+        mRemaining -= n;
+        return pos + n;
+    }
+
+    private void parseHeaders(String head) throws ProtocolException {
+        String[] lines = head.split("\r\n");
+        String[] status = lines[0].split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/1."))
+            throw new ProtocolException("Bad status line: " + lines[0]);
+        try {
+            mCode = Integer.parseInt(status[1]);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Bad status line: " + lines[0]);
+        }
+        mHeaders = new HashMap<String, String>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0)
+                mHeaders.put(lines[i].substring(0, colon).trim()
+                    .toLowerCase(), lines[i].substring(colon + 1).trim());
+        }
+        if (mCode / 100 == 1)
+            // interim response, the real one follows
+            return;
+        mBody = new ByteArrayOutputStream();
+        mCloseAfter = "close".equalsIgnoreCase(mHeaders.get("connection"))
+            || status[0].equals("HTTP/1.0")
+            && !"keep-alive".equalsIgnoreCase(mHeaders.get("connection"));
+        String length = mHeaders.get("content-length");
+        if (mCode == 204 || mCode == 304) {
+            mRemaining = 0;
+            mState = BODY;
+        } else if ("chunked".equalsIgnoreCase(mHeaders
+            .get("transfer-encoding"))) {
+            mState = CHUNK_SIZE;
+        } else if (length != null) {
+            try {
+                mRemaining = Long.parseLong(length);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Bad Content-Length: " + length);
+            }
+            mState = BODY;
+        } else {
+            mCloseAfter = true;
+            mState = BODY_UNTIL_CLOSE;
+        }
+    }
+
+    private void finishResponse() throws ProtocolException {
+        Call call = mAwaiting.poll();
+        if (call == null) {
+            // answered before the request was fully written
+            call = mUnwritten.poll();
+            mCloseAfter = true;
+        }
+        if (call == null)
+            throw new ProtocolException("Response without a request");
+        call.mFuture.complete(new Response(mCode, mHeaders, mBody
+            .toByteArray()));
+        mServed++;
+        mState = HEADERS;
+        mBody = null;
+        if (mCloseAfter)
+            mClosing = true;
+        if (getLoad() == 0) {
+            mIdleSince = System.currentTimeMillis();
+            mReused = false;
+        }
+    }
+
+    private int indexOf(int from, String pattern) {
+        int last = mInLength - pattern.length();
+        for (int i = from; i <= last; i++) {
+            int j = 0;
+            while (j < pattern.length() && mIn[i + j] == pattern.charAt(j))
+                j++;
+            if (j == pattern.length())
+                return i;
+        }
+        return -1;
+    }
+
+}
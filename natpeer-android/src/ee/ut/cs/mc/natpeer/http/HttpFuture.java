@@ -0,0 +1,181 @@
+package ee.ut.cs.mc.natpeer.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an asynchronous call which is completed by whoever makes the
+ * call. Besides waiting for it, listeners can be added which are run once
+ * the result is there, so callers need not park a thread per call.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class HttpFuture<T> implements Future<T> {
+
+    /**
+     * Notified once the future is done. Run on the thread which completed the
+     * future, so implementations must not block.
+     */
+    public interface Listener<T> {
+        void onComplete(HttpFuture<T> future);
+    }
+
+    /**
+     * Turns the result of a future into the result of another one.
+     */
+    public interface Transform<T, R> {
+
+        /**
+         * @throws Exception
+         *             fails the resulting future
+         */
+        R apply(T value) throws Exception;
+    }
+
+    private final Object mLock = new Object();
+    private List<Listener<T>> mListeners = new ArrayList<Listener<T>>();
+    private boolean mDone;
+    private boolean mCancelled;
+    private T mResult;
+    private Exception mError;
+
+    /**
+     * Completes the future with a result.
+     *
+     * @return false if the future was already done
+     */
+    public boolean complete(T result) {
+        return finish(result, null, false);
+    }
+
+    /**
+     * Completes the future with an error.
+     *
+     * @return false if the future was already done
+     */
+    public boolean fail(Exception error) {
+        return finish(null, error, false);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, new CancellationException(), true);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        synchronized (mLock) {
+            return mCancelled;
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        synchronized (mLock) {
+            return mDone;
+        }
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        synchronized (mLock) {
+            while (!mDone)
+                mLock.wait();
+            return result();
+        }
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException,
+        ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mLock) {
+            while (!mDone) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0)
+                    throw new TimeoutException();
+                TimeUnit.NANOSECONDS.timedWait(mLock, wait);
+            }
+            return result();
+        }
+    }
+
+    /**
+     * Adds a listener, which is run straight away if the future is already
+     * done.
+     */
+    public void addListener(Listener<T> listener) {
+        synchronized (mLock) {
+            if (!mDone) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    /**
+     * Returns a future which completes with the result of this one passed
+     * through the transform, or with the error of this one. Cancelling it
+     * cancels this one.
+     */
+    public <R> HttpFuture<R> transform(final Transform<T, R> transform) {
+        final HttpFuture<T> source = this;
+        final HttpFuture<R> target = new HttpFuture<R>() {
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                source.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        addListener(new Listener<T>() {
+
+            @Override
+            public void onComplete(HttpFuture<T> future) {
+                try {
+                    target.complete(transform.apply(future.get()));
+                } catch (ExecutionException e) {
+                    target.fail(e.getCause() instanceof Exception
+                        ? (Exception) e.getCause() : e);
+                } catch (Exception e) {
+                    target.fail(e);
+                }
+            }
+        });
+        return target;
+    }
+
+    private boolean finish(T result, Exception error, boolean cancelled) {
+        List<Listener<T>> listeners;
+        synchronized (mLock) {
+            if (mDone)
+                return false;
+            mDone = true;
+            mCancelled = cancelled;
+            mResult = result;
+            mError = error;
+            listeners = mListeners;
+            mListeners = null;
+            mLock.notifyAll();
+        }
+        for (Listener<T> listener : listeners)
+            listener.onComplete(this);
+        return true;
+    }
+
+    private T result() throws ExecutionException {
+        if (mCancelled)
+            throw new CancellationException();
+        if (mError != null)
+            throw new ExecutionException(mError);
+        return mResult;
+    }
+
+}
@@ -0,0 +1,105 @@
+package ee.ut.cs.mc.natpeer.http;
+
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HTTP/1.1 request to be sent by {@link HttpClient}.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class Request {
+
+    public static final String CONTENT_TYPE_FORM =
+        "application/x-www-form-urlencoded";
+
+    public static final String CONTENT_TYPE_JSON = "application/json";
+
+    private final String mMethod;
+    private final String mPath;
+    private final Map<String, String> mHeaders;
+    private byte[] mBody;
+
+    /**
+     * @param method
+     *            - e.g. "GET" or "POST"
+     * @param path
+     *            - absolute path of the resource, with the query if any
+     */
+    public Request(String method, String path) {
+        mMethod = method;
+        mPath = path;
+        mHeaders = new LinkedHashMap<String, String>();
+    }
+
+    public String getMethod() {
+        return mMethod;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * Returns true if sending the request twice has the same effect as
+     * sending it once.
+     */
+    public boolean isIdempotent() {
+        return !mMethod.equals("POST")
+            || mHeaders.containsKey("X-HTTP-Method-Override");
+    }
+
+    public Request header(String name, String value) {
+        mHeaders.put(name, value);
+        return this;
+    }
+
+    /**
+     * Sets the body, sent as UTF-8 with given content type.
+     */
+    public Request body(String contentType, String body) {
+        try {
+            mBody = body.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        mHeaders.put("Content-Type", contentType + "; charset=utf-8");
+        return this;
+    }
+
+    /**
+     * Returns the request as it is sent to given host.
+     */
+    byte[] encode(String host, int port) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mMethod).append(' ').append(mPath).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(host).append(':').append(port)
+            .append("\r\n");
+        for (Map.Entry<String, String> header : mHeaders.entrySet())
+            sb.append(header.getKey()).append(": ").append(header.getValue())
+                .append("\r\n");
+        int length = mBody != null ? mBody.length : 0;
+        if (length > 0 || !mMethod.equals("GET"))
+            sb.append("Content-Length: ").append(length).append("\r\n");
+        sb.append("\r\n");
+        byte[] head;
+        try {
+            head = sb.toString().getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] bytes = new byte[head.length + length];
+        System.arraycopy(head, 0, bytes, 0, head.length);
+        if (length > 0)
+            System.arraycopy(mBody, 0, bytes, head.length, length);
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return mMethod + " " + mPath;
+    }
+
+}
@@ -0,0 +1,55 @@
+package ee.ut.cs.mc.natpeer.http;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+
+/**
+ * HTTP response received by {@link HttpClient}, with the whole body.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class Response {
+
+    private final int mCode;
+    private final Map<String, String> mHeaders;
+    private final byte[] mBody;
+
+    /**
+     * @param headers
+     *            - header values by lower case name
+     */
+    Response(int code, Map<String, String> headers, byte[] body) {
+        mCode = code;
+        mHeaders = headers;
+        mBody = body;
+    }
+
+    public int code() {
+        return mCode;
+    }
+
+    /**
+     * Returns the value of a header, null if the response does not have it.
+     */
+    public String header(String name) {
+        return mHeaders.get(name.toLowerCase());
+    }
+
+    /**
+     * Returns the body decoded as UTF-8.
+     */
+    public String body() {
+        try {
+            return new String(mBody, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mCode + " (" + mBody.length + " bytes)";
+    }
+
+}
@@ -8,7 +8,12 @@ package ee.ut.cs.mc.natpeer.jni;
  */
 public class NativeLibrary {
 
-    public static native void injectFrom(String localAddr, int localPort,
+    /**
+     * Responds to a connection request by running natpeer through su.
+     *
+     * @return true if natpeer injected the packet
+     */
+    public static native boolean injectFrom(String localAddr, int localPort,
         String interFace, String remoteAddr, int remotePort, long seqNumb,
         long timeStamp, boolean nat);
 
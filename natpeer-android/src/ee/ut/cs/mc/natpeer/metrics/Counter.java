@@ -0,0 +1,75 @@
+package ee.ut.cs.mc.natpeer.metrics;
+
+/**
+ * Events which are counted but not timed.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public enum Counter {
+
+    REGISTRATIONS,
+
+    REGISTRATION_FAILURES,
+
+    CONNECTIONS,
+
+    CONNECTION_FAILURES,
+
+    /**
+     * Operations repeated over another path after a failure, e.g. a response
+     * sent over a one-shot connection when the control channel is down.
+     */
+    RETRIES,
+
+    /**
+     * Calls to the server which were made again after a backoff, see
+     * RequestPolicy.
+     */
+    REQUEST_RETRIES,
+
+    /**
+     * Calls to the server which were sent a second time because the first
+     * attempt was slower than usual.
+     */
+    HEDGES,
+
+    /**
+     * Hedged calls in which the second attempt succeeded first.
+     */
+    HEDGE_WINS,
+
+    /**
+     * Attempts to reopen the control channel after it was lost.
+     */
+    RECONNECTS,
+
+    /**
+     * Requests dropped because a request with the same ID was already
+     * handled.
+     */
+    DUPLICATES,
+
+    /**
+     * Cached registrations the server no longer knew, so the device had to
+     * register again.
+     */
+    STALE_REGISTRATIONS,
+
+    /**
+     * Calls to the server made as soon as they were due, either urgent ones
+     * or ones posted while the radio was active.
+     */
+    SENT_IMMEDIATELY,
+
+    /**
+     * Calls to the server which were held until the radio was active.
+     */
+    SENT_BATCHED,
+
+    /**
+     * Times the held calls were made together.
+     */
+    BATCHES
+
+}
@@ -0,0 +1,173 @@
+package ee.ut.cs.mc.natpeer.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in microseconds. Values are counted in
+ * log-linear buckets: every power of two is split into eight buckets, so a
+ * percentile is off by at most 12.5% while the whole range from a
+ * microsecond to several days takes a few hundred counters. Recording is a
+ * couple of atomic increments and may be done from any thread.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+
+    private static final int MAX_EXPONENT = 40;
+
+    private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+
+    private static final int BUCKETS = LINEAR
+        + (MAX_EXPONENT - SUB_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mCount;
+    private final AtomicLong mSum;
+    private final AtomicLong mMax;
+
+    public Histogram() {
+        mCounts = new AtomicLongArray(BUCKETS);
+        mCount = new AtomicLong();
+        mSum = new AtomicLong();
+        mMax = new AtomicLong();
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param micros
+     *            - duration in microseconds, negative values count as zero
+     */
+    public void record(long micros) {
+        long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+        mCounts.incrementAndGet(index(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value))
+            ;
+    }
+
+    /**
+     * Clears all counts. Values recorded concurrently may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            mCounts.set(i, 0);
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * Returns a copy of the counts which percentiles can be computed from.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, mSum.get(), mMax.get());
+    }
+
+    static int index(long value) {
+        if (value < LINEAR)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the largest value counted in a bucket.
+     */
+    static long upperBound(int index) {
+        if (index < LINEAR)
+            return index;
+        int exponent = (index - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+        int sub = (index - LINEAR) % SUB_BUCKETS;
+        int shift = exponent - SUB_BITS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Counts of a histogram at a point in time.
+     */
+    public static class Snapshot {
+
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            mCounts = counts;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * Returns the mean in microseconds.
+         */
+        public long getMean() {
+            return mCount == 0 ? 0 : mSum / mCount;
+        }
+
+        /**
+         * Returns the largest recorded value in microseconds.
+         */
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * Returns the value below which the given share of the recorded
+         * values fall.
+         *
+         * @param quantile
+         *            - share between 0 and 1, e.g. 0.99
+         * @return upper bound of the bucket holding the percentile in
+         *         microseconds
+         */
+        public long getPercentile(double quantile) {
+            if (mCount == 0)
+                return 0;
+            long rank = (long) Math.ceil(quantile * mCount);
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank && seen > 0)
+                    return Math.min(upperBound(i), mMax);
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + mCount + " mean=" + millis(getMean()) + " p50="
+                + millis(getPercentile(0.5)) + " p90="
+                + millis(getPercentile(0.9)) + " p99="
+                + millis(getPercentile(0.99)) + " max=" + millis(mMax);
+        }
+
+        private static String millis(long micros) {
+            return micros / 1000 + "." + micros % 1000 / 100 + "ms";
+        }
+    }
+
+}
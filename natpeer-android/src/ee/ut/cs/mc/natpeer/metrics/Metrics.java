@@ -0,0 +1,115 @@
+package ee.ut.cs.mc.natpeer.metrics;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durations and outcomes of the connection phases, and counters of other
+ * events. Shared by the whole process, so components which are not wired
+ * to the service can record into it as well.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class Metrics {
+
+    private static final Metrics sDefault = new Metrics();
+
+    private final Histogram[] mHistograms;
+    private final AtomicLong[] mFailures;
+    private final AtomicLong[] mCounters;
+
+    public Metrics() {
+        Phase[] phases = Phase.values();
+        mHistograms = new Histogram[phases.length];
+        mFailures = new AtomicLong[phases.length];
+        for (int i = 0; i < phases.length; i++) {
+            mHistograms[i] = new Histogram();
+            mFailures[i] = new AtomicLong();
+        }
+        mCounters = new AtomicLong[Counter.values().length];
+        for (int i = 0; i < mCounters.length; i++)
+            mCounters[i] = new AtomicLong();
+    }
+
+    public static Metrics getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Returns the start time to be passed to {@link #record}.
+     */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a phase which started at the given time and ends now.
+     *
+     * @param phase
+     *            - the phase
+     * @param start
+     *            - value of {@link #now()} when the phase started
+     * @param success
+     *            - whether the phase completed successfully
+     */
+    public void record(Phase phase, long start, boolean success) {
+        recordDuration(phase, (now() - start) / 1000, success);
+    }
+
+    /**
+     * Records a phase whose duration was measured elsewhere.
+     *
+     * @param micros
+     *            - duration in microseconds
+     */
+    public void recordDuration(Phase phase, long micros, boolean success) {
+        mHistograms[phase.ordinal()].record(micros);
+        if (!success)
+            mFailures[phase.ordinal()].incrementAndGet();
+    }
+
+    public void increment(Counter counter) {
+        mCounters[counter.ordinal()].incrementAndGet();
+    }
+
+    public long getCount(Counter counter) {
+        return mCounters[counter.ordinal()].get();
+    }
+
+    /**
+     * Returns the number of times a phase has failed.
+     */
+    public long getFailures(Phase phase) {
+        return mFailures[phase.ordinal()].get();
+    }
+
+    /**
+     * Returns the durations of a phase, failed ones included.
+     */
+    public Histogram.Snapshot getSnapshot(Phase phase) {
+        return mHistograms[phase.ordinal()].snapshot();
+    }
+
+    public void reset() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i].reset();
+            mFailures[i].set(0);
+        }
+        for (AtomicLong counter : mCounters)
+            counter.set(0);
+    }
+
+    /**
+     * Writes all phases and counters in a human readable form.
+     */
+    public void dump(PrintWriter writer) {
+        for (Phase phase : Phase.values()) {
+            writer.println(phase + ": " + getSnapshot(phase) + " failed="
+                + getFailures(phase));
+        }
+        for (Counter counter : Counter.values())
+            writer.println(counter + ": " + getCount(counter));
+    }
+
+}
@@ -0,0 +1,67 @@
+package ee.ut.cs.mc.natpeer.metrics;
+
+/**
+ * Stages a connection goes through on the device, in order, followed by the
+ * startup of the service.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public enum Phase {
+
+    /**
+     * From the server sending the push message until it is received. Measured
+     * against the server's clock, so only meaningful when the clocks are
+     * synchronized.
+     */
+    GCM_DELIVERY,
+
+    /**
+     * Like GCM_DELIVERY, for messages pushed over the control channel.
+     */
+    CHANNEL_DELIVERY,
+
+    /**
+     * From receiving the push message until a connection task starts on it.
+     */
+    DISPATCH,
+
+    /**
+     * Responding to the rendezvous server until the peer's endpoints and
+     * connection information have arrived.
+     */
+    RESPOND,
+
+    /**
+     * Looking up the local address to punch from.
+     */
+    RESOLVE,
+
+    /**
+     * Injecting the punch packets.
+     */
+    PUNCH,
+
+    /**
+     * Waiting for the peer's connection to reach the relay.
+     */
+    ACCEPT,
+
+    /**
+     * The whole connection task.
+     */
+    TOTAL,
+
+    /**
+     * From the service being created until it accepts services to register,
+     * either from the cached registration or after registering the device.
+     */
+    STARTUP,
+
+    /**
+     * From the service being created until the first connection request is
+     * accepted.
+     */
+    FIRST_REQUEST
+
+}
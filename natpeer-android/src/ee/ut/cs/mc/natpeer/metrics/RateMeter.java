@@ -0,0 +1,64 @@
+package ee.ut.cs.mc.natpeer.metrics;
+
+/**
+ * Counts bytes and tells how many were counted per second lately. Bytes are
+ * summed in one second slots, the rate is the average of the last few
+ * complete seconds, so it follows a transfer with a lag of a second or two.
+ * May be used from any thread.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class RateMeter {
+
+    /** Complete seconds the rate is averaged over. */
+    private static final int WINDOW = 4;
+
+    private final long[] mSlots = new long[WINDOW + 1];
+    private long mSecond;
+    private long mTotal;
+
+    /**
+     * Counts bytes as transferred now.
+     */
+    public synchronized void add(long bytes) {
+        roll(System.currentTimeMillis() / 1000);
+        mSlots[(int) (mSecond % mSlots.length)] += bytes;
+        mTotal += bytes;
+    }
+
+    /**
+     * Returns the average bytes per second over the last complete seconds.
+     */
+    public synchronized long getRate() {
+        roll(System.currentTimeMillis() / 1000);
+        long sum = 0;
+        for (int i = 1; i <= WINDOW; i++)
+            sum += mSlots[(int) ((mSecond - i) % mSlots.length)];
+        return sum / WINDOW;
+    }
+
+    /**
+     * Returns all bytes counted.
+     */
+    public synchronized long getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Clears the slots which have passed since the last call.
+     */
+    private void roll(long second) {
+        if (second <= mSecond)
+            return;
+        if (second - mSecond >= mSlots.length) {
+            for (int i = 0; i < mSlots.length; i++)
+                mSlots[i] = 0;
+        } else {
+            for (long s = mSecond + 1; s <= second; s++)
+                mSlots[(int) (s % mSlots.length)] = 0;
+        }
+        mSecond = second;
+    }
+
+}
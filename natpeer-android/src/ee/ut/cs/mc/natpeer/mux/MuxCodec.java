@@ -0,0 +1,153 @@
+package ee.ut.cs.mc.natpeer.mux;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of a stream whose peers agreed on {@link MuxFrame#DEFLATE}.
+ * Every DATA frame is compressed on its own into a complete raw deflate
+ * stream, so nothing waits in the compressor for more input and each frame
+ * can be decompressed as soon as it arrives. To still compress well across
+ * frames, the last bytes sent in the same direction are set as the
+ * dictionary of the next frame. A frame which does not get smaller is sent
+ * as it is.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+final class MuxCodec {
+
+    private final MuxSession mSession;
+    private final Deflater mDeflater;
+    private final Inflater mInflater;
+    private final byte[] mSent;
+    private final byte[] mReceived;
+    private final byte[] mOut;
+    private int mSentLength;
+    private int mReceivedLength;
+    private boolean mEnded;
+
+    MuxCodec(MuxSession session) {
+        mSession = session;
+        mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+        mInflater = new Inflater(true);
+        mSent = new byte[MuxFrame.DICTIONARY];
+        mReceived = new byte[MuxFrame.DICTIONARY];
+        mOut = new byte[MuxFrame.MAX_PAYLOAD];
+    }
+
+    /**
+     * Compresses data to be sent in one frame. Frames have to be sent in
+     * the order they were compressed in.
+     *
+     * @param len
+     *            - at most {@link MuxFrame#MAX_PAYLOAD}
+     * @return compressed length, the bytes are in {@link #getOutput()}, or
+     *         -1 if the data should be sent uncompressed
+     */
+    synchronized int compress(byte[] b, int off, int len) {
+        if (mEnded)
+            return -1;
+        long start = System.nanoTime();
+        mDeflater.reset();
+        if (mSentLength > 0)
+            mDeflater.setDictionary(mSent, 0, mSentLength);
+        mDeflater.setInput(b, off, len);
+        mDeflater.finish();
+        int n = 0;
+        // output no smaller than the input is of no use
+        while (!mDeflater.finished() && n < len)
+            n += mDeflater.deflate(mOut, n, len - n);
+        boolean smaller = mDeflater.finished() && n < len;
+        remember(mSent, mSentLength, b, off, len);
+        mSentLength = Math.min(mSentLength + len, mSent.length);
+        mSession.onCompressed(len, smaller ? n : len, System.nanoTime()
+            - start);
+        return smaller ? n : -1;
+    }
+
+    byte[] getOutput() {
+        return mOut;
+    }
+
+    /**
+     * Returns the data of a received frame.
+     *
+     * @param compressed
+     *            - whether the frame was sent compressed
+     * @throws DataFormatException
+     *             if the frame is not a deflate stream, or decompresses to
+     *             more than a frame may hold
+     */
+    byte[] decompress(byte[] payload, boolean compressed)
+        throws DataFormatException {
+        if (!compressed) {
+            remember(mReceived, mReceivedLength, payload, 0, payload.length);
+            mReceivedLength = Math.min(mReceivedLength + payload.length,
+                mReceived.length);
+            return payload;
+        }
+        synchronized (mInflater) {
+            if (mEnded)
+                throw new DataFormatException("Stream closed");
+            return inflate(payload);
+        }
+    }
+
+    /**
+     * Releases the native memory of the codec.
+     */
+    void end() {
+        synchronized (this) {
+            synchronized (mInflater) {
+                mEnded = true;
+                mDeflater.end();
+                mInflater.end();
+            }
+        }
+    }
+
+    private byte[] inflate(byte[] payload) throws DataFormatException {
+        long start = System.nanoTime();
+        byte[] buffer = new byte[MuxFrame.MAX_PAYLOAD + 1];
+        mInflater.reset();
+        if (mReceivedLength > 0)
+            mInflater.setDictionary(mReceived, 0, mReceivedLength);
+        mInflater.setInput(payload);
+        int n = 0;
+        while (!mInflater.finished() && n < buffer.length) {
+            int count = mInflater.inflate(buffer, n, buffer.length - n);
+            if (count == 0 && (mInflater.needsInput()
+                || mInflater.needsDictionary()))
+                throw new DataFormatException("Truncated frame");
+            n += count;
+        }
+        if (!mInflater.finished() || n > MuxFrame.MAX_PAYLOAD)
+            throw new DataFormatException("Frame too long");
+        byte[] data = new byte[n];
+        System.arraycopy(buffer, 0, data, 0, n);
+        remember(mReceived, mReceivedLength, data, 0, n);
+        mReceivedLength = Math.min(mReceivedLength + n, mReceived.length);
+        mSession.onDecompressed(n, payload.length, System.nanoTime()
+            - start);
+        return data;
+    }
+
+    /**
+     * Appends data to a history of given length, keeping only the tail which
+     * fits.
+     */
+    private static void remember(byte[] history, int length, byte[] b,
+        int off, int len) {
+        if (len >= history.length) {
+            System.arraycopy(b, off + len - history.length, history, 0,
+                history.length);
+            return;
+        }
+        int keep = Math.min(length, history.length - len);
+        System.arraycopy(history, length - keep, history, 0, keep);
+        System.arraycopy(b, off, history, keep, len);
+    }
+
+}
@@ -0,0 +1,82 @@
+package ee.ut.cs.mc.natpeer.mux;
+
+/**
+ * Wire format of the stream multiplexer. Every frame starts with an eight
+ * byte header: the frame type, a flags byte, the big-endian payload length
+ * (two bytes) and the big-endian stream ID (four bytes). Streams opened by
+ * the client have odd IDs, streams opened by the device even ones. Windows
+ * count bytes of data before compression. The layout matches np_mux_hdr_t
+ * in natpeer.h.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+final class MuxFrame {
+
+    static final int HEADER_LENGTH = 8;
+
+    /** Largest payload of a single frame. */
+    static final int MAX_PAYLOAD = 16 * 1024;
+
+    /** Bytes either side may send on a new stream before a WINDOW frame. */
+    static final int INITIAL_WINDOW = 256 * 1024;
+
+    /** Opens a stream, the payload is the name of the service. */
+    static final byte OPEN = 1;
+
+    /** The stream was opened, data may flow. */
+    static final byte ACCEPT = 2;
+
+    static final byte DATA = 3;
+
+    /** Grants the peer more send window, four byte big-endian increment. */
+    static final byte WINDOW = 4;
+
+    /** The sender has finished sending on the stream. */
+    static final byte FIN = 5;
+
+    /** Aborts the stream or refuses to open it. */
+    static final byte RESET = 6;
+
+    /**
+     * On OPEN the opener offers compression, on ACCEPT the stream is
+     * compressed both ways, on DATA the payload is compressed.
+     */
+    static final byte DEFLATE = 1;
+
+    /** Bytes of earlier data a compressed frame may refer back to. */
+    static final int DICTIONARY = 8 * 1024;
+
+    private MuxFrame() {
+    }
+
+    /**
+     * Builds a frame with the payload copied after the header.
+     */
+    static byte[] encode(byte type, byte flags, int stream, byte[] payload,
+        int off, int len) {
+        byte[] frame = new byte[HEADER_LENGTH + len];
+        frame[0] = type;
+        frame[1] = flags;
+        frame[2] = (byte) (len >>> 8);
+        frame[3] = (byte) len;
+        frame[4] = (byte) (stream >>> 24);
+        frame[5] = (byte) (stream >>> 16);
+        frame[6] = (byte) (stream >>> 8);
+        frame[7] = (byte) stream;
+        if (len > 0)
+            System.arraycopy(payload, off, frame, HEADER_LENGTH, len);
+        return frame;
+    }
+
+    static int readInt(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16
+            | (b[off + 2] & 0xff) << 8 | b[off + 3] & 0xff;
+    }
+
+    static byte[] intBytes(int value) {
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16),
+            (byte) (value >>> 8), (byte) value };
+    }
+
+}
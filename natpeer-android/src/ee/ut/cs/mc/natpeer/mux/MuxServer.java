@@ -0,0 +1,301 @@
+package ee.ut.cs.mc.natpeer.mux;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+import ee.ut.cs.mc.natpeer.relay.TrafficClass;
+import ee.ut.cs.mc.natpeer.util.Consts;
+
+/**
+ * Device side of the stream multiplexer. Accepts punched connections on a
+ * port of its own and connects every stream opened over them to the local
+ * port of the service it names.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class MuxServer implements Runnable, MuxSession.Acceptor {
+
+    private static final String LOCALHOST = "127.0.0.1";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Finds the local port of a service.
+     */
+    public interface ServiceResolver {
+
+        /**
+         * @return local port of the service, 0 if there is no such service
+         */
+        int resolve(String service);
+
+        /**
+         * @return class the traffic of the service is accounted to, null if
+         *         there is no such service
+         */
+        TrafficClass getTraffic(String service);
+
+        /**
+         * @return true if streams to the service are compressed when the
+         *         peer offers to
+         */
+        boolean isCompressed(String service);
+    }
+
+    private final ServiceResolver mResolver;
+    private final Set<MuxSession> mSessions;
+    private ExecutorService mExecutor;
+    private ServerSocket mServer;
+
+    public MuxServer(ServiceResolver resolver) {
+        mResolver = resolver;
+        mSessions = Collections.newSetFromMap(
+            new ConcurrentHashMap<MuxSession, Boolean>());
+    }
+
+    /**
+     * Starts accepting connections unless the server is already running.
+     *
+     * @return port the server listens on
+     * @throws IOException
+     *             if no port could be bound
+     */
+    public synchronized int start() throws IOException {
+        if (mServer != null)
+            return mServer.getLocalPort();
+        ServerSocket server = new ServerSocket();
+        try {
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(0));
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        mServer = server;
+        mExecutor = Executors.newCachedThreadPool();
+        new Thread(this, "MuxServer").start();
+        Log.i(Consts.TAG, "MuxServer: Listening on port "
+            + server.getLocalPort());
+        return server.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections and closes all sessions.
+     */
+    public synchronized void stop() {
+        if (mServer == null)
+            return;
+        try {
+            mServer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mServer = null;
+        for (MuxSession session : mSessions)
+            session.close();
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the number of open sessions.
+     */
+    public int getSessionCount() {
+        return mSessions.size();
+    }
+
+    /**
+     * Returns the peer and the compression totals of each open session.
+     */
+    public List<String> getSessionStats() {
+        List<String> stats = new ArrayList<String>();
+        for (MuxSession session : mSessions)
+            stats.add(session.getRemote() + " streams="
+                + session.getStreamCount() + " compressed "
+                + session.getCompressionStats());
+        return stats;
+    }
+
+    /**
+     * Returns the number of open streams over all sessions.
+     */
+    public int getStreamCount() {
+        int count = 0;
+        for (MuxSession session : mSessions)
+            count += session.getStreamCount();
+        return count;
+    }
+
+    @Override
+    public void run() {
+        ServerSocket server;
+        synchronized (this) {
+            server = mServer;
+        }
+        while (server != null && !server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                break;
+            }
+            try {
+                mExecutor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                close(socket);
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void onOpen(final MuxStream stream, final String service) {
+        final int port = mResolver.resolve(service);
+        final TrafficClass traffic = mResolver.getTraffic(service);
+        final boolean compress = mResolver.isCompressed(service);
+        if (port == 0 || traffic == null) {
+            Log.d(Consts.TAG, "MuxServer: No service " + service);
+            stream.reset();
+            return;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    connect(stream, port, traffic, compress);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            stream.reset();
+        }
+    }
+
+    /**
+     * Reads frames of a session until its connection is closed.
+     */
+    private void serve(Socket socket) {
+        MuxSession session;
+        try {
+            session = new MuxSession(socket, false, this);
+        } catch (IOException e) {
+            close(socket);
+            return;
+        }
+        Log.i(Consts.TAG, "MuxServer: Session from "
+            + socket.getRemoteSocketAddress());
+        mSessions.add(session);
+        session.run();
+        mSessions.remove(session);
+        MuxSession.CompressionStats stats = session.getCompressionStats();
+        if (stats.getBytesIn() > 0)
+            Log.i(Consts.TAG, "MuxServer: Session from "
+                + socket.getRemoteSocketAddress() + " compressed " + stats);
+    }
+
+    /**
+     * Connects a stream to the local port of its service and copies data
+     * both ways until both directions are finished. What is sent to the peer
+     * is held to the rate cap of the service.
+     *
+     * @param compress
+     *            - whether to compress the stream if the peer offered to
+     */
+    private void connect(final MuxStream stream, int port,
+        final TrafficClass traffic, boolean compress) {
+        final Socket local = new Socket();
+        try {
+            local.connect(new InetSocketAddress(LOCALHOST, port),
+                Consts.SERVER_CONNECT_TIMEOUT);
+            stream.accept(compress);
+        } catch (IOException e) {
+            Log.d(Consts.TAG, "MuxServer: Unable to connect to port " + port
+                + ": " + e.getMessage());
+            stream.reset();
+            close(local);
+            return;
+        }
+        final AtomicInteger directions = new AtomicInteger(2);
+        try {
+            mExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        copy(stream.getInputStream(), local.getOutputStream(),
+                            traffic, false);
+                        local.shutdownOutput();
+                    } catch (IOException e) {
+                        stream.reset();
+                        close(local);
+                    } finally {
+                        if (directions.decrementAndGet() == 0)
+                            close(local);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            stream.reset();
+            close(local);
+            return;
+        }
+        try {
+            copy(local.getInputStream(), stream.getOutputStream(), traffic,
+                true);
+            stream.getOutputStream().close();
+        } catch (IOException e) {
+            stream.reset();
+            close(local);
+        } finally {
+            if (directions.decrementAndGet() == 0)
+                close(local);
+        }
+    }
+
+    /**
+     * @param outbound
+     *            - true if the bytes are sent to the peer
+     */
+    private static void copy(InputStream in, OutputStream out,
+        TrafficClass traffic, boolean outbound) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            if (outbound)
+                traffic.acquire(n);
+            else
+                traffic.received(n);
+            out.write(buffer, 0, n);
+            out.flush();
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
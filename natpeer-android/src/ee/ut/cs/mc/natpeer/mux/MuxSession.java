@@ -0,0 +1,345 @@
+package ee.ut.cs.mc.natpeer.mux;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+
+import android.util.Log;
+import ee.ut.cs.mc.natpeer.util.Consts;
+
+/**
+ * Carries any number of {@link MuxStream}s over a single connection, so a
+ * peer which already has a punched connection to the device can reach any
+ * of its services in one round trip instead of a new rendezvous and punch.
+ * The client side opens streams by service name, the device side hands them
+ * to an {@link Acceptor}. Frames are read by a thread of the session and
+ * written by whichever thread sends them.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class MuxSession implements Runnable {
+
+    /**
+     * Receives streams the peer asks to open.
+     */
+    public interface Acceptor {
+
+        /**
+         * Called on the reader thread of the session, so implementations
+         * must not block. The stream has to be either accepted or reset.
+         *
+         * @param stream
+         *            - stream the peer asked for
+         * @param service
+         *            - name of the service the peer wants to reach
+         */
+        void onOpen(MuxStream stream, String service);
+    }
+
+    private final Socket mSocket;
+    private final DataInputStream mIn;
+    private final OutputStream mOut;
+    private final Object mWriteLock = new Object();
+    private final ConcurrentHashMap<Integer, MuxStream> mStreams;
+    private final Acceptor mAcceptor;
+    private final AtomicInteger mNextID;
+    private final AtomicLong mCodecBytesIn;
+    private final AtomicLong mCodecBytesOut;
+    private final AtomicLong mCodecNanos;
+    private volatile boolean mClosed;
+
+    /**
+     * Creates a session over a connected socket, {@link #start()} starts
+     * reading from it.
+     *
+     * @param client
+     *            - true on the side which opens streams
+     * @param acceptor
+     *            - receives streams opened by the peer, null to refuse them
+     */
+    public MuxSession(Socket socket, boolean client, Acceptor acceptor)
+        throws IOException {
+        mSocket = socket;
+        mIn = new DataInputStream(new BufferedInputStream(
+            socket.getInputStream()));
+        mOut = socket.getOutputStream();
+        mStreams = new ConcurrentHashMap<Integer, MuxStream>();
+        mAcceptor = acceptor;
+        mNextID = new AtomicInteger(client ? 1 : 2);
+        mCodecBytesIn = new AtomicLong();
+        mCodecBytesOut = new AtomicLong();
+        mCodecNanos = new AtomicLong();
+        socket.setTcpNoDelay(true);
+    }
+
+    public void start() {
+        new Thread(this, "MuxSession").start();
+    }
+
+    /**
+     * Opens a stream to a service of the peer and waits until the peer has
+     * accepted it.
+     *
+     * @param service
+     *            - name of the service
+     * @param timeout
+     *            - maximum time to wait for the peer in milliseconds
+     * @throws IOException
+     *             if the session is closed, or the peer refused the stream
+     *             or did not answer in time
+     */
+    public MuxStream openStream(String service, long timeout)
+        throws IOException {
+        return openStream(service, false, timeout);
+    }
+
+    /**
+     * Like {@link #openStream(String, long)}, but may offer to compress the
+     * stream. The peer decides whether it is compressed.
+     *
+     * @param compress
+     *            - whether to offer compression
+     */
+    public MuxStream openStream(String service, boolean compress,
+        long timeout) throws IOException {
+        if (mClosed)
+            throw new IOException("Session closed");
+        MuxStream stream = new MuxStream(this, mNextID.getAndAdd(2), compress);
+        mStreams.put(stream.getID(), stream);
+        byte[] name = service.getBytes("UTF-8");
+        try {
+            send(MuxFrame.OPEN, compress ? MuxFrame.DEFLATE : 0,
+                stream.getID(), name, 0, name.length);
+        } catch (IOException e) {
+            stream.onReset();
+            throw e;
+        }
+        stream.awaitAccepted(timeout);
+        return stream;
+    }
+
+    /**
+     * Returns the number of streams which are open.
+     */
+    public int getStreamCount() {
+        return mStreams.size();
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Returns the address of the peer.
+     */
+    public String getRemote() {
+        return String.valueOf(mSocket.getRemoteSocketAddress());
+    }
+
+    /**
+     * Returns the totals of the compressed streams, open and closed.
+     */
+    public CompressionStats getCompressionStats() {
+        return new CompressionStats(mCodecBytesIn.get(),
+            mCodecBytesOut.get(), mCodecNanos.get());
+    }
+
+    /**
+     * Closes the connection, resetting all streams.
+     */
+    public void close() {
+        synchronized (this) {
+            if (mClosed)
+                return;
+            mClosed = true;
+        }
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (MuxStream stream : new ArrayList<MuxStream>(mStreams.values()))
+            stream.onReset();
+    }
+
+    @Override
+    public void run() {
+        byte[] header = new byte[MuxFrame.HEADER_LENGTH];
+        try {
+            while (true) {
+                try {
+                    mIn.readFully(header);
+                } catch (EOFException e) {
+                    break;
+                }
+                byte type = header[0];
+                byte flags = header[1];
+                int len = (header[2] & 0xff) << 8 | header[3] & 0xff;
+                int id = MuxFrame.readInt(header, 4);
+                if (len > MuxFrame.MAX_PAYLOAD)
+                    throw new ProtocolException("Frame too long: " + len);
+                byte[] payload = new byte[len];
+                mIn.readFully(payload);
+                dispatch(type, flags, id, payload);
+            }
+        } catch (IOException e) {
+            if (!mClosed)
+                Log.d(Consts.TAG, "MuxSession: " + e.getMessage());
+        }
+        close();
+    }
+
+    void send(byte type, int stream, byte[] payload, int off, int len)
+        throws IOException {
+        send(type, (byte) 0, stream, payload, off, len);
+    }
+
+    void send(byte type, byte flags, int stream, byte[] payload, int off,
+        int len) throws IOException {
+        byte[] frame = MuxFrame.encode(type, flags, stream, payload, off,
+            len);
+        synchronized (mWriteLock) {
+            try {
+                mOut.write(frame);
+                mOut.flush();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    void remove(MuxStream stream) {
+        mStreams.remove(stream.getID(), stream);
+    }
+
+    void onCompressed(int bytesIn, int bytesOut, long nanos) {
+        mCodecBytesIn.addAndGet(bytesIn);
+        mCodecBytesOut.addAndGet(bytesOut);
+        mCodecNanos.addAndGet(nanos);
+    }
+
+    void onDecompressed(int bytesIn, int bytesOut, long nanos) {
+        onCompressed(bytesIn, bytesOut, nanos);
+    }
+
+    private void dispatch(byte type, byte flags, int id, byte[] payload)
+        throws IOException {
+        boolean deflate = (flags & MuxFrame.DEFLATE) != 0;
+        if (type == MuxFrame.OPEN) {
+            onOpen(id, new String(payload, "UTF-8"), deflate);
+            return;
+        }
+        MuxStream stream = mStreams.get(id);
+        if (stream == null)
+            // late frames of a stream which has been reset
+            return;
+        switch (type) {
+        case MuxFrame.ACCEPT:
+            stream.onAccepted(deflate);
+            break;
+        case MuxFrame.DATA:
+            try {
+                if (!stream.onData(payload, deflate)) {
+                    Log.d(Consts.TAG, "MuxSession: Stream " + id
+                        + " exceeded its window");
+                    stream.reset();
+                }
+            } catch (DataFormatException e) {
+                Log.d(Consts.TAG, "MuxSession: Stream " + id
+                    + " sent a bad frame: " + e.getMessage());
+                stream.reset();
+            }
+            break;
+        case MuxFrame.WINDOW:
+            if (payload.length != 4)
+                throw new ProtocolException("Malformed WINDOW frame");
+            stream.onWindow(MuxFrame.readInt(payload, 0));
+            break;
+        case MuxFrame.FIN:
+            stream.onFin();
+            break;
+        case MuxFrame.RESET:
+            stream.onReset();
+            break;
+        default:
+            throw new ProtocolException("Unknown frame type " + type);
+        }
+    }
+
+    private void onOpen(int id, String service, boolean deflate)
+        throws IOException {
+        if (mAcceptor == null || mStreams.containsKey(id)) {
+            send(MuxFrame.RESET, id, null, 0, 0);
+            return;
+        }
+        MuxStream stream = new MuxStream(this, id, deflate);
+        mStreams.put(id, stream);
+        mAcceptor.onOpen(stream, service);
+    }
+
+    /**
+     * Totals of the compressed streams of a session.
+     */
+    public static class CompressionStats {
+
+        private final long mBytesIn;
+        private final long mBytesOut;
+        private final long mNanos;
+
+        CompressionStats(long bytesIn, long bytesOut, long nanos) {
+            mBytesIn = bytesIn;
+            mBytesOut = bytesOut;
+            mNanos = nanos;
+        }
+
+        /**
+         * Returns the bytes given to the compressor and taken out of the
+         * decompressor.
+         */
+        public long getBytesIn() {
+            return mBytesIn;
+        }
+
+        /**
+         * Returns the bytes of the compressed frames which were sent and
+         * received.
+         */
+        public long getBytesOut() {
+            return mBytesOut;
+        }
+
+        /**
+         * Returns uncompressed bytes per byte on the wire, 1 if nothing was
+         * compressed.
+         */
+        public double getRatio() {
+            return mBytesOut == 0 ? 1 : (double) mBytesIn / mBytesOut;
+        }
+
+        /**
+         * Returns the time spent compressing and decompressing in
+         * microseconds.
+         */
+        public long getCpuTime() {
+            return mNanos / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bytes to %d, ratio %.2f, %d us",
+                mBytesIn, mBytesOut, getRatio(), getCpuTime());
+        }
+    }
+
+}
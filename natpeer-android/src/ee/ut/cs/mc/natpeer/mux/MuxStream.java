@@ -0,0 +1,359 @@
+package ee.ut.cs.mc.natpeer.mux;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.zip.DataFormatException;
+
+/**
+ * A logical stream of a {@link MuxSession}. Each direction has its own
+ * window: the sender may only have as many unacknowledged bytes in flight as
+ * the receiver has granted, and the receiver grants more as the application
+ * reads them. A slow reader therefore stalls only its own stream, never the
+ * connection the streams share. If both peers agree, data is compressed by
+ * a {@link MuxCodec}.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class MuxStream {
+
+    private final MuxSession mSession;
+    private final int mID;
+    private final Object mLock = new Object();
+    private final ArrayDeque<byte[]> mChunks;
+    private final InputStream mIn;
+    private final OutputStream mOut;
+    private final boolean mOffered;
+    private volatile MuxCodec mCodec;
+
+    private int mChunkOffset;
+    private int mBuffered;
+    private int mConsumed;
+    private int mSendWindow;
+    private boolean mAccepted;
+    private boolean mRemoteFin;
+    private boolean mLocalFin;
+    private boolean mReset;
+
+    /**
+     * @param offered
+     *            - whether the opener offered to compress the stream
+     */
+    MuxStream(MuxSession session, int id, boolean offered) {
+        mSession = session;
+        mID = id;
+        mOffered = offered;
+        mChunks = new ArrayDeque<byte[]>();
+        mSendWindow = MuxFrame.INITIAL_WINDOW;
+        mIn = new StreamInput();
+        mOut = new StreamOutput();
+    }
+
+    public int getID() {
+        return mID;
+    }
+
+    /**
+     * Returns the stream to read what the peer sends, -1 once the peer has
+     * finished sending.
+     */
+    public InputStream getInputStream() {
+        return mIn;
+    }
+
+    /**
+     * Returns the stream to send to the peer. Closing it tells the peer
+     * nothing more will be sent, the other direction stays open.
+     */
+    public OutputStream getOutputStream() {
+        return mOut;
+    }
+
+    /**
+     * Confirms a stream the peer asked to open.
+     */
+    public void accept() throws IOException {
+        accept(false);
+    }
+
+    /**
+     * Confirms a stream the peer asked to open, compressing it if the peer
+     * offered to and compress is true.
+     */
+    public void accept(boolean compress) throws IOException {
+        boolean deflate = compress && mOffered;
+        synchronized (mLock) {
+            mAccepted = true;
+            if (deflate)
+                mCodec = new MuxCodec(mSession);
+        }
+        mSession.send(MuxFrame.ACCEPT, deflate ? MuxFrame.DEFLATE : 0, mID,
+            null, 0, 0);
+    }
+
+    /**
+     * Returns true if data of the stream is compressed.
+     */
+    public boolean isCompressed() {
+        return mCodec != null;
+    }
+
+    /**
+     * Aborts the stream in both directions.
+     */
+    public void reset() {
+        if (onReset()) {
+            try {
+                mSession.send(MuxFrame.RESET, mID, null, 0, 0);
+            } catch (IOException e) {
+                // the session is gone, and the stream with it
+            }
+        }
+    }
+
+    /**
+     * Waits until the peer has accepted the stream.
+     *
+     * @throws IOException
+     *             if the peer refused the stream or did not answer in time
+     */
+    void awaitAccepted(long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (mLock) {
+            while (!mAccepted && !mReset) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    reset();
+                    throw new SocketTimeoutException("Stream " + mID
+                        + " not accepted in time");
+                }
+                waitOn(wait);
+            }
+            if (mReset)
+                throw new IOException("Stream " + mID + " refused");
+        }
+    }
+
+    /**
+     * @param deflate
+     *            - whether the peer agreed to compress the stream
+     */
+    void onAccepted(boolean deflate) {
+        synchronized (mLock) {
+            mAccepted = true;
+            if (deflate && mOffered && mCodec == null)
+                mCodec = new MuxCodec(mSession);
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Buffers data which arrived for the stream.
+     *
+     * @param deflate
+     *            - whether the payload is compressed
+     * @return false if the peer sent more than its window allowed
+     * @throws DataFormatException
+     *             if the payload could not be decompressed
+     */
+    boolean onData(byte[] payload, boolean deflate)
+        throws DataFormatException {
+        synchronized (mLock) {
+            if (mReset || mRemoteFin)
+                return true;
+        }
+        MuxCodec codec = mCodec;
+        if (deflate && codec == null)
+            throw new DataFormatException("Compression was not agreed");
+        byte[] data = codec != null ? codec.decompress(payload, deflate)
+            : payload;
+        synchronized (mLock) {
+            if (mReset || mRemoteFin)
+                return true;
+            if (mBuffered + data.length > MuxFrame.INITIAL_WINDOW)
+                return false;
+            mChunks.add(data);
+            mBuffered += data.length;
+            mLock.notifyAll();
+            return true;
+        }
+    }
+
+    void onWindow(int increment) {
+        synchronized (mLock) {
+            mSendWindow += increment;
+            mLock.notifyAll();
+        }
+    }
+
+    void onFin() {
+        boolean done;
+        synchronized (mLock) {
+            mRemoteFin = true;
+            done = mLocalFin;
+            mLock.notifyAll();
+        }
+        if (done)
+            release();
+    }
+
+    /**
+     * Marks the stream reset and wakes up everyone waiting on it.
+     *
+     * @return true if the stream had not been reset before
+     */
+    boolean onReset() {
+        synchronized (mLock) {
+            if (mReset)
+                return false;
+            mReset = true;
+            mChunks.clear();
+            mBuffered = 0;
+            mLock.notifyAll();
+        }
+        release();
+        return true;
+    }
+
+    /**
+     * Removes the stream from its session once it is done.
+     */
+    private void release() {
+        mSession.remove(this);
+        MuxCodec codec = mCodec;
+        if (codec != null)
+            codec.end();
+    }
+
+    private void waitOn(long timeout) throws InterruptedIOException {
+        try {
+            mLock.wait(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted on stream " + mID);
+        }
+    }
+
+    private class StreamInput extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            int n = 0;
+            int grant = 0;
+            synchronized (mLock) {
+                while (mChunks.isEmpty() && !mRemoteFin && !mReset)
+                    waitOn(0);
+                if (mReset)
+                    throw new IOException("Stream " + mID + " reset");
+                while (n < len && !mChunks.isEmpty()) {
+                    byte[] chunk = mChunks.peek();
+                    int count = Math.min(len - n, chunk.length - mChunkOffset);
+                    System.arraycopy(chunk, mChunkOffset, b, off + n, count);
+                    n += count;
+                    mChunkOffset += count;
+                    if (mChunkOffset == chunk.length) {
+                        mChunks.poll();
+                        mChunkOffset = 0;
+                    }
+                }
+                if (n == 0)
+                    return -1;
+                mBuffered -= n;
+                mConsumed += n;
+                // grant in batches rather than a WINDOW frame per read
+                if (mConsumed >= MuxFrame.INITIAL_WINDOW / 2) {
+                    grant = mConsumed;
+                    mConsumed = 0;
+                }
+            }
+            if (grant > 0)
+                mSession.send(MuxFrame.WINDOW, mID, MuxFrame.intBytes(grant),
+                    0, 4);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            synchronized (mLock) {
+                return mBuffered;
+            }
+        }
+    }
+
+    private class StreamOutput extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n;
+                synchronized (mLock) {
+                    while (mSendWindow == 0 && !mReset && !mLocalFin)
+                        waitOn(0);
+                    if (mReset)
+                        throw new IOException("Stream " + mID + " reset");
+                    if (mLocalFin)
+                        throw new IOException("Stream " + mID + " closed");
+                    n = Math.min(Math.min(len, mSendWindow),
+                        MuxFrame.MAX_PAYLOAD);
+                    mSendWindow -= n;
+                }
+                MuxCodec codec = mCodec;
+                if (codec != null)
+                    sendCompressed(codec, b, off, n);
+                else
+                    mSession.send(MuxFrame.DATA, mID, b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Frames are sent in the order they were compressed in, since each
+         * may refer to the data of the ones before.
+         */
+        private void sendCompressed(MuxCodec codec, byte[] b, int off,
+            int len) throws IOException {
+            synchronized (codec) {
+                int n = codec.compress(b, off, len);
+                if (n < 0)
+                    mSession.send(MuxFrame.DATA, mID, b, off, len);
+                else
+                    mSession.send(MuxFrame.DATA, MuxFrame.DEFLATE, mID,
+                        codec.getOutput(), 0, n);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            boolean done;
+            synchronized (mLock) {
+                if (mLocalFin || mReset)
+                    return;
+                mLocalFin = true;
+                done = mRemoteFin;
+                mLock.notifyAll();
+            }
+            mSession.send(MuxFrame.FIN, mID, null, 0, 0);
+            if (done)
+                release();
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package ee.ut.cs.mc.natpeer.network;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+import ee.ut.cs.mc.natpeer.util.Consts;
+
+/**
+ * Chooses local source addresses for punched connections. The addresses of
+ * all usable interfaces are enumerated once and cached until connectivity
+ * changes, so resolving an address does not touch the network stack.
+ * Addresses of the interface carrying the active network are preferred.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class AddressResolver {
+
+    private static final String[] WIFI_PREFIXES = { "wlan", "eth", "tiwlan" };
+
+    private static final String[] MOBILE_PREFIXES = { "rmnet", "ccmni",
+        "pdp", "ppp", "usb", "vsnet", "veth" };
+
+    private final Context mContext;
+    private volatile List<LocalAddress> mAddresses;
+    private int mGeneration;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    public AddressResolver(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Starts listening to connectivity changes.
+     */
+    public void register() {
+        mContext.registerReceiver(mReceiver, new IntentFilter(
+            ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    public void unregister() {
+        mContext.unregisterReceiver(mReceiver);
+    }
+
+    /**
+     * Drops the cached addresses, they are enumerated again on next use.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mAddresses = null;
+        Log.d(Consts.TAG, "AddressResolver: Addresses invalidated");
+    }
+
+    /**
+     * Returns the usable addresses, the preferred ones first.
+     */
+    public List<LocalAddress> getAddresses() {
+        List<LocalAddress> addresses = mAddresses;
+        if (addresses != null)
+            return addresses;
+        int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        addresses = enumerate();
+        synchronized (this) {
+            // keep a result which connectivity changes have made stale
+            // out of the cache
+            if (generation == mGeneration)
+                mAddresses = addresses;
+        }
+        return addresses;
+    }
+
+    /**
+     * Returns the address to use for a connection with a remote peer.
+     *
+     * @param remote
+     *            - address of the remote peer
+     * @return local address of the same family, null if there is none
+     */
+    public LocalAddress resolve(InetAddress remote) {
+        boolean ipv4 = remote instanceof Inet4Address;
+        for (LocalAddress address : getAddresses()) {
+            if (address.isIPv4() == ipv4)
+                return address;
+        }
+        return null;
+    }
+
+    private List<LocalAddress> enumerate() {
+        String[] preferred = preferredPrefixes();
+        List<LocalAddress> first = new ArrayList<LocalAddress>();
+        List<LocalAddress> rest = new ArrayList<LocalAddress>();
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface
+                .getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface ni = interfaces.nextElement();
+                if (!ni.isUp() || ni.isLoopback())
+                    continue;
+                List<LocalAddress> list = hasPrefix(ni.getName(), preferred)
+                    ? first : rest;
+                Enumeration<InetAddress> e = ni.getInetAddresses();
+                while (e.hasMoreElements()) {
+                    InetAddress address = e.nextElement();
+                    if (address.isLoopbackAddress()
+                        || address.isLinkLocalAddress()
+                        || address.isAnyLocalAddress())
+                        continue;
+                    list.add(new LocalAddress(ni.getName(), address));
+                }
+            }
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+        first.addAll(rest);
+        Log.d(Consts.TAG, "AddressResolver: Addresses " + first);
+        return Collections.unmodifiableList(first);
+    }
+
+    /**
+     * Returns the interface name prefixes of the active network.
+     */
+    private String[] preferredPrefixes() {
+        ConnectivityManager cm = (ConnectivityManager) mContext
+            .getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm == null ? null : cm.getActiveNetworkInfo();
+        if (info == null)
+            return new String[0];
+        return info.getType() == ConnectivityManager.TYPE_WIFI
+            ? WIFI_PREFIXES : MOBILE_PREFIXES;
+    }
+
+    private static boolean hasPrefix(String name, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,46 @@
+package ee.ut.cs.mc.natpeer.network;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/**
+ * An address of a local network interface.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class LocalAddress {
+
+    private final String mInterface;
+    private final InetAddress mAddress;
+
+    LocalAddress(String interFace, InetAddress address) {
+        mInterface = interFace;
+        mAddress = address;
+    }
+
+    /**
+     * Returns the name of the interface, e.g. wlan0 or rmnet0.
+     */
+    public String getInterface() {
+        return mInterface;
+    }
+
+    public InetAddress getAddress() {
+        return mAddress;
+    }
+
+    public String getHostAddress() {
+        return mAddress.getHostAddress();
+    }
+
+    public boolean isIPv4() {
+        return mAddress instanceof Inet4Address;
+    }
+
+    @Override
+    public String toString() {
+        return mInterface + "/" + getHostAddress();
+    }
+
+}
@@ -0,0 +1,302 @@
+package ee.ut.cs.mc.natpeer.punch;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+import ee.ut.cs.mc.natpeer.metrics.Counter;
+import ee.ut.cs.mc.natpeer.metrics.Metrics;
+import ee.ut.cs.mc.natpeer.util.Consts;
+
+/**
+ * Client of the privileged natpeer helper. The helper is started once with
+ * root privileges and then accepts punch commands over an abstract local
+ * socket, so no shell or privileged process has to be started per
+ * connection. The command and result layouts match np_cmd_t and np_res_t in
+ * natpeer.h.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class PunchHelper {
+
+    public static final String SOCKET_NAME = "natpeer";
+
+    private static final String EXECUTABLE = "/system/bin/natpeer-android";
+
+    private static final String LOG_FILE = "/sdcard/log.txt";
+
+    private static final byte CMD_VERSION = 1;
+
+    private static final byte CMD_PUNCH = 1;
+
+    private static final byte CMD_STOP = 2;
+
+    private static final int CMD_LENGTH = 40;
+
+    private static final int RES_LENGTH = 12;
+
+    private static final int IFNAMSIZ = 16;
+
+    private static final int START_TIMEOUT = 10000;
+
+    private static final int POLL_INTERVAL = 100;
+
+    private static final int COMMAND_TIMEOUT = 10000;
+
+    private static final int ROOT_UID = 0;
+
+    private final ConcurrentLinkedQueue<LocalSocket> mIdle;
+    private Process mProcess;
+
+    public PunchHelper() {
+        mIdle = new ConcurrentLinkedQueue<LocalSocket>();
+    }
+
+    /**
+     * Starts the helper unless one is already listening and waits until it
+     * accepts connections. Blocks, must not be called from the main thread.
+     *
+     * @throws IOException
+     *             if the helper did not come up in time
+     */
+    public synchronized void start() throws IOException {
+        try {
+            mIdle.offer(connect());
+            return;
+        } catch (IOException e) {
+            // not running yet
+        }
+
+        String cmd = EXECUTABLE + " --daemon -sock " + SOCKET_NAME + " -uid "
+            + android.os.Process.myUid() + " > " + LOG_FILE + " 2>&1";
+        mProcess = Runtime.getRuntime().exec(new String[] { "su", "-c", cmd });
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (true) {
+            try {
+                mIdle.offer(connect());
+                Log.i(Consts.TAG, "PunchHelper: Helper started");
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    mProcess.destroy();
+                    mProcess = null;
+                    throw new IOException("Helper did not start in time");
+                }
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while starting helper");
+            }
+        }
+    }
+
+    /**
+     * Stops the helper and releases all connections to it.
+     */
+    public synchronized void stop() {
+        try {
+            ByteBuffer cmd = ByteBuffer.allocate(CMD_LENGTH);
+            cmd.put(CMD_VERSION).put(CMD_STOP);
+            execute(cmd.array());
+        } catch (IOException e) {
+            Log.d(Consts.TAG, "PunchHelper: " + e.getMessage());
+        }
+        LocalSocket socket;
+        while ((socket = mIdle.poll()) != null)
+            close(socket);
+        if (mProcess != null) {
+            mProcess.destroy();
+            mProcess = null;
+        }
+    }
+
+    /**
+     * Responds to a connection request, see NativeLibrary.injectFrom. May be
+     * called concurrently.
+     *
+     * @param localAddr
+     *            - local IPv4 address of the service
+     * @param localPort
+     *            - local port of the service
+     * @param interFace
+     *            - network interface to inject the packet into
+     * @param remoteAddr
+     *            - IPv4 address of the remote peer
+     * @param remotePort
+     *            - port of the remote peer
+     * @param seqNumb
+     *            - TCP sequence number of the remote peer
+     * @param timeStamp
+     *            - TCP timestamp value of the remote peer
+     * @param nat
+     *            - whether the device is behind NAT
+     * @return result of the punch
+     * @throws IOException
+     *             if the helper could not be reached
+     */
+    public PunchResult punch(String localAddr, int localPort,
+        String interFace, String remoteAddr, int remotePort, long seqNumb,
+        long timeStamp, boolean nat) throws IOException {
+        return punch(localAddr, localPort, interFace, remoteAddr,
+            new int[] { remotePort }, seqNumb, timeStamp, nat)[0];
+    }
+
+    /**
+     * Punches towards several candidate ports of the remote peer at once.
+     * All commands are sent before any result is read, so the helper works
+     * on them in parallel.
+     *
+     * @param remotePorts
+     *            - candidate ports of the remote peer
+     * @return results in the order of the candidates
+     * @throws IOException
+     *             if the helper could not be reached
+     * @see #punch(String, int, String, String, int, long, long, boolean)
+     */
+    public PunchResult[] punch(String localAddr, int localPort,
+        String interFace, String remoteAddr, int[] remotePorts, long seqNumb,
+        long timeStamp, boolean nat) throws IOException {
+        byte[] name = interFace.getBytes("US-ASCII");
+        if (name.length >= IFNAMSIZ)
+            throw new IOException("Interface name too long: " + interFace);
+        byte[] local = ipv4(localAddr);
+        byte[] remote = ipv4(remoteAddr);
+
+        LocalSocket[] sockets = new LocalSocket[remotePorts.length];
+        PunchResult[] results = new PunchResult[remotePorts.length];
+        try {
+            for (int i = 0; i < remotePorts.length; i++) {
+                ByteBuffer cmd = ByteBuffer.allocate(CMD_LENGTH);
+                cmd.put(CMD_VERSION).put(CMD_PUNCH)
+                    .put((byte) (nat ? 1 : 0)).put((byte) 0);
+                cmd.put(local).put(remote);
+                cmd.putShort((short) localPort)
+                    .putShort((short) remotePorts[i]);
+                cmd.putInt((int) seqNumb).putInt((int) timeStamp);
+                cmd.put(name);
+                sockets[i] = send(cmd.array());
+            }
+            for (int i = 0; i < sockets.length; i++) {
+                results[i] = receive(sockets[i]);
+                sockets[i] = null;
+            }
+            return results;
+        } finally {
+            for (LocalSocket socket : sockets) {
+                if (socket != null)
+                    close(socket);
+            }
+        }
+    }
+
+    private PunchResult execute(byte[] cmd) throws IOException {
+        return receive(send(cmd));
+    }
+
+    /**
+     * Sends a command over an idle connection, or a new one if there is
+     * none.
+     *
+     * @return connection to read the result from
+     */
+    private LocalSocket send(byte[] cmd) throws IOException {
+        LocalSocket socket = mIdle.poll();
+        if (socket != null) {
+            try {
+                write(socket, cmd);
+                return socket;
+            } catch (IOException e) {
+                // stale connection to a helper which has been restarted
+                close(socket);
+                Metrics.getDefault().increment(Counter.RETRIES);
+            }
+        }
+        socket = connect();
+        try {
+            write(socket, cmd);
+            return socket;
+        } catch (IOException e) {
+            close(socket);
+            throw e;
+        }
+    }
+
+    private static void write(LocalSocket socket, byte[] cmd)
+        throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(cmd);
+        out.flush();
+    }
+
+    /**
+     * Reads the result of a command and returns the connection to the pool.
+     * The connection is closed if reading fails.
+     */
+    private PunchResult receive(LocalSocket socket) throws IOException {
+        try {
+            byte[] res = new byte[RES_LENGTH];
+            new DataInputStream(socket.getInputStream()).readFully(res);
+
+            ByteBuffer buffer = ByteBuffer.wrap(res);
+            buffer.get();
+            int status = buffer.get() & 0xff;
+            buffer.getShort();
+            int code = buffer.getInt();
+            long elapsed = buffer.getInt() & 0xffffffffL;
+            mIdle.offer(socket);
+            socket = null;
+            return new PunchResult(status, code, elapsed);
+        } finally {
+            if (socket != null)
+                close(socket);
+        }
+    }
+
+    /**
+     * Connects to the helper. Any app may bind an abstract socket name, so
+     * the socket is only used if it belongs to root, otherwise the punch
+     * parameters would go to whoever took the name first.
+     */
+    private LocalSocket connect() throws IOException {
+        LocalSocket socket = new LocalSocket();
+        try {
+            socket.connect(new LocalSocketAddress(SOCKET_NAME,
+                LocalSocketAddress.Namespace.ABSTRACT));
+            int uid = socket.getPeerCredentials().getUid();
+            if (uid != ROOT_UID)
+                throw new IOException("@" + SOCKET_NAME
+                    + " is not the helper, it belongs to uid " + uid);
+            socket.setSoTimeout(COMMAND_TIMEOUT);
+            return socket;
+        } catch (IOException e) {
+            close(socket);
+            throw e;
+        }
+    }
+
+    private static byte[] ipv4(String addr) throws IOException {
+        InetAddress inet = InetAddress.getByName(addr);
+        if (!(inet instanceof Inet4Address))
+            throw new IOException("Not an IPv4 address: " + addr);
+        return inet.getAddress();
+    }
+
+    private static void close(LocalSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+package ee.ut.cs.mc.natpeer.punch;
+
+/**
+ * Result of a command executed by the privileged helper.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class PunchResult {
+
+    public static final int STATUS_OK = 0;
+
+    public static final int STATUS_FAILED = 1;
+
+    public static final int STATUS_ERROR = 2;
+
+    private final int mStatus;
+    private final int mCode;
+    private final long mElapsedMicros;
+
+    public PunchResult(int status, int code, long elapsedMicros) {
+        mStatus = status;
+        mCode = code;
+        mElapsedMicros = elapsedMicros;
+    }
+
+    public boolean isSuccess() {
+        return mStatus == STATUS_OK;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * Returns the exit status of a failed punch, or the errno of an error.
+     */
+    public int getCode() {
+        return mCode;
+    }
+
+    /**
+     * Returns the time the helper spent on the command in microseconds.
+     */
+    public long getElapsedMicros() {
+        return mElapsedMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "PunchResult(status=" + mStatus + ", code=" + mCode
+            + ", elapsed=" + mElapsedMicros + "us)";
+    }
+
+}
@@ -0,0 +1,115 @@
+package ee.ut.cs.mc.natpeer.relay;
+
+import java.util.ArrayDeque;
+
+import ee.ut.cs.mc.natpeer.util.Consts;
+
+/**
+ * Decides which relayed session sends to its peer next. Sessions which have
+ * bytes for their peers are queued by {@link TrafficClass}, and the classes
+ * take turns in deficit round robin: each turn a class may send a quantum
+ * times its weight, handed to its sessions one after another. A bulk
+ * transfer thus waits for its turn like everyone else, while a class which
+ * had nothing to send is served first when it has something again. The
+ * uplink as a whole and each class may be capped, a class over its cap sits
+ * out until it has tokens again. Only used by the selector thread of a
+ * {@link RelayEngine}.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+class BandwidthScheduler {
+
+    /** Returned by {@link #run()} when nothing is waiting. */
+    static final long IDLE = -1;
+
+    private final TokenBucket mUplink;
+    private final ArrayDeque<TrafficClass> mRound;
+
+    BandwidthScheduler() {
+        mUplink = new TokenBucket(Consts.UPLINK_RATE);
+        mRound = new ArrayDeque<TrafficClass>();
+    }
+
+    TokenBucket getUplink() {
+        return mUplink;
+    }
+
+    /**
+     * Queues a session which has bytes for its peer and may write them.
+     */
+    void enqueue(RelaySession session) {
+        if (session.mQueued)
+            return;
+        session.mQueued = true;
+        TrafficClass traffic = session.getTraffic();
+        traffic.mBacklog.add(session);
+        if (!traffic.mActive) {
+            // a class which had nothing to send goes first, so a session
+            // which sends a little now and then does not wait out a round
+            traffic.mActive = true;
+            traffic.mDeficit = 0;
+            mRound.addFirst(traffic);
+        }
+    }
+
+    /**
+     * Gives every class with waiting sessions one turn.
+     *
+     * @return milliseconds until the next turn is due, 0 if straight away,
+     *         {@link #IDLE} if nothing is waiting
+     */
+    long run() {
+        long delay = Long.MAX_VALUE;
+        for (int turns = mRound.size(); turns > 0; turns--) {
+            long uplink = mUplink.delay();
+            if (uplink > 0)
+                return uplink;
+            TrafficClass traffic = mRound.poll();
+            long capped = traffic.getCap().delay();
+            if (capped > 0) {
+                // keeps its deficit, it has not had its turn
+                mRound.add(traffic);
+                delay = Math.min(delay, capped);
+                continue;
+            }
+            traffic.mDeficit += (long) Consts.TRAFFIC_QUANTUM
+                * traffic.getWeight();
+            serve(traffic);
+            if (traffic.mBacklog.isEmpty()) {
+                traffic.mActive = false;
+                traffic.mDeficit = 0;
+            } else {
+                mRound.add(traffic);
+                delay = 0;
+            }
+        }
+        return mRound.isEmpty() ? IDLE : delay;
+    }
+
+    /**
+     * Lets the sessions of a class send in turn until the class has used
+     * its deficit or has no more to send.
+     */
+    private void serve(TrafficClass traffic) {
+        TokenBucket cap = traffic.getCap();
+        while (traffic.mDeficit > 0 && !traffic.mBacklog.isEmpty()) {
+            long grant = Math.min(traffic.mDeficit, Math.min(
+                mUplink.available(), cap.available()));
+            if (grant <= 0)
+                return;
+            RelaySession session = traffic.mBacklog.poll();
+            session.mQueued = false;
+            int sent = session.send((int) Math.min(grant, Integer.MAX_VALUE));
+            traffic.mDeficit -= sent;
+            mUplink.consume(sent);
+            cap.consume(sent);
+            traffic.sent(sent);
+            if (session.wantsToSend()) {
+                session.mQueued = true;
+                traffic.mBacklog.add(session);
+            }
+        }
+    }
+
+}
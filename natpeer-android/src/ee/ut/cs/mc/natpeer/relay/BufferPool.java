@@ -0,0 +1,56 @@
+package ee.ut.cs.mc.natpeer.relay;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of direct buffers in power-of-two size classes. Not thread-safe, it is
+ * only used from the selector thread of a {@link RelayEngine}.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+class BufferPool {
+
+    static final int MIN_SIZE = 4 * 1024;
+
+    static final int MAX_SIZE = 64 * 1024;
+
+    private static final int MAX_POOLED = 16;
+
+    private final List<ArrayDeque<ByteBuffer>> mFree;
+
+    BufferPool() {
+        mFree = new ArrayList<ArrayDeque<ByteBuffer>>();
+        for (int size = MIN_SIZE; size <= MAX_SIZE; size <<= 1)
+            mFree.add(new ArrayDeque<ByteBuffer>());
+    }
+
+    /**
+     * Returns a cleared buffer of at least given size, capped at MAX_SIZE.
+     */
+    ByteBuffer acquire(int size) {
+        int index = indexOf(size);
+        ByteBuffer buffer = mFree.get(index).poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(MIN_SIZE << index);
+        buffer.clear();
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        ArrayDeque<ByteBuffer> free = mFree.get(indexOf(buffer.capacity()));
+        if (free.size() < MAX_POOLED)
+            free.offer(buffer);
+    }
+
+    private static int indexOf(int size) {
+        int index = 0;
+        for (int s = MIN_SIZE; s < size && s < MAX_SIZE; s <<= 1)
+            index++;
+        return index;
+    }
+
+}
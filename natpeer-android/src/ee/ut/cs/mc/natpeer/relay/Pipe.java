@@ -0,0 +1,142 @@
+package ee.ut.cs.mc.natpeer.relay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One direction of a {@link RelaySession}. Bytes are read from the source
+ * into a buffer which is sized to the observed read sizes, and written to the
+ * sink. When the source reaches EOF and the buffer is drained, the output of
+ * the sink is shut down, so the other direction can keep going.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+class Pipe {
+
+    /** Consecutive small reads after which the buffer is shrunk. */
+    private static final int SHRINK_AFTER = 8;
+
+    private final SocketChannel mSource;
+    private final SocketChannel mSink;
+    private final BufferPool mPool;
+    private ByteBuffer mBuffer;
+    private boolean mEof;
+    private boolean mShutdown;
+    private boolean mGrow;
+    private int mSmallReads;
+    private volatile long mBytes;
+
+    Pipe(SocketChannel source, SocketChannel sink, BufferPool pool) {
+        mSource = source;
+        mSink = sink;
+        mPool = pool;
+        mBuffer = pool.acquire(BufferPool.MIN_SIZE);
+    }
+
+    /**
+     * Reads from the source as long as there is room in the buffer.
+     *
+     * @return number of bytes read
+     */
+    int read() throws IOException {
+        resize();
+        int total = 0;
+        while (mBuffer.hasRemaining()) {
+            int n = mSource.read(mBuffer);
+            if (n < 0) {
+                mEof = true;
+                break;
+            }
+            if (n == 0)
+                break;
+            total += n;
+        }
+        if (!mBuffer.hasRemaining()) {
+            mGrow = true;
+            mSmallReads = 0;
+        } else if (total > 0 && total < mBuffer.capacity() / 4) {
+            mSmallReads++;
+        }
+        return total;
+    }
+
+    /**
+     * Writes buffered bytes to the sink, and shuts down its output once the
+     * source is exhausted.
+     *
+     * @return number of bytes written
+     */
+    int write() throws IOException {
+        return write(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #write()}, but writes at most given number of bytes.
+     */
+    int write(int max) throws IOException {
+        mBuffer.flip();
+        int limit = mBuffer.limit();
+        if (mBuffer.remaining() > max)
+            mBuffer.limit(mBuffer.position() + max);
+        int n = mSink.write(mBuffer);
+        mBuffer.limit(limit);
+        mBuffer.compact();
+        mBytes += n;
+        if (mEof && !hasPending() && !mShutdown) {
+            mShutdown = true;
+            mSink.socket().shutdownOutput();
+        }
+        return n;
+    }
+
+    boolean hasPending() {
+        return mBuffer.position() > 0;
+    }
+
+    boolean wantsRead() {
+        return !mEof && mBuffer.hasRemaining();
+    }
+
+    boolean isDone() {
+        return mEof && !hasPending();
+    }
+
+    long getBytes() {
+        return mBytes;
+    }
+
+    int getBufferSize() {
+        return mBuffer.capacity();
+    }
+
+    void release() {
+        if (mBuffer != null) {
+            mPool.release(mBuffer);
+            mBuffer = null;
+        }
+    }
+
+    /**
+     * Swaps the buffer for a larger one after it was filled by a single read,
+     * or for a smaller one after a run of small reads. Only done while the
+     * buffer is empty.
+     */
+    private void resize() {
+        if (hasPending())
+            return;
+        int size = mBuffer.capacity();
+        if (mGrow && size < BufferPool.MAX_SIZE)
+            size <<= 1;
+        else if (mSmallReads >= SHRINK_AFTER && size > BufferPool.MIN_SIZE)
+            size >>= 1;
+        else
+            return;
+        mGrow = false;
+        mSmallReads = 0;
+        mPool.release(mBuffer);
+        mBuffer = mPool.acquire(size);
+    }
+
+}
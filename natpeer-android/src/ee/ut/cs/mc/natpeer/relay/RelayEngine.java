@@ -0,0 +1,352 @@
+package ee.ut.cs.mc.natpeer.relay;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.util.Log;
+import ee.ut.cs.mc.natpeer.util.Consts;
+
+/**
+ * Relays punched TCP connections to local services. A single selector thread
+ * accepts connections on the relay ports and shuttles bytes between every
+ * client and its service, so any number of sessions can be open at the same
+ * time without a thread per connection. Each direction is closed separately,
+ * a client which has finished sending still receives the rest of the
+ * response. What is sent to clients is arbitrated by a
+ * {@link BandwidthScheduler} between the {@link TrafficClass}es of the
+ * services.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class RelayEngine implements Runnable {
+
+    private final BufferPool mPool;
+    private final ConcurrentLinkedQueue<Runnable> mTasks;
+    private final ConcurrentHashMap<Integer, ServerSocketChannel> mListeners;
+    private final Set<RelaySession> mSessions;
+    private final ConcurrentLinkedQueue<RelayWatch> mWatches;
+    private final BandwidthScheduler mScheduler;
+
+    private Selector mSelector;
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    private volatile int mPeakSessions;
+    private volatile long mTotalSessions;
+    private volatile long mClosedBytesInbound;
+    private volatile long mClosedBytesOutbound;
+
+    public RelayEngine() {
+        mPool = new BufferPool();
+        mTasks = new ConcurrentLinkedQueue<Runnable>();
+        mListeners = new ConcurrentHashMap<Integer, ServerSocketChannel>();
+        mSessions = Collections.newSetFromMap(
+            new ConcurrentHashMap<RelaySession, Boolean>());
+        mWatches = new ConcurrentLinkedQueue<RelayWatch>();
+        mScheduler = new BandwidthScheduler();
+    }
+
+    /**
+     * Starts the selector thread unless it is already running.
+     */
+    public synchronized void start() throws IOException {
+        if (mRunning)
+            return;
+        mSelector = Selector.open();
+        mRunning = true;
+        mThread = new Thread(this, "RelayEngine");
+        mThread.start();
+    }
+
+    /**
+     * Stops the selector thread, closing all listeners and sessions.
+     */
+    public synchronized void stop() {
+        if (!mRunning)
+            return;
+        mRunning = false;
+        mSelector.wakeup();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    /**
+     * Starts relaying connections accepted on given port to a target.
+     *
+     * @param port
+     *            - port to listen on, 0 for any free port
+     * @param target
+     *            - address of the local service
+     * @return port the relay listens on
+     * @throws IOException
+     *             if the port could not be bound
+     */
+    public int listen(int port, InetSocketAddress target) throws IOException {
+        return listen(port, target, new TrafficClass(target.toString()));
+    }
+
+    /**
+     * Starts relaying connections accepted on given port to a target, with
+     * the traffic of the sessions accounted to a class.
+     *
+     * @param port
+     *            - port to listen on, 0 for any free port
+     * @param target
+     *            - address of the local service
+     * @param traffic
+     *            - class of the traffic to and from the service
+     * @return port the relay listens on
+     * @throws IOException
+     *             if the port could not be bound
+     */
+    public int listen(int port, InetSocketAddress target,
+        TrafficClass traffic) throws IOException {
+        start();
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        int localPort = server.socket().getLocalPort();
+        mListeners.put(localPort, server);
+        final Route route = new Route(target, traffic);
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    server.register(mSelector, SelectionKey.OP_ACCEPT, route);
+                } catch (ClosedChannelException e) {
+                    // unlistened before it was registered
+                }
+            }
+        });
+        Log.i(Consts.TAG, "RelayEngine: Relaying port " + localPort + " to "
+            + target);
+        return localPort;
+    }
+
+    /**
+     * Stops accepting connections on given port. Sessions which have already
+     * been accepted are not affected.
+     */
+    public void unlisten(int port) {
+        ServerSocketChannel server = mListeners.remove(port);
+        if (server != null)
+            close(server);
+    }
+
+    /**
+     * Starts watching for a session from a remote host on a relay port. The
+     * watch has to be created before the connection can arrive.
+     *
+     * @param port
+     *            - relay port
+     * @param remote
+     *            - address of the remote host
+     * @return watch which has to be closed after use
+     */
+    public RelayWatch watch(int port, InetAddress remote) {
+        RelayWatch watch = new RelayWatch(this, port, remote);
+        mWatches.offer(watch);
+        return watch;
+    }
+
+    /**
+     * Caps the bytes sent to clients per second over all sessions. Set it a
+     * little below the uplink of the device, so that the queue builds up
+     * here, where the scheduler orders it, rather than in the network.
+     *
+     * @param bytesPerSecond
+     *            - the cap, 0 to remove it
+     */
+    public void setUplinkRate(long bytesPerSecond) {
+        mScheduler.getUplink().setRate(bytesPerSecond);
+    }
+
+    public long getUplinkRate() {
+        return mScheduler.getUplink().getRate();
+    }
+
+    /**
+     * Returns a snapshot of the counters, may be called from any thread.
+     */
+    public RelayStats getStats() {
+        long now = System.currentTimeMillis();
+        long inbound = mClosedBytesInbound;
+        long outbound = mClosedBytesOutbound;
+        List<RelayStats.Session> sessions = new ArrayList<RelayStats.Session>();
+        for (RelaySession session : mSessions) {
+            long in = session.getBytesInbound();
+            long out = session.getBytesOutbound();
+            inbound += in;
+            outbound += out;
+            sessions.add(new RelayStats.Session(session.getRemote(), in, out,
+                now - session.getStarted()));
+        }
+        return new RelayStats(sessions.size(), mPeakSessions, mTotalSessions,
+            inbound, outbound, sessions);
+    }
+
+    @Override
+    public void run() {
+        long delay = BandwidthScheduler.IDLE;
+        try {
+            while (mRunning) {
+                if (delay == BandwidthScheduler.IDLE)
+                    mSelector.select();
+                else if (delay == 0)
+                    mSelector.selectNow();
+                else
+                    mSelector.select(delay);
+                Runnable task;
+                while ((task = mTasks.poll()) != null)
+                    task.run();
+                Iterator<SelectionKey> keys = mSelector.selectedKeys()
+                    .iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept(key);
+                    else
+                        ((RelaySession) key.attachment()).handle(key);
+                }
+                delay = mScheduler.run();
+            }
+        } catch (IOException e) {
+            Log.d(Consts.TAG, "RelayEngine: " + e.getMessage());
+        } finally {
+            shutdown();
+        }
+    }
+
+    void unwatch(RelayWatch watch) {
+        mWatches.remove(watch);
+    }
+
+    void schedule(RelaySession session) {
+        mScheduler.enqueue(session);
+    }
+
+    void onClosed(RelaySession session) {
+        if (!mSessions.remove(session))
+            return;
+        mClosedBytesInbound += session.getBytesInbound();
+        mClosedBytesOutbound += session.getBytesOutbound();
+    }
+
+    private void execute(Runnable task) {
+        mTasks.offer(task);
+        mSelector.wakeup();
+    }
+
+    private void accept(SelectionKey key) {
+        ServerSocketChannel server = (ServerSocketChannel) key.channel();
+        Route route = (Route) key.attachment();
+        InetSocketAddress target = route.mTarget;
+        SocketChannel client;
+        while (true) {
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                Log.d(Consts.TAG, "RelayEngine: " + e.getMessage());
+                return;
+            }
+            if (client == null)
+                return;
+            RelaySession session = null;
+            try {
+                client.configureBlocking(false);
+                client.socket().setTcpNoDelay(true);
+                SocketChannel channel = SocketChannel.open();
+                session = new RelaySession(this, client, channel, mPool,
+                    route.mTraffic);
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                mSessions.add(session);
+                mTotalSessions++;
+                mPeakSessions = Math.max(mPeakSessions, mSessions.size());
+                session.open(mSelector, target);
+                notifyWatches(server.socket().getLocalPort(),
+                    session.getRemote());
+            } catch (IOException e) {
+                Log.d(Consts.TAG, "RelayEngine: Unable to relay to " + target
+                    + ": " + e.getMessage());
+                if (session != null)
+                    session.close();
+                else
+                    close(client);
+            }
+        }
+    }
+
+    private void notifyWatches(int port, InetSocketAddress remote) {
+        for (RelayWatch watch : mWatches) {
+            if (watch.onAccepted(port, remote))
+                return;
+        }
+    }
+
+    private void shutdown() {
+        for (Integer port : mListeners.keySet())
+            unlisten(port);
+        for (RelaySession session : new ArrayList<RelaySession>(mSessions))
+            session.close();
+        mTasks.clear();
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Log.i(Consts.TAG, "RelayEngine: Stopped, " + getStats());
+    }
+
+    private static void close(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Where the connections accepted on a relay port go.
+     */
+    private static class Route {
+
+        final InetSocketAddress mTarget;
+        final TrafficClass mTraffic;
+
+        Route(InetSocketAddress target, TrafficClass traffic) {
+            mTarget = target;
+            mTraffic = traffic;
+        }
+    }
+
+}
@@ -0,0 +1,209 @@
+package ee.ut.cs.mc.natpeer.relay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A relayed connection between a punched client and a local service. Both
+ * channels are non-blocking and driven by the selector thread of the
+ * {@link RelayEngine}, which is the only thread that touches the session
+ * apart from reading its counters. Bytes for the client are not written as
+ * soon as they are read, the session waits for its turn from the
+ * {@link BandwidthScheduler}.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+class RelaySession {
+
+    private final RelayEngine mEngine;
+    private final TrafficClass mTraffic;
+    private final SocketChannel mClient;
+    private final SocketChannel mTarget;
+    private final Pipe mInbound;
+    private final Pipe mOutbound;
+    private final InetSocketAddress mRemote;
+    private final long mStarted;
+    private SelectionKey mClientKey;
+    private SelectionKey mTargetKey;
+    private boolean mConnected;
+    private boolean mClosed;
+
+    /** Whether the client could not take all it was given. */
+    private boolean mBlocked;
+
+    /** Whether the session is queued by the scheduler. */
+    boolean mQueued;
+
+    RelaySession(RelayEngine engine, SocketChannel client,
+        SocketChannel target, BufferPool pool, TrafficClass traffic) {
+        mEngine = engine;
+        mTraffic = traffic;
+        mClient = client;
+        mTarget = target;
+        mInbound = new Pipe(client, target, pool);
+        mOutbound = new Pipe(target, client, pool);
+        mRemote = (InetSocketAddress) client.socket().getRemoteSocketAddress();
+        mStarted = System.currentTimeMillis();
+    }
+
+    /**
+     * Registers both channels and starts connecting to the target.
+     */
+    void open(Selector selector, InetSocketAddress target)
+        throws IOException {
+        mClientKey = mClient.register(selector, 0, this);
+        if (mTarget.connect(target)) {
+            mTargetKey = mTarget.register(selector, 0, this);
+            onConnected();
+        } else {
+            mTargetKey = mTarget.register(selector, SelectionKey.OP_CONNECT,
+                this);
+        }
+    }
+
+    /**
+     * Handles a ready key of either channel.
+     */
+    void handle(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                if (!mTarget.finishConnect())
+                    return;
+                onConnected();
+                return;
+            }
+            if (key.isReadable()) {
+                if (key == mClientKey) {
+                    mInbound.read();
+                    mTraffic.received(mInbound.write());
+                } else {
+                    mOutbound.read();
+                    if (!mOutbound.hasPending())
+                        // passes on EOF
+                        mOutbound.write();
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                if (key == mClientKey)
+                    mBlocked = false;
+                else
+                    mTraffic.received(mInbound.write());
+            }
+            if (wantsToSend())
+                mEngine.schedule(this);
+            checkDone();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Writes bytes for the client when the scheduler gives the session its
+     * turn.
+     *
+     * @param max
+     *            - maximum number of bytes to write
+     * @return number of bytes written
+     */
+    int send(int max) {
+        if (mClosed)
+            return 0;
+        try {
+            int n = mOutbound.write(max);
+            mBlocked = n < max && mOutbound.hasPending();
+            checkDone();
+            return n;
+        } catch (IOException e) {
+            close();
+            return 0;
+        }
+    }
+
+    /**
+     * Returns true if the session has bytes for the client which the client
+     * can take.
+     */
+    boolean wantsToSend() {
+        return !mClosed && mOutbound.hasPending() && !mBlocked;
+    }
+
+    TrafficClass getTraffic() {
+        return mTraffic;
+    }
+
+    /**
+     * Closes both channels and returns the buffers to the pool.
+     */
+    void close() {
+        if (mClosed)
+            return;
+        mClosed = true;
+        close(mClient);
+        close(mTarget);
+        mInbound.release();
+        mOutbound.release();
+        mEngine.onClosed(this);
+    }
+
+    long getBytesInbound() {
+        return mInbound.getBytes();
+    }
+
+    long getBytesOutbound() {
+        return mOutbound.getBytes();
+    }
+
+    InetSocketAddress getRemote() {
+        return mRemote;
+    }
+
+    long getStarted() {
+        return mStarted;
+    }
+
+    private void onConnected() {
+        mConnected = true;
+        updateInterest();
+    }
+
+    private void checkDone() {
+        if (mInbound.isDone() && mOutbound.isDone())
+            close();
+        else
+            updateInterest();
+    }
+
+    /**
+     * Sets the interest of both channels. The client channel is only watched
+     * for writing once it could not take what it was given, until then the
+     * scheduler decides when it is written to.
+     */
+    private void updateInterest() {
+        if (!mConnected || mClosed)
+            return;
+        mClientKey.interestOps(ops(mInbound, mBlocked));
+        mTargetKey.interestOps(ops(mOutbound, mInbound.hasPending()));
+    }
+
+    /**
+     * Interest of a channel which is the source of a pipe, and may be
+     * waiting for room to write.
+     */
+    private static int ops(Pipe from, boolean write) {
+        return (from.wantsRead() ? SelectionKey.OP_READ : 0)
+            | (write ? SelectionKey.OP_WRITE : 0);
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package ee.ut.cs.mc.natpeer.relay;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of the counters of a {@link RelayEngine}. Byte counts include both
+ * closed and currently open sessions.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class RelayStats {
+
+    private final int mActiveSessions;
+    private final int mPeakSessions;
+    private final long mTotalSessions;
+    private final long mBytesInbound;
+    private final long mBytesOutbound;
+    private final List<Session> mSessions;
+
+    RelayStats(int activeSessions, int peakSessions, long totalSessions,
+        long bytesInbound, long bytesOutbound, List<Session> sessions) {
+        mActiveSessions = activeSessions;
+        mPeakSessions = peakSessions;
+        mTotalSessions = totalSessions;
+        mBytesInbound = bytesInbound;
+        mBytesOutbound = bytesOutbound;
+        mSessions = Collections.unmodifiableList(sessions);
+    }
+
+    public int getActiveSessions() {
+        return mActiveSessions;
+    }
+
+    public int getPeakSessions() {
+        return mPeakSessions;
+    }
+
+    public long getTotalSessions() {
+        return mTotalSessions;
+    }
+
+    /**
+     * Returns the number of bytes relayed from clients to local services.
+     */
+    public long getBytesInbound() {
+        return mBytesInbound;
+    }
+
+    /**
+     * Returns the number of bytes relayed from local services to clients.
+     */
+    public long getBytesOutbound() {
+        return mBytesOutbound;
+    }
+
+    /**
+     * Returns the currently open sessions.
+     */
+    public List<Session> getSessions() {
+        return mSessions;
+    }
+
+    @Override
+    public String toString() {
+        return "active=" + mActiveSessions + " peak=" + mPeakSessions
+            + " total=" + mTotalSessions + " in=" + mBytesInbound + " out="
+            + mBytesOutbound;
+    }
+
+    /**
+     * Counters of a single open session.
+     */
+    public static class Session {
+
+        private final InetSocketAddress mRemote;
+        private final long mBytesInbound;
+        private final long mBytesOutbound;
+        private final long mDuration;
+
+        Session(InetSocketAddress remote, long bytesInbound,
+            long bytesOutbound, long duration) {
+            mRemote = remote;
+            mBytesInbound = bytesInbound;
+            mBytesOutbound = bytesOutbound;
+            mDuration = duration;
+        }
+
+        public InetSocketAddress getRemote() {
+            return mRemote;
+        }
+
+        public long getBytesInbound() {
+            return mBytesInbound;
+        }
+
+        public long getBytesOutbound() {
+            return mBytesOutbound;
+        }
+
+        /**
+         * Returns the time the session has been open in milliseconds.
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        /**
+         * Returns the average throughput in both directions in bytes per
+         * second.
+         */
+        public long getThroughput() {
+            return (mBytesInbound + mBytesOutbound) * 1000
+                / Math.max(mDuration, 1);
+        }
+
+        @Override
+        public String toString() {
+            return mRemote + " in=" + mBytesInbound + " out=" + mBytesOutbound
+                + " " + getThroughput() + " B/s";
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+package ee.ut.cs.mc.natpeer.relay;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for a session from a given remote host to be accepted on a relay
+ * port. Several candidate punches may be made towards a peer; the first
+ * connection which completes is the one the relay accepts.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class RelayWatch {
+
+    private final RelayEngine mEngine;
+    private final int mPort;
+    private final InetAddress mRemote;
+    private final CountDownLatch mLatch;
+    private volatile InetSocketAddress mAccepted;
+
+    RelayWatch(RelayEngine engine, int port, InetAddress remote) {
+        mEngine = engine;
+        mPort = port;
+        mRemote = remote;
+        mLatch = new CountDownLatch(1);
+    }
+
+    /**
+     * Waits until a session from the remote host has been accepted.
+     *
+     * @param timeout
+     *            - maximum time to wait in milliseconds
+     * @return remote address of the session, null if none was accepted in
+     *         time
+     */
+    public InetSocketAddress await(long timeout) throws InterruptedException {
+        mLatch.await(timeout, TimeUnit.MILLISECONDS);
+        return mAccepted;
+    }
+
+    /**
+     * Stops watching, must be called when the watch is no longer needed.
+     */
+    public void close() {
+        mEngine.unwatch(this);
+    }
+
+    /**
+     * Called by the selector thread for every accepted session.
+     *
+     * @return true if the session was the one being watched for
+     */
+    boolean onAccepted(int port, InetSocketAddress remote) {
+        if (port != mPort || !mRemote.equals(remote.getAddress())
+            || mLatch.getCount() == 0)
+            return false;
+        mAccepted = remote;
+        mLatch.countDown();
+        return true;
+    }
+
+}
@@ -0,0 +1,115 @@
+package ee.ut.cs.mc.natpeer.relay;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Limits a byte rate. Tokens accumulate at the rate up to a tenth of a
+ * second worth of them, and each byte sent takes one. Taking more than there
+ * are leaves a debt, which delays whoever comes next. A rate of zero means
+ * no limit. May be used from any thread.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+class TokenBucket {
+
+    private static final int MIN_BURST = 1500;
+
+    private long mRate;
+    private double mTokens;
+    private long mRefilled;
+
+    /**
+     * @param rate
+     *            - bytes per second, 0 for no limit
+     */
+    TokenBucket(long rate) {
+        mRefilled = System.nanoTime();
+        setRate(rate);
+        mTokens = getBurst();
+    }
+
+    synchronized void setRate(long rate) {
+        refill();
+        mRate = Math.max(rate, 0);
+        mTokens = Math.min(mTokens, getBurst());
+    }
+
+    synchronized long getRate() {
+        return mRate;
+    }
+
+    /**
+     * Returns the number of bytes which may be sent now, Long.MAX_VALUE if
+     * there is no limit.
+     */
+    synchronized long available() {
+        if (mRate == 0)
+            return Long.MAX_VALUE;
+        refill();
+        return Math.max((long) mTokens, 0);
+    }
+
+    /**
+     * Takes tokens for bytes which were sent.
+     */
+    synchronized void consume(long bytes) {
+        if (mRate == 0)
+            return;
+        refill();
+        mTokens -= bytes;
+    }
+
+    /**
+     * Returns milliseconds until at least one byte may be sent, 0 if one may
+     * be sent now.
+     */
+    synchronized long delay() {
+        if (mRate == 0)
+            return 0;
+        refill();
+        if (mTokens >= 1)
+            return 0;
+        return (long) Math.ceil((1 - mTokens) * 1000 / mRate);
+    }
+
+    /**
+     * Takes tokens for bytes about to be sent, waiting until the debt they
+     * leave has been paid off.
+     *
+     * @throws InterruptedIOException
+     *             if the thread is interrupted while waiting
+     */
+    void acquire(int bytes) throws InterruptedIOException {
+        long wait;
+        synchronized (this) {
+            if (mRate == 0)
+                return;
+            refill();
+            mTokens -= bytes;
+            wait = mTokens >= 0 ? 0 : (long) Math.ceil(-mTokens * 1000
+                / mRate);
+        }
+        if (wait == 0)
+            return;
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while shaping");
+        }
+    }
+
+    private long getBurst() {
+        return Math.max(mRate / 10, MIN_BURST);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (mRate != 0)
+            mTokens = Math.min(mTokens + (now - mRefilled) / 1e9 * mRate,
+                getBurst());
+        mRefilled = now;
+    }
+
+}
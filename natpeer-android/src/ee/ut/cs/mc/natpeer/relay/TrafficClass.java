@@ -0,0 +1,138 @@
+package ee.ut.cs.mc.natpeer.relay;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+
+import ee.ut.cs.mc.natpeer.metrics.RateMeter;
+import ee.ut.cs.mc.natpeer.util.Consts;
+
+/**
+ * Traffic of a service through the tunnels: how it shares the uplink with
+ * other services, how fast it may send at most, and how fast it is sending
+ * and receiving. When the uplink is contended each class gets a share in
+ * proportion to its weight, which the sessions of the class split evenly.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class TrafficClass {
+
+    private final String mName;
+    private final TokenBucket mCap;
+    private final RateMeter mInbound;
+    private final RateMeter mOutbound;
+    private volatile int mWeight;
+
+    /** Sessions with bytes to send, used by the selector thread only. */
+    final ArrayDeque<RelaySession> mBacklog;
+
+    /** Bytes the class may still send in the current round. */
+    long mDeficit;
+
+    /** Whether the class is in the round of the scheduler. */
+    boolean mActive;
+
+    public TrafficClass(String name) {
+        mName = name;
+        mCap = new TokenBucket(0);
+        mInbound = new RateMeter();
+        mOutbound = new RateMeter();
+        mWeight = Consts.TRAFFIC_WEIGHT;
+        mBacklog = new ArrayDeque<RelaySession>();
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * Sets the share of the uplink relative to other classes.
+     *
+     * @param weight
+     *            - at least 1
+     */
+    public void setWeight(int weight) {
+        if (weight < 1)
+            throw new IllegalArgumentException("Weight must be positive: "
+                + weight);
+        mWeight = weight;
+    }
+
+    /**
+     * Returns the cap on the bytes sent per second, 0 if there is none.
+     */
+    public long getRateLimit() {
+        return mCap.getRate();
+    }
+
+    /**
+     * Caps the bytes sent per second, whether or not the uplink is contended.
+     *
+     * @param bytesPerSecond
+     *            - the cap, 0 to remove it
+     */
+    public void setRateLimit(long bytesPerSecond) {
+        mCap.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Returns bytes per second received from peers lately.
+     */
+    public long getInboundRate() {
+        return mInbound.getRate();
+    }
+
+    /**
+     * Returns bytes per second sent to peers lately.
+     */
+    public long getOutboundRate() {
+        return mOutbound.getRate();
+    }
+
+    public long getBytesInbound() {
+        return mInbound.getTotal();
+    }
+
+    public long getBytesOutbound() {
+        return mOutbound.getTotal();
+    }
+
+    /**
+     * Waits until the cap lets given number of bytes be sent and counts
+     * them, for streams which are not sent by the relay.
+     *
+     * @throws InterruptedIOException
+     *             if the thread is interrupted while waiting
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        mCap.acquire(bytes);
+        mOutbound.add(bytes);
+    }
+
+    /**
+     * Counts bytes received from a peer.
+     */
+    public void received(int bytes) {
+        mInbound.add(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return mName + " weight=" + mWeight + " cap=" + getRateLimit()
+            + " in=" + getInboundRate() + " B/s out=" + getOutboundRate()
+            + " B/s";
+    }
+
+    TokenBucket getCap() {
+        return mCap;
+    }
+
+    void sent(int bytes) {
+        mOutbound.add(bytes);
+    }
+
+}
@@ -0,0 +1,490 @@
+package ee.ut.cs.mc.natpeer.rendezvous;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+import ee.ut.cs.mc.natpeer.metrics.Metrics;
+import ee.ut.cs.mc.natpeer.util.Consts;
+
+/**
+ * Long-lived, authenticated connection to the rendezvous server. Concurrent
+ * request/response exchanges are multiplexed over it by their request ID, so
+ * responding to a service request does not need a TCP handshake of its own.
+ * Messages are exchanged as {@link Frame}s, the server is asked to send
+ * endpoints and connection info in their binary form. While the channel is
+ * open the server pushes service requests over it directly instead of
+ * waking the device up through GCM.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class ControlChannel {
+
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    /** Delivered to pending exchanges when the connection is lost. */
+    private static final Object CLOSED = new Object();
+
+    private final String mHost;
+    private final int mPort;
+    private final ConcurrentHashMap<String, Exchange> mExchanges;
+    private final Object mWriteLock = new Object();
+
+    /** Held while connecting, so only one connection is made at a time. */
+    private final Object mConnectLock = new Object();
+
+    private volatile Socket mSocket;
+    private volatile Listener mListener;
+    private OutputStream mOut;
+    private String mDeviceID;
+    private String mGcmID;
+
+    /**
+     * Incremented when the channel is closed or its credentials change, a
+     * connection made meanwhile is not used.
+     */
+    private int mGeneration;
+
+    /**
+     * Creates a new ControlChannel instance, no connection is made until it is
+     * needed.
+     *
+     * @param host
+     *            - address of the rendezvous server
+     * @param port
+     *            - TCP port of the rendezvous server
+     */
+    public ControlChannel(String host, int port) {
+        mHost = host;
+        mPort = port;
+        mExchanges = new ConcurrentHashMap<String, Exchange>();
+    }
+
+    /**
+     * Sets the credentials which are used to authenticate the channel. An
+     * already open connection is closed if the credentials change.
+     *
+     * @param deviceID
+     *            - ID of the device obtained from the remote server
+     * @param gcmID
+     *            - GCM id the device was registered with
+     */
+    public synchronized void setCredentials(String deviceID, String gcmID) {
+        boolean changed = !equal(deviceID, mDeviceID)
+            || !equal(gcmID, mGcmID);
+        mDeviceID = deviceID;
+        mGcmID = gcmID;
+        if (changed) {
+            mGeneration++;
+            disconnect(mSocket);
+        }
+    }
+
+    /**
+     * Sets the listener which receives pushed messages and is notified when
+     * the connection is lost, may be null.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Opens the connection unless it is already open. The connection is made
+     * without holding the lock of the channel, so sending and closing are
+     * not held up by a slow server.
+     *
+     * @throws RejectedException
+     *             if the server rejected the credentials
+     * @throws IOException
+     *             if the connection could not be established
+     */
+    public void connect() throws IOException {
+        synchronized (mConnectLock) {
+            String deviceID;
+            String gcmID;
+            int generation;
+            synchronized (this) {
+                if (mSocket != null)
+                    return;
+                if (mDeviceID == null || mDeviceID.equals("")
+                    || mGcmID == null)
+                    throw new IOException("Control channel has no credentials");
+                deviceID = mDeviceID;
+                gcmID = mGcmID;
+                generation = mGeneration;
+            }
+
+            Socket socket = new Socket();
+            try {
+                socket.setKeepAlive(true);
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(mHost, mPort),
+                    Consts.SERVER_CONNECT_TIMEOUT);
+                OutputStream out = socket.getOutputStream();
+
+                JSONObject hello = new JSONObject();
+                hello.put("event", "hello");
+                hello.put("device", deviceID);
+                hello.put(Consts.GCM_ID, gcmID);
+                hello.put("binary", true);
+                hello.put("push", true);
+                hello.put("keepalive", Consts.KEEPALIVE_INTERVAL);
+                out.write(Frame.encodeJson(hello));
+                out.flush();
+
+                socket.setSoTimeout(Consts.SERVER_CONNECT_TIMEOUT);
+                Reader reader = new Reader(socket);
+                JSONObject reply = reader.readHandshake();
+                if (!"OK".equals(reply.optString("status")))
+                    throw new RejectedException("Control channel rejected: "
+                        + reply);
+                socket.setSoTimeout(0);
+
+                synchronized (this) {
+                    if (generation != mGeneration)
+                        throw new IOException(
+                            "Control channel closed while connecting");
+                    mOut = out;
+                    mSocket = socket;
+                }
+                new Thread(reader, "ControlChannel").start();
+                Log.i(Consts.TAG, "ControlChannel: Connected to " + mHost
+                    + ":" + mPort);
+            } catch (JSONException e) {
+                socket.close();
+                throw new IOException("Malformed handshake: "
+                    + e.getMessage());
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the connection is currently open.
+     */
+    public boolean isConnected() {
+        return mSocket != null;
+    }
+
+    /**
+     * Starts a new exchange for given request, connecting first if needed.
+     *
+     * @param requestID
+     *            - ID of the request the exchange belongs to
+     * @return exchange which has to be closed after use
+     * @throws IOException
+     *             if the channel could not be opened
+     */
+    public Exchange openExchange(String requestID) throws IOException {
+        connect();
+        Exchange exchange = new Exchange(requestID);
+        if (mExchanges.putIfAbsent(requestID, exchange) != null)
+            throw new IOException("Exchange already open: " + requestID);
+        return exchange;
+    }
+
+    /**
+     * Closes the connection and fails all pending exchanges.
+     */
+    public synchronized void close() {
+        mGeneration++;
+        disconnect(mSocket);
+    }
+
+    /**
+     * Sends a message which is not part of an exchange.
+     *
+     * @throws IOException
+     *             if the channel is not open or writing fails
+     */
+    public void send(JSONObject json) throws IOException {
+        byte[] bytes = Frame.encodeJson(json);
+        Socket socket;
+        OutputStream out;
+        synchronized (this) {
+            socket = mSocket;
+            out = mOut;
+        }
+        if (socket == null)
+            throw new IOException("Control channel is closed");
+        synchronized (mWriteLock) {
+            try {
+                out.write(bytes);
+                out.flush();
+            } catch (IOException e) {
+                disconnect(socket);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Sends a keepalive message, so that neither the server nor NATs on the
+     * way drop the idle connection.
+     *
+     * @throws IOException
+     *             if the channel is not open or writing fails
+     */
+    public void ping() throws IOException {
+        JSONObject ping = new JSONObject();
+        try {
+            ping.put("event", "ping");
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+        send(ping);
+    }
+
+    private void disconnect(Socket socket) {
+        synchronized (this) {
+            if (socket == null || socket != mSocket)
+                return;
+            mSocket = null;
+            mOut = null;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            for (Exchange exchange : mExchanges.values())
+                exchange.mQueue.offer(CLOSED);
+        }
+        Log.i(Consts.TAG, "ControlChannel: Disconnected");
+        Listener listener = mListener;
+        if (listener != null)
+            listener.onDisconnected();
+    }
+
+    private void dispatch(JSONObject json) {
+        String event = json.optString("event");
+        if (event.equals("pong"))
+            return;
+        if (event.equals("push")) {
+            onPush(json);
+            return;
+        }
+        Exchange exchange = mExchanges.get(json.optString("id"));
+        if (exchange != null)
+            exchange.mQueue.offer(json);
+        else
+            Log.d(Consts.TAG, "ControlChannel: Dropped message: " + json);
+    }
+
+    /**
+     * Acknowledges a pushed message right away, the server falls back to GCM
+     * if the acknowledgement does not arrive in time.
+     */
+    private void onPush(JSONObject json) {
+        long receivedAt = Metrics.now();
+        JSONObject message = json.optJSONObject("message");
+        Listener listener = mListener;
+        if (message == null || listener == null) {
+            Log.d(Consts.TAG, "ControlChannel: Dropped push: " + json);
+            return;
+        }
+        try {
+            JSONObject ack = new JSONObject();
+            ack.put("event", "push_ack");
+            ack.put("id", message.optString("id"));
+            send(ack);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            Log.d(Consts.TAG, "ControlChannel: Unable to acknowledge push: "
+                + e.getMessage());
+        }
+        listener.onPush(message, receivedAt);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Reads messages from the server and routes them to their exchanges.
+     */
+    private class Reader implements Runnable, FrameDecoder.Handler {
+
+        private final Socket mReaderSocket;
+        private final InputStream mIn;
+        private final FrameDecoder mDecoder;
+        private final byte[] mBytes;
+        private final ByteBuffer mBuffer;
+        private JSONObject mHandshake;
+
+        /**
+         * Messages which arrived along with the reply to the handshake. They
+         * are dispatched once the channel is open, so that a push among them
+         * can be acknowledged.
+         */
+        private final List<JSONObject> mEarly;
+        private boolean mStarted;
+
+        Reader(Socket socket) throws IOException {
+            mReaderSocket = socket;
+            mIn = socket.getInputStream();
+            mDecoder = new FrameDecoder();
+            mBytes = new byte[READ_BUFFER_SIZE];
+            mBuffer = ByteBuffer.wrap(mBytes);
+            mEarly = new ArrayList<JSONObject>();
+        }
+
+        /**
+         * Reads until the reply to the handshake has arrived.
+         */
+        JSONObject readHandshake() throws IOException {
+            while (mHandshake == null) {
+                if (!read())
+                    throw new IOException("Control channel closed by server");
+            }
+            return mHandshake;
+        }
+
+        @Override
+        public void run() {
+            mStarted = true;
+            for (JSONObject json : mEarly)
+                dispatch(json);
+            mEarly.clear();
+            try {
+                while (read())
+                    ;
+            } catch (IOException e) {
+                Log.d(Consts.TAG, "ControlChannel: " + e.getMessage());
+            }
+            disconnect(mReaderSocket);
+        }
+
+        @Override
+        public void onFrame(byte type, ByteBuffer payload)
+            throws ProtocolException {
+            JSONObject json = Frame.decode(type, payload);
+            if (mHandshake == null)
+                mHandshake = json;
+            else if (!mStarted)
+                mEarly.add(json);
+            else
+                dispatch(json);
+        }
+
+        private boolean read() throws IOException {
+            int n = mIn.read(mBytes);
+            if (n < 0)
+                return false;
+            mBuffer.clear();
+            mBuffer.limit(n);
+            mDecoder.decode(mBuffer, this);
+            return true;
+        }
+    }
+
+    /**
+     * Receives messages the server pushes over the channel. Called on the
+     * reader thread, so implementations must not block.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the server pushed a message, which has the same
+         * content as the data of a GCM message.
+         *
+         * @param message
+         *            - pushed message
+         * @param receivedAt
+         *            - time the message arrived at, see
+         *            {@link Metrics#now()}
+         */
+        void onPush(JSONObject message, long receivedAt);
+
+        /**
+         * Called when an open connection was lost or closed.
+         */
+        void onDisconnected();
+    }
+
+    /**
+     * Thrown when the server does not accept the credentials of the channel,
+     * i.e. the device is not registered there, or with another GCM id.
+     */
+    public static class RejectedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A single request/response exchange on the channel.
+     */
+    public class Exchange {
+
+        private final String mRequestID;
+        private final BlockingQueue<Object> mQueue;
+
+        Exchange(String requestID) {
+            mRequestID = requestID;
+            mQueue = new LinkedBlockingQueue<Object>();
+        }
+
+        /**
+         * Sends a message which belongs to this exchange.
+         */
+        public void send(JSONObject json) throws IOException {
+            ControlChannel.this.send(json);
+        }
+
+        /**
+         * Waits for the next message addressed to this exchange.
+         *
+         * @param timeout
+         *            - maximum time to wait in milliseconds
+         * @return received message
+         * @throws IOException
+         *             if the channel was closed or nothing arrived in time
+         */
+        public JSONObject receive(long timeout) throws IOException {
+            Object message;
+            try {
+                message = mQueue.poll(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for "
+                    + mRequestID);
+            }
+            if (message == null)
+                throw new SocketTimeoutException("No response for "
+                    + mRequestID);
+            if (message == CLOSED)
+                throw new IOException("Control channel closed");
+            return (JSONObject) message;
+        }
+
+        /**
+         * Releases the exchange, late messages for it are dropped.
+         */
+        public void close() {
+            mExchanges.remove(mRequestID, this);
+        }
+    }
+
+}
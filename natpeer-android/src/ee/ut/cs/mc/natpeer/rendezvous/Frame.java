@@ -0,0 +1,168 @@
+package ee.ut.cs.mc.natpeer.rendezvous;
+
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Wire format of the rendezvous TCP protocol. Every message is sent as a
+ * frame which consists of a one byte type, a four byte big-endian payload
+ * length and the payload itself:
+ *
+ * <pre>
+ * +------+----------+----------------+
+ * | type | length   | payload        |
+ * | 1 B  | 4 B (BE) | length bytes   |
+ * +------+----------+----------------+
+ * </pre>
+ *
+ * JSON frames carry a single UTF-8 JSON document. Endpoint and connection
+ * info frames carry the same fields as their JSON counterparts in binary:
+ * strings and addresses are prefixed with a one byte length, ports are
+ * unsigned 16-bit and the sequence number and timestamp unsigned 32-bit
+ * integers. Endpoints may be followed by a one byte count and that many
+ * candidate peer ports.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public final class Frame {
+
+    public static final byte TYPE_JSON = 0x01;
+
+    public static final byte TYPE_ENDPOINTS = 0x02;
+
+    public static final byte TYPE_CONNECTION_INFO = 0x03;
+
+    public static final int HEADER_LENGTH = 5;
+
+    public static final int MAX_LENGTH = 64 * 1024;
+
+    private static final String CHARSET = "UTF-8";
+
+    private Frame() {
+    }
+
+    /**
+     * Returns true if the first byte of a stream is a frame type rather than
+     * the beginning of a bare JSON document.
+     */
+    public static boolean isFrameType(int b) {
+        return b >= TYPE_JSON && b <= TYPE_CONNECTION_INFO;
+    }
+
+    /**
+     * Encodes a JSON document as a frame.
+     *
+     * @param json
+     *            - document to be encoded
+     * @return the whole frame, ready to be written
+     */
+    public static byte[] encodeJson(JSONObject json) {
+        byte[] payload;
+        try {
+            payload = json.toString().getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        frame.put(TYPE_JSON).putInt(payload.length).put(payload);
+        return frame.array();
+    }
+
+    /**
+     * Decodes a frame payload into its JSON representation. Binary frames are
+     * converted to the same fields that the JSON variant would have.
+     *
+     * @param type
+     *            - frame type
+     * @param payload
+     *            - frame payload, consumed by this method
+     * @return decoded message
+     * @throws ProtocolException
+     *             if the payload is malformed or the type is unknown
+     */
+    public static JSONObject decode(byte type, ByteBuffer payload)
+        throws ProtocolException {
+        try {
+            switch (type) {
+            case TYPE_JSON:
+                return new JSONObject(readString(payload,
+                    payload.remaining()));
+
+            case TYPE_ENDPOINTS:
+                JSONObject endpoints = new JSONObject();
+                endpoints.put("id",
+                    readString(payload, unsigned(payload.get())));
+                endpoints.put("ip", readAddress(payload));
+                endpoints.put("port", payload.getShort() & 0xffff);
+                endpoints.put("peer_ip", readAddress(payload));
+                endpoints.put("peer_port", payload.getShort() & 0xffff);
+                if (payload.hasRemaining()) {
+                    JSONArray ports = new JSONArray();
+                    for (int n = unsigned(payload.get()); n > 0; n--)
+                        ports.put(payload.getShort() & 0xffff);
+                    endpoints.put("peer_ports", ports);
+                }
+                return endpoints;
+
+            case TYPE_CONNECTION_INFO:
+                JSONObject info = new JSONObject();
+                info.put("id", readString(payload, unsigned(payload.get())));
+                info.put("isn", payload.getInt() & 0xffffffffL);
+                info.put("ts_val", payload.getInt() & 0xffffffffL);
+                return info;
+
+            default:
+                throw new ProtocolException("Unknown frame type: " + type);
+            }
+        } catch (JSONException e) {
+            throw new ProtocolException("Malformed JSON frame: "
+                + e.getMessage());
+        } catch (RuntimeException e) {
+            throw new ProtocolException("Malformed frame of type " + type);
+        }
+    }
+
+    private static int unsigned(byte b) {
+        return b & 0xff;
+    }
+
+    private static String readString(ByteBuffer buffer, int length)
+        throws ProtocolException {
+        if (length > buffer.remaining())
+            throw new ProtocolException("Truncated string");
+        try {
+            if (!buffer.hasArray()) {
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                return new String(bytes, CHARSET);
+            }
+            String s = new String(buffer.array(), buffer.arrayOffset()
+                + buffer.position(), length, CHARSET);
+            buffer.position(buffer.position() + length);
+            return s;
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String readAddress(ByteBuffer buffer)
+        throws ProtocolException {
+        byte[] addr = new byte[unsigned(buffer.get())];
+        buffer.get(addr);
+        try {
+            return InetAddress.getByAddress(addr).getHostAddress();
+        } catch (UnknownHostException e) {
+            throw new ProtocolException("Invalid address length: "
+                + addr.length);
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+package ee.ut.cs.mc.natpeer.rendezvous;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder for {@link Frame}s. Input may be split or coalesced at
+ * arbitrary byte boundaries. Complete frames are handed out as slices of the
+ * input without copying; only a frame which is cut off at the end of the input
+ * is copied into an internal buffer until the rest of it arrives.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class FrameDecoder {
+
+    /**
+     * Receives decoded frames. The payload buffer is only valid for the
+     * duration of the call.
+     */
+    public interface Handler {
+        void onFrame(byte type, ByteBuffer payload) throws IOException;
+    }
+
+    private final int mMaxLength;
+    private ByteBuffer mPending;
+
+    /**
+     * Creates a new FrameDecoder instance.
+     *
+     * @param maxLength
+     *            - largest payload length which is accepted
+     */
+    public FrameDecoder(int maxLength) {
+        mMaxLength = maxLength;
+        mPending = ByteBuffer.allocate(256);
+        mPending.flip();
+    }
+
+    public FrameDecoder() {
+        this(Frame.MAX_LENGTH);
+    }
+
+    /**
+     * Decodes all complete frames from the input and keeps the remainder.
+     *
+     * @param in
+     *            - input bytes, fully consumed by this method
+     * @param handler
+     *            - receiver of the decoded frames
+     * @throws ProtocolException
+     *             if a frame is too large, the stream is corrupt from then on
+     * @throws IOException
+     *             if the handler fails
+     */
+    public void decode(ByteBuffer in, Handler handler) throws IOException {
+        if (mPending.hasRemaining()) {
+            if (!completePending(in))
+                return;
+            dispatch(mPending, handler);
+            mPending.clear().flip();
+        }
+        while (in.hasRemaining()) {
+            if (in.remaining() < Frame.HEADER_LENGTH
+                || in.remaining() < Frame.HEADER_LENGTH
+                    + payloadLength(in, in.position())) {
+                keep(in);
+                return;
+            }
+            dispatch(in, handler);
+        }
+    }
+
+    /**
+     * Returns the number of buffered bytes of an incomplete frame.
+     */
+    public int pending() {
+        return mPending.remaining();
+    }
+
+    /**
+     * Moves bytes from the input to the pending frame until it is complete.
+     *
+     * @return true if the pending frame is now complete
+     */
+    private boolean completePending(ByteBuffer in) throws ProtocolException {
+        if (mPending.remaining() < Frame.HEADER_LENGTH) {
+            transfer(in, Frame.HEADER_LENGTH - mPending.remaining());
+            if (mPending.remaining() < Frame.HEADER_LENGTH)
+                return false;
+        }
+        int missing = Frame.HEADER_LENGTH
+            + payloadLength(mPending, mPending.position())
+            - mPending.remaining();
+        transfer(in, missing);
+        return mPending.remaining() == Frame.HEADER_LENGTH
+            + payloadLength(mPending, mPending.position());
+    }
+
+    /**
+     * Hands the frame at the position of the buffer to the handler and moves
+     * the position past it.
+     */
+    private void dispatch(ByteBuffer buffer, Handler handler)
+        throws IOException {
+        int start = buffer.position();
+        int length = payloadLength(buffer, start);
+        int end = start + Frame.HEADER_LENGTH + length;
+        int limit = buffer.limit();
+        byte type = buffer.get(start);
+
+        buffer.position(start + Frame.HEADER_LENGTH).limit(end);
+        ByteBuffer payload = buffer.slice();
+        buffer.limit(limit).position(end);
+        handler.onFrame(type, payload);
+    }
+
+    private int payloadLength(ByteBuffer buffer, int start)
+        throws ProtocolException {
+        int length = buffer.getInt(start + 1);
+        if (length < 0 || length > mMaxLength)
+            throw new ProtocolException("Invalid frame length: " + length);
+        return length;
+    }
+
+    /**
+     * Appends up to count bytes from the input to the pending buffer.
+     */
+    private void transfer(ByteBuffer in, int count) {
+        int n = Math.min(count, in.remaining());
+        ensureCapacity(mPending.remaining() + n);
+        mPending.compact();
+        int limit = in.limit();
+        in.limit(in.position() + n);
+        mPending.put(in);
+        in.limit(limit);
+        mPending.flip();
+    }
+
+    private void keep(ByteBuffer in) {
+        transfer(in, in.remaining());
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (mPending.capacity() >= capacity)
+            return;
+        int size = mPending.capacity();
+        while (size < capacity)
+            size *= 2;
+        ByteBuffer grown = ByteBuffer.allocate(size);
+        grown.put(mPending);
+        grown.flip();
+        mPending = grown;
+    }
+
+}
@@ -0,0 +1,73 @@
+package ee.ut.cs.mc.natpeer.request;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Table of incoming connection requests which are being handled. The same
+ * request may arrive more than once, through GCM redelivery or over both the
+ * control channel and GCM, so request IDs are remembered for a while and
+ * repeated ones are dropped before they are responded to. Requests with
+ * different IDs are not merged: each needs a response of its own, as the
+ * server waits for one per request, and each punch answers the SYN of a
+ * different connection of the peer.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class RequestTable {
+
+    /** Admissions between sweeps of expired request IDs. */
+    private static final int SWEEP_INTERVAL = 64;
+
+    private final long mWindow;
+    private final ConcurrentHashMap<String, Long> mSeen;
+    private final AtomicInteger mAdmissions;
+
+    /**
+     * @param window
+     *            - milliseconds for which a request ID is remembered
+     */
+    public RequestTable(long window) {
+        mWindow = window;
+        mSeen = new ConcurrentHashMap<String, Long>();
+        mAdmissions = new AtomicInteger();
+    }
+
+    /**
+     * Admits a request unless a request with the same ID has been admitted
+     * within the window.
+     *
+     * @return true if the request is new and has to be handled
+     */
+    public boolean admit(String requestID) {
+        long now = System.currentTimeMillis();
+        if (mAdmissions.incrementAndGet() % SWEEP_INTERVAL == 0)
+            sweep(now);
+        Long seen = mSeen.putIfAbsent(requestID, now);
+        if (seen == null)
+            return true;
+        if (now - seen < mWindow)
+            return false;
+        // expired but not swept yet, admit again unless someone else did
+        return mSeen.replace(requestID, seen, now);
+    }
+
+    /**
+     * Returns the number of request IDs currently remembered.
+     */
+    public int size() {
+        return mSeen.size();
+    }
+
+    private void sweep(long now) {
+        Iterator<Map.Entry<String, Long>> it = mSeen.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue() >= mWindow)
+                it.remove();
+        }
+    }
+
+}
@@ -1,26 +1,55 @@
 package ee.ut.cs.mc.natpeer.service;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.app.Service;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.IBinder;
 import android.util.Log;
 
 import com.google.android.gcm.GCMRegistrar;
 
+import ee.ut.cs.mc.natpeer.event.EventBus;
+import ee.ut.cs.mc.natpeer.event.EventHandler;
+import ee.ut.cs.mc.natpeer.event.MessageReceivedEvent;
+import ee.ut.cs.mc.natpeer.event.RegisteredEvent;
+import ee.ut.cs.mc.natpeer.event.UnregisteredEvent;
 import ee.ut.cs.mc.natpeer.externalservice.ExternalService;
 import ee.ut.cs.mc.natpeer.externalservice.ExternalServiceManager;
 import ee.ut.cs.mc.natpeer.jni.NativeLibrary;
-import ee.ut.cs.mc.natpeer.util.Common;
+import ee.ut.cs.mc.natpeer.metrics.Counter;
+import ee.ut.cs.mc.natpeer.metrics.Metrics;
+import ee.ut.cs.mc.natpeer.metrics.Phase;
+import ee.ut.cs.mc.natpeer.network.AddressResolver;
+import ee.ut.cs.mc.natpeer.network.LocalAddress;
+import ee.ut.cs.mc.natpeer.punch.PunchHelper;
+import ee.ut.cs.mc.natpeer.punch.PunchResult;
+import ee.ut.cs.mc.natpeer.relay.RelayWatch;
+import ee.ut.cs.mc.natpeer.relay.TrafficClass;
+import ee.ut.cs.mc.natpeer.rendezvous.ControlChannel;
+import ee.ut.cs.mc.natpeer.request.RequestTable;
+import ee.ut.cs.mc.natpeer.settings.Settings;
+import ee.ut.cs.mc.natpeer.settings.SettingsStore;
+import ee.ut.cs.mc.natpeer.task.Lane;
+import ee.ut.cs.mc.natpeer.task.TaskScheduler;
+import ee.ut.cs.mc.natpeer.task.TaskStats;
 import ee.ut.cs.mc.natpeer.util.Consts;
+import ee.ut.cs.mc.natpeer.util.ControlOutbox;
 import ee.ut.cs.mc.natpeer.util.ServerCommon;
 
 /**
@@ -32,60 +61,173 @@ import ee.ut.cs.mc.natpeer.util.ServerCommon;
  */
 public class NATPeerAndroidService extends Service {
 
+    private static final String TAG_REGISTRATION = "registration";
+
+    private static final String TAG_SERVICES = "services";
+
+    private static final String TAG_CONNECTION = "connection";
+
+    private static final String TAG_KEEPALIVE = "keepalive";
+
+    private static final String TAG_RECONNECT = "reconnect";
+
     private final IBinder mBinder = new LocalBinder();
 
+    private final SettingsStore mSettings = new SettingsStore(this);
+
     private final ExternalServiceManager mManager = new ExternalServiceManager(
-        this);
+        mSettings);
 
-    private AsyncTask<JSONObject, Void, Void> mTask;
+    private final ControlChannel mChannel = new ControlChannel(
+        Consts.SERVER_IP, Consts.SERVER_TCP_PORT);
 
-    private boolean mIsRegistered;
+    private final PunchHelper mHelper = new PunchHelper();
 
-    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+    private final AddressResolver mResolver = new AddressResolver(this);
 
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            try {
-                String msg = intent.getExtras().getString(Consts.MESSAGE_EXTRA);
-                JSONObject json = new JSONObject(msg);
-                String event = json.getString(Consts.EVENT_TYPE);
-                Log.i(Consts.TAG, "EVENT: " + event);
-                if (event.equals(Consts.EVENT_GCM_REGISTERED)) {
-                    handleGCMRegistration(json);
-                } else if (event.equals(Consts.EVENT_GCM_UNREGISTERED)) {
-                    handleGCMUnregistration(json);
-                } else if (event.equals(Consts.EVENT_GCM_MESSAGE_RECEIVED)) {
-                    handleGCMMessageReceived(json);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
+    private final TaskScheduler mScheduler = new TaskScheduler();
+
+    private final ControlOutbox mOutbox = new ControlOutbox(mScheduler);
+
+    private final Metrics mMetrics = Metrics.getDefault();
+
+    private final RequestTable mRequests = new RequestTable(
+        Consts.REQUEST_WINDOW);
+
+    private volatile boolean mIsRegistered;
+
+    /**
+     * Whether the registration was restored from cache and has not been
+     * confirmed by the server yet.
+     */
+    private volatile boolean mRestored;
+
+    /**
+     * Services added but not yet sent to the server, by name. They are
+     * held until the device is registered and the radio is active, and
+     * registered in a single request.
+     */
+    private final Map<String, Integer> mPendingServices =
+        new LinkedHashMap<String, Integer>();
+
+    /** Time the service was created at, see {@link Metrics#now()}. */
+    private long mCreatedAt;
+
+    private final AtomicBoolean mStarted = new AtomicBoolean();
+
+    private final AtomicBoolean mFirstRequest = new AtomicBoolean();
+
+    /** Whether the control channel is reopened when it is lost. */
+    private volatile boolean mChannelWanted;
+
+    private final AtomicBoolean mReconnectPending = new AtomicBoolean();
+
+    private volatile int mReconnectDelay = Consts.RECONNECT_MIN_DELAY;
+
+    private final EventHandler<RegisteredEvent> mRegisteredHandler =
+        new EventHandler<RegisteredEvent>() {
+
+            @Override
+            public void onEvent(RegisteredEvent event) {
+                handleGCMRegistration(event.getGcmID());
             }
-        }
-    };
+        };
+
+    private final EventHandler<UnregisteredEvent> mUnregisteredHandler =
+        new EventHandler<UnregisteredEvent>() {
+
+            @Override
+            public void onEvent(UnregisteredEvent event) {
+                handleGCMUnregistration();
+            }
+        };
+
+    private final EventHandler<MessageReceivedEvent> mMessageHandler =
+        new EventHandler<MessageReceivedEvent>() {
+
+            @Override
+            public void onEvent(MessageReceivedEvent event) {
+                handleGCMMessageReceived(event.getMessage(),
+                    event.getReceivedAt());
+            }
+        };
+
+    private final ControlChannel.Listener mChannelListener =
+        new ControlChannel.Listener() {
+
+            @Override
+            public void onPush(JSONObject message, long receivedAt) {
+                long sentAt = message.optLong(Consts.GCM_TIMESTAMP);
+                if (sentAt > 0)
+                    mMetrics.recordDuration(Phase.CHANNEL_DELIVERY,
+                        (System.currentTimeMillis() - sentAt) * 1000, true);
+                handleGCMMessageReceived(message, receivedAt);
+            }
+
+            @Override
+            public void onDisconnected() {
+                if (mChannelWanted)
+                    scheduleReconnect();
+            }
+        };
 
     @Override
     public void onCreate() {
+        mCreatedAt = Metrics.now();
         Log.i(Consts.TAG, "Service started");
+        mSettings.load();
         mIsRegistered = false;
+        restoreRegistration();
         checkGCMStatus();
-        registerReceiver(mReceiver,
-            new IntentFilter(Consts.MESSAGE_SENT_ACTION));
+        EventBus bus = EventBus.getDefault();
+        bus.register(RegisteredEvent.class, mRegisteredHandler);
+        bus.register(UnregisteredEvent.class, mUnregisteredHandler);
+        bus.register(MessageReceivedEvent.class, mMessageHandler);
+        mChannel.setListener(mChannelListener);
+        mResolver.register();
+        mScheduler.submit(Lane.HOUSEKEEPING, null, TaskScheduler.NO_DEADLINE,
+            new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        mHelper.start();
+                    } catch (IOException e) {
+                        Log.d(Consts.TAG, "Unable to start helper: "
+                            + e.getMessage());
+                    }
+                }
+            });
     }
 
     @Override
     public void onDestroy() {
-        unregisterReceiver(mReceiver);
-        new AsyncTask<Void, Void, Void>() {
-
-            @Override
-            protected Void doInBackground(Void... params) {
-                mManager.onDestroy();
-                if (mTask != null)
-                    mTask.cancel(true);
-                Log.i(Consts.TAG, "Service stopped");
-                return null;
-            }
-        }.execute();
+        EventBus bus = EventBus.getDefault();
+        bus.unregister(RegisteredEvent.class, mRegisteredHandler);
+        bus.unregister(UnregisteredEvent.class, mUnregisteredHandler);
+        bus.unregister(MessageReceivedEvent.class, mMessageHandler);
+        mResolver.unregister();
+        mScheduler.cancel(TAG_REGISTRATION);
+        mScheduler.cancel(TAG_CONNECTION);
+        mChannelWanted = false;
+        cancelKeepalive();
+        mScheduler.cancel(TAG_RECONNECT);
+        // held unregistrations would be lost once the scheduler is shut
+        // down, they are made now and the cleanup is queued after them in
+        // the same lane, which shutdown() still lets finish
+        mOutbox.drain();
+        mScheduler.submit(Lane.REGISTRATION, null, TaskScheduler.NO_DEADLINE,
+            new Runnable() {
+
+                @Override
+                public void run() {
+                    mManager.onDestroy();
+                    mChannel.close();
+                    mHelper.stop();
+                    Log.i(Consts.TAG, "Service stopped");
+                }
+            });
+        mScheduler.shutdown();
     }
 
     @Override
@@ -93,6 +235,40 @@ public class NATPeerAndroidService extends Service {
         return mBinder;
     }
 
+    /**
+     * Writes the connection metrics, scheduler lanes, relay counters,
+     * service traffic, HTTP pool, outbox, control channel and registration
+     * state, for "adb shell dumpsys activity service NATPeerAndroidService".
+     * Passing "reset" clears the metrics after they have been written.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Metrics:");
+        mMetrics.dump(writer);
+        writer.println("Lanes:");
+        for (Lane lane : Lane.values())
+            writer.println(lane + ": " + mScheduler.getStats(lane));
+        writer.println("Relay: " + mManager.getRelayStats());
+        writer.println("Uplink cap: " + mManager.getUplinkRate() + " B/s");
+        for (TrafficClass traffic : getServiceTraffic())
+            writer.println("Service " + traffic);
+        writer.println("Mux: " + mManager.getMuxStats());
+        for (String session : mManager.getMuxSessionStats())
+            writer.println("Mux session " + session);
+        writer.println("Http: " + ServerCommon.getHttpStats());
+        writer.println("Outbox: " + mOutbox.getStats());
+        writer.println("Control channel: "
+            + (mChannel.isConnected() ? "connected" : "closed"));
+        writer.println("Requests remembered: " + mRequests.size());
+        synchronized (mPendingServices) {
+            writer.println("Registration: "
+                + (!mIsRegistered ? "none" : mRestored ? "cached" : "confirmed")
+                + ", " + mPendingServices.size() + " services pending");
+        }
+        if (args != null && args.length > 0 && args[0].equals("reset"))
+            mMetrics.reset();
+    }
+
     public class LocalBinder extends Binder {
 
         public NATPeerAndroidService getService() {
@@ -100,44 +276,240 @@ public class NATPeerAndroidService extends Service {
         }
     }
 
+    /**
+     * Becomes ready straight away if the device was registered on an earlier
+     * run. Only preferences are read, the registration is revalidated in the
+     * background by {@link #checkGCMStatus()}.
+     */
+    private void restoreRegistration() {
+        if (!mSettings.get().hasDeviceID()
+            || GCMRegistrar.getRegistrationId(this).equals("")
+            || !GCMRegistrar.isRegisteredOnServer(this))
+            return;
+        Log.i(Consts.TAG, "GCM: Restored registration of device "
+            + mSettings.get().getDeviceID());
+        mRestored = true;
+        setRegistered(true);
+    }
+
+    /**
+     * Marks the device registered or not. Services added while it was not
+     * are registered at the server in a single request once it is, and the
+     * first time it is the startup time is recorded.
+     */
+    private void setRegistered(boolean registered) {
+        boolean pending;
+        synchronized (mPendingServices) {
+            mIsRegistered = registered;
+            if (!registered)
+                return;
+            pending = !mPendingServices.isEmpty();
+        }
+        if (mStarted.compareAndSet(false, true))
+            mMetrics.record(Phase.STARTUP, mCreatedAt, true);
+        if (pending)
+            postPendingServices();
+    }
+
+    /**
+     * Registers the pending services through the outbox, together with any
+     * added before it sends them.
+     */
+    private void postPendingServices() {
+        mOutbox.post(Lane.REGISTRATION, TAG_SERVICES, Consts.OUTBOX_DELAY,
+            Consts.REGISTRATION_DEADLINE, new Runnable() {
+
+                @Override
+                public void run() {
+                    Map<String, Integer> pending;
+                    synchronized (mPendingServices) {
+                        if (!mIsRegistered || mPendingServices.isEmpty())
+                            return;
+                        pending = new LinkedHashMap<String, Integer>(
+                            mPendingServices);
+                        mPendingServices.clear();
+                    }
+                    mManager.createServices(pending);
+                }
+            });
+    }
+
+    /**
+     * Checks the registration of the device at GCM and at the remote server
+     * in the background, registering it where needed, and opens the control
+     * channel. A registration restored from cache is confirmed by the server
+     * accepting the channel.
+     */
     public void checkGCMStatus() {
-        GCMRegistrar.checkDevice(this);
-        GCMRegistrar.checkManifest(this);
-        final String id = GCMRegistrar.getRegistrationId(this);
-        if (id.equals("")) {
-            Log.i(Consts.TAG, "GCM: Trying to register device at GCM");
-            GCMRegistrar.register(this, Consts.SENDER_ID);
-        } else {
-            if (GCMRegistrar.isRegisteredOnServer(this)) {
-                Log.i(Consts.TAG,
-                    "GCM: Device already registered at the remote server");
-                mIsRegistered = true;
-            } else {
-                Log.i(Consts.TAG,
-                    "GCM: Trying to register device at the remote server");
-                final Context c = this;
-                mTask = new AsyncTask<JSONObject, Void, Void>() {
+        final Context c = this;
+        mScheduler.submit(Lane.REGISTRATION, TAG_REGISTRATION,
+            Consts.REGISTRATION_DEADLINE, new Runnable() {
+
+                @Override
+                public void run() {
+                    GCMRegistrar.checkDevice(c);
+                    GCMRegistrar.checkManifest(c);
+                    String id = GCMRegistrar.getRegistrationId(c);
+                    if (id.equals("")) {
+                        Log.i(Consts.TAG,
+                            "GCM: Trying to register device at GCM");
+                        GCMRegistrar.register(c, Consts.SENDER_ID);
+                    } else if (GCMRegistrar.isRegisteredOnServer(c)) {
+                        Log.i(Consts.TAG, "GCM: Device already registered "
+                            + "at the remote server");
+                        setRegistered(true);
+                        openControlChannel(id);
+                    } else {
+                        Log.i(Consts.TAG, "GCM: Trying to register device "
+                            + "at the remote server");
+                        registerAtServer(id);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Registers the device at the remote server and opens the control
+     * channel, or gives up the GCM registration if that fails. Blocks, must
+     * not be called from the main thread.
+     */
+    private void registerAtServer(String gcmID) {
+        String deviceID = registerDevice(gcmID);
+        if (deviceID == null) {
+            GCMRegistrar.unregister(this);
+            return;
+        }
+        GCMRegistrar.setRegisteredOnServer(this, true);
+        mSettings.setDeviceID(deviceID);
+        mRestored = false;
+        setRegistered(true);
+        openControlChannel(gcmID);
+    }
+
+    /**
+     * Opens the control channel to the rendezvous server, so that the first
+     * incoming request does not have to wait for it and requests can be
+     * pushed over it instead of GCM. The channel is kept alive and reopened
+     * when it is lost until the device is unregistered. Blocks, must not be
+     * called from the main thread.
+     */
+    private void openControlChannel(String gcmID) {
+        mChannel.setCredentials(mSettings.get().getDeviceID(), gcmID);
+        mChannelWanted = true;
+        mReconnectPending.set(false);
+        mReconnectDelay = Consts.RECONNECT_MIN_DELAY;
+        cancelKeepalive();
+        scheduleKeepalive();
+        connectControlChannel();
+    }
+
+    private void connectControlChannel() {
+        try {
+            mChannel.connect();
+            mReconnectDelay = Consts.RECONNECT_MIN_DELAY;
+            mRestored = false;
+        } catch (ControlChannel.RejectedException e) {
+            if (!mRestored) {
+                Log.d(Consts.TAG, e.getMessage());
+                scheduleReconnect();
+                return;
+            }
+            // the server no longer knows the cached registration
+            Log.i(Consts.TAG, "GCM: Cached registration is stale");
+            mMetrics.increment(Counter.STALE_REGISTRATIONS);
+            mRestored = false;
+            mChannelWanted = false;
+            cancelKeepalive();
+            setRegistered(false);
+            GCMRegistrar.setRegisteredOnServer(this, false);
+            final String gcmID = GCMRegistrar.getRegistrationId(this);
+            mScheduler.submit(Lane.REGISTRATION, TAG_REGISTRATION,
+                Consts.REGISTRATION_DEADLINE, new Runnable() {
 
                     @Override
-                    protected Void doInBackground(JSONObject... jsonObjects) {
-                        String deviceID = ServerCommon.registerDevice(id);
-                        if (deviceID != null) {
-                            GCMRegistrar.setRegisteredOnServer(c, true);
-                            Common.saveSetting(c, Consts.DEVICE_ID, deviceID);
-                            mIsRegistered = true;
-                        } else
-                            GCMRegistrar.unregister(c);
-                        return null;
+                    public void run() {
+                        registerAtServer(gcmID);
                     }
+                });
+        } catch (IOException e) {
+            Log.d(Consts.TAG, "Unable to open control channel: "
+                + e.getMessage());
+            scheduleReconnect();
+        }
+    }
 
-                    @Override
-                    protected void onPostExecute(Void result) {
-                        mTask = null;
+    /**
+     * Reopens the control channel after a delay which doubles with every
+     * failed attempt, so an unreachable server is not hammered.
+     */
+    private void scheduleReconnect() {
+        if (!mChannelWanted || !mReconnectPending.compareAndSet(false, true))
+            return;
+        int delay = mReconnectDelay;
+        mReconnectDelay = Math.min(delay * 2, Consts.RECONNECT_MAX_DELAY);
+        Log.d(Consts.TAG, "Reopening control channel in " + delay + " ms");
+        mScheduler.schedule(Lane.HOUSEKEEPING, TAG_RECONNECT, delay,
+            TaskScheduler.NO_DEADLINE, new Runnable() {
+
+                @Override
+                public void run() {
+                    mReconnectPending.set(false);
+                    if (!mChannelWanted)
+                        return;
+                    mMetrics.increment(Counter.RECONNECTS);
+                    connectControlChannel();
+                }
+            });
+    }
+
+    /**
+     * Pings the server over the control channel every keepalive interval
+     * while the channel is wanted. The ping is posted to the outbox a little
+     * before the interval is up, so it goes out with other traffic if there
+     * is any. A failed ping closes the channel, which schedules a reconnect.
+     */
+    private void scheduleKeepalive() {
+        final Runnable ping = new Runnable() {
+
+            @Override
+            public void run() {
+                if (!mChannelWanted)
+                    return;
+                if (mChannel.isConnected()) {
+                    try {
+                        mChannel.ping();
+                    } catch (IOException e) {
+                        Log.d(Consts.TAG, "Keepalive failed: "
+                            + e.getMessage());
                     }
-                };
-                mTask.execute(null, null, null);
+                }
+                scheduleKeepalive();
             }
-        }
+        };
+        mScheduler.schedule(Lane.HOUSEKEEPING, TAG_KEEPALIVE,
+            Consts.KEEPALIVE_INTERVAL - Consts.KEEPALIVE_SLACK,
+            TaskScheduler.NO_DEADLINE, new Runnable() {
+
+                @Override
+                public void run() {
+                    if (mChannelWanted)
+                        mOutbox.post(Lane.HOUSEKEEPING, TAG_KEEPALIVE,
+                            Consts.KEEPALIVE_SLACK,
+                            TaskScheduler.NO_DEADLINE, ping);
+                }
+            });
+    }
+
+    private void cancelKeepalive() {
+        mScheduler.cancel(TAG_KEEPALIVE);
+        mOutbox.cancel(TAG_KEEPALIVE);
+    }
+
+    private String registerDevice(String gcmID) {
+        String deviceID = ServerCommon.registerDevice(gcmID);
+        mMetrics.increment(deviceID != null ? Counter.REGISTRATIONS
+            : Counter.REGISTRATION_FAILURES);
+        return deviceID;
     }
 
     public void unRegisterGCM() {
@@ -145,157 +517,350 @@ public class NATPeerAndroidService extends Service {
         GCMRegistrar.unregister(this);
     }
 
-    private void handleGCMRegistration(JSONObject json) {
+    private void handleGCMRegistration(final String gcmID) {
         final Context context = this;
-        mTask = new AsyncTask<JSONObject, Void, Void>() {
+        mScheduler.submit(Lane.REGISTRATION, TAG_REGISTRATION,
+            Consts.REGISTRATION_DEADLINE, new Runnable() {
 
-            @Override
-            protected Void doInBackground(JSONObject... jsonObjects) {
-                try {
-                    JSONObject json = jsonObjects[0];
-                    String gcmID = json.getString(Consts.GCM_ID);
-                    String deviceID = ServerCommon.registerDevice(gcmID);
+                @Override
+                public void run() {
+                    String deviceID = registerDevice(gcmID);
                     if (deviceID != null) {
-                        Common.saveSetting(context, Consts.DEVICE_ID, deviceID);
-                        mIsRegistered = true;
+                        mSettings.setDeviceID(deviceID);
+                        mRestored = false;
+                        setRegistered(true);
                         GCMRegistrar.setRegisteredOnServer(context, true);
+                        openControlChannel(gcmID);
                         Log.i(Consts.TAG,
                             "GCM: Registered at GCM and remote servers");
                     }
-                } catch (JSONException e) {
-                    e.printStackTrace();
                 }
-                return null;
-            }
-
-            @Override
-            protected void onPostExecute(Void result) {
-                mTask = null;
-            }
-        };
-        mTask.execute(json, null, null);
+            });
     }
 
-    private void handleGCMUnregistration(JSONObject json) {
+    /**
+     * Unregisters the device at the remote server and closes the control
+     * channel. Nothing waits for it, so it is sent through the outbox.
+     */
+    private void handleGCMUnregistration() {
         final Context context = this;
-        mTask = new AsyncTask<JSONObject, Void, Void>() {
-
-            @Override
-            protected Void doInBackground(JSONObject... jsonObjects) {
-                String deviceID = Common.loadSetting(context, Consts.DEVICE_ID);
-                if (GCMRegistrar.isRegisteredOnServer(context)) {
-                    boolean result = ServerCommon.unregisterDevice(deviceID);
-                    if (result) {
-                        Log.i(Consts.TAG,
-                            "GCM: Unregistered at GCM and remote servers");
+        mScheduler.cancel(TAG_REGISTRATION);
+        mOutbox.cancel(TAG_REGISTRATION);
+        mOutbox.post(Lane.REGISTRATION, TAG_REGISTRATION, Consts.OUTBOX_DELAY,
+            Consts.REGISTRATION_DEADLINE, new Runnable() {
+
+                @Override
+                public void run() {
+                    String deviceID = mSettings.get().getDeviceID();
+                    mChannelWanted = false;
+                    cancelKeepalive();
+                    mScheduler.cancel(TAG_RECONNECT);
+                    mChannel.close();
+                    if (GCMRegistrar.isRegisteredOnServer(context)) {
+                        boolean result = ServerCommon
+                            .unregisterDevice(deviceID);
+                        if (result) {
+                            Log.i(Consts.TAG,
+                                "GCM: Unregistered at GCM and remote servers");
+                        }
+                        GCMRegistrar.setRegisteredOnServer(context, false);
+                        setRegistered(false);
                     }
-                    GCMRegistrar.setRegisteredOnServer(context, false);
-                    mIsRegistered = true;
                 }
-                return null;
-            }
-
-            @Override
-            protected void onPostExecute(Void result) {
-                mTask = null;
-            }
-        };
-        mTask.execute(json, null, null);
+            });
     }
 
+    /**
+     * Registers a service at the remote server through the outbox, or once
+     * the device is registered if it is not yet.
+     */
     public void addServiceButtonHandler(String serviceName, int localPort) {
-        new AsyncTask<String[], Void, Void>() {
+        synchronized (mPendingServices) {
+            mPendingServices.put(serviceName, localPort);
+            if (!mIsRegistered)
+                return;
+        }
+        postPendingServices();
+    }
 
-            @Override
-            protected Void doInBackground(String[]... params) {
-                if (mIsRegistered) {
-                    mManager.createService(params[0][0],
-                        Integer.parseInt(params[0][1]));
+    /**
+     * Unregisters a service at the remote server through the outbox. A
+     * service which has not been sent to the server yet is only dropped.
+     */
+    public void removeServiceButtonHandler(final String serviceName) {
+        synchronized (mPendingServices) {
+            if (mPendingServices.remove(serviceName) != null
+                || !mIsRegistered)
+                return;
+        }
+        mOutbox.post(Lane.REGISTRATION, TAG_SERVICES, Consts.OUTBOX_DELAY,
+            Consts.REGISTRATION_DEADLINE, new Runnable() {
+
+                @Override
+                public void run() {
+                    ExternalService service = mManager
+                        .findServiceByName(serviceName);
+                    if (service != null)
+                        mManager.removeService(service);
                 }
-                return null;
-            }
-        }.execute(new String[] { serviceName, Integer.toString(localPort) });
+            });
     }
 
-    public void removeServiceButtonHandler(String serviceName) {
-        if (!mIsRegistered)
-            return;
-        new AsyncTask<String, Void, Void>() {
+    public void natSettingsButtonHandler(boolean value) {
+        Log.d(Consts.TAG, "NAT ? " + value);
+        mSettings.setNatEnabled(value);
+    }
 
-            @Override
-            protected Void doInBackground(String... params) {
-                String serviceName = params[0];
-                ExternalService service = mManager
-                    .findServiceByName(serviceName);
-                if (service == null)
-                    return null;
-                mManager.removeService(service);
-                return null;
-            }
-        }.execute(serviceName);
+    /**
+     * Returns the queue depths and task counters of a scheduler lane.
+     */
+    public TaskStats getTaskStats(Lane lane) {
+        return mScheduler.getStats(lane);
     }
 
-    public void natSettingsButtonHandler(boolean value) {
-        Log.d(Consts.TAG, "NAT ? " + value);
-        final Context c = this;
-        Common.saveSetting(c, Consts.NAT_STATUS, Boolean.toString(value));
+    /**
+     * Returns the durations of the connection phases and event counters.
+     */
+    public Metrics getMetrics() {
+        return mMetrics;
     }
 
-    private void establishConnection(JSONObject msg) throws JSONException {
-        final Context c = this;
-        String natSetting = Common.loadSetting(c, Consts.NAT_STATUS);
-        boolean natEnabled;
-        if (natSetting.equals("")) {
-            Log.d(Consts.TAG, "NAT status has not been configured");
-            Log.d(Consts.TAG, "Assuming device IS behind NAT");
-            natEnabled = true;
-        } else {
-            natEnabled = Boolean.parseBoolean(natSetting);
-        }
+    /**
+     * Returns the traffic of each service: its weight, rate cap and the
+     * bytes per second it is sending and receiving.
+     */
+    public List<TrafficClass> getServiceTraffic() {
+        List<TrafficClass> traffic = new ArrayList<TrafficClass>();
+        for (ExternalService service : mManager.getServices())
+            traffic.add(service.getTraffic());
+        return traffic;
+    }
+
+    /**
+     * Sets how a service shares the uplink with the others.
+     *
+     * @param serviceName
+     *            - name of the service
+     * @param weight
+     *            - share relative to other services, at least 1
+     * @param rateLimit
+     *            - cap in bytes per second, 0 for none
+     * @return false if there is no such service
+     */
+    public boolean setServiceShaping(String serviceName, int weight,
+        long rateLimit) {
+        ExternalService service = mManager.findServiceByName(serviceName);
+        if (service == null)
+            return false;
+        service.getTraffic().setWeight(weight);
+        service.getTraffic().setRateLimit(rateLimit);
+        return true;
+    }
+
+    /**
+     * Sets whether multiplexed streams to a service are compressed when the
+     * peer offers to.
+     *
+     * @return false if there is no such service
+     */
+    public boolean setServiceCompression(String serviceName,
+        boolean compressed) {
+        ExternalService service = mManager.findServiceByName(serviceName);
+        if (service == null)
+            return false;
+        service.setCompressed(compressed);
+        return true;
+    }
+
+    /**
+     * Caps the bytes sent to peers per second over all services, so that
+     * the services share the uplink by their weights.
+     *
+     * @param bytesPerSecond
+     *            - the cap, 0 to remove it
+     */
+    public void setUplinkRate(long bytesPerSecond) {
+        mManager.setUplinkRate(bytesPerSecond);
+    }
+
+    /**
+     * Responds to a connection request and punches towards the peer.
+     *
+     * @return true if the punch was made, and accepted by the relay when the
+     *         connection can be watched
+     */
+    private boolean establishConnection(JSONObject msg) throws JSONException,
+        IOException {
+        Settings settings = mSettings.get();
+        if (!settings.isNatConfigured())
+            Log.d(Consts.TAG, "NAT status has not been configured, assuming "
+                + "device IS behind NAT");
+        boolean natEnabled = settings.isNatEnabled();
         String requestID = msg.getString(Consts.GCM_SERVICE_REQUEST_ID);
         String serviceName = msg.getString(Consts.GCM_SERVICE_REQUEST_NAME);
-        String s = ServerCommon.respondToRequest(requestID, natEnabled);
+        ExternalService service = mManager.findServiceByName(serviceName);
+        if (service == null) {
+            Log.d(Consts.TAG, "No service found");
+            return false;
+        }
+        // a multiplexed connection reaches every service, so it is punched
+        // to the mux port rather than to the relay of the requested service
+        boolean mux = msg.optBoolean(Consts.GCM_MUX);
+        int punchPort = mux ? mManager.getMuxPort() : service.getPunchPort();
+        long start = Metrics.now();
+        // the response cannot wait, calls held in the outbox go with it
+        mOutbox.onUrgent();
+        String s = ServerCommon.respondToRequest(mChannel, requestID,
+            natEnabled, punchPort);
+        mMetrics.record(Phase.RESPOND, start, s != null);
+        if (s == null)
+            return false;
         JSONArray array = new JSONArray(s);
         JSONObject jo1 = array.getJSONObject(0);
         JSONObject jo2 = array.getJSONObject(1);
         Log.d(Consts.TAG, "response json: " + jo1.toString());
         String addr = jo1.getString("peer_ip");
-        int port = jo1.getInt("peer_port");
+        int[] ports = candidatePorts(jo1);
         long seqNumb = jo2.getLong("isn");
         long timeStamp = jo2.getLong("ts_val");
+        return punch(mux ? null : service, punchPort, requestID, addr, ports,
+            seqNumb, timeStamp, natEnabled);
+    }
 
-        String localAddr = Common.getInterfaceAddress(Consts.INTERFACE);
-        Log.d(Consts.TAG, "Local address: " + localAddr);
-        ExternalService service = mManager.findServiceByName(serviceName);
-        if (service == null) {
-            Log.d(Consts.TAG, "No service found");
-            return;
+    /**
+     * Punches from a local port towards the candidate ports of the peer and
+     * waits for the peer's connection to reach the relay of the service.
+     *
+     * @param service
+     *            - service whose relay is watched, null if not watched
+     */
+    private boolean punch(ExternalService service, int punchPort,
+        String requestID, String addr, int[] ports, long seqNumb,
+        long timeStamp, boolean natEnabled) throws IOException {
+        long start = Metrics.now();
+        InetAddress remote = InetAddress.getByName(addr);
+        LocalAddress local = mResolver.resolve(remote);
+        mMetrics.record(Phase.RESOLVE, start, local != null);
+        if (local == null) {
+            Log.d(Consts.TAG, "No local address for peer " + addr);
+            return false;
+        }
+        Log.d(Consts.TAG, "Local address: " + local);
+        String localAddr = local.getHostAddress();
+        RelayWatch watch = service != null ? mManager.watchRelay(service,
+            remote) : null;
+        try {
+            start = Metrics.now();
+            // the punch succeeded if it was made towards any of the ports
+            boolean punched = false;
+            try {
+                PunchResult[] results = mHelper.punch(localAddr, punchPort,
+                    local.getInterface(), addr, ports, seqNumb, timeStamp,
+                    natEnabled);
+                for (int i = 0; i < ports.length; i++) {
+                    Log.d(Consts.TAG, "Punch " + ports[i] + ": " + results[i]);
+                    punched |= results[i].isSuccess();
+                }
+            } catch (IOException e) {
+                Log.d(Consts.TAG, "Helper unavailable (" + e.getMessage()
+                    + "), falling back to su");
+                mMetrics.increment(Counter.RETRIES);
+                for (int port : ports)
+                    punched |= NativeLibrary.injectFrom(localAddr, punchPort,
+                        local.getInterface(), addr, port, seqNumb, timeStamp,
+                        natEnabled);
+            }
+            mMetrics.record(Phase.PUNCH, start, punched);
+            if (watch == null)
+                return punched;
+            start = Metrics.now();
+            InetSocketAddress accepted = watch.await(Consts.PUNCH_TIMEOUT);
+            mMetrics.record(Phase.ACCEPT, start, accepted != null);
+            if (ports.length > 1)
+                reportPunch(requestID, accepted);
+            return accepted != null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (watch != null)
+                watch.close();
         }
-        NativeLibrary.injectFrom(localAddr, service.getPort(),
-            Consts.INTERFACE, addr, port, seqNumb, timeStamp, natEnabled);
     }
 
-    private void handleGCMMessageReceived(JSONObject json) {
-        new AsyncTask<JSONObject, Void, Void>() {
+    /**
+     * Returns the candidate ports of the peer, most likely first. Servers
+     * which do not predict several candidates only send peer_port.
+     */
+    private static int[] candidatePorts(JSONObject jo) throws JSONException {
+        JSONArray array = jo.optJSONArray("peer_ports");
+        if (array == null || array.length() == 0)
+            return new int[] { jo.getInt("peer_port") };
+        int[] ports = new int[array.length()];
+        for (int i = 0; i < ports.length; i++)
+            ports[i] = array.getInt(i);
+        return ports;
+    }
 
-            @Override
-            protected Void doInBackground(JSONObject... objects) {
-                try {
-                    JSONObject json1 = objects[0];
-                    JSONObject msg = new JSONObject(
-                        json1.getString(Consts.GCM_MESSAGE_BODY));
-                    String event = msg.getString(Consts.GCM_EVENT);
-                    Log.d(Consts.TAG, msg.toString());
-
-                    if (event.equals(Consts.GCM_EVENT_SERVICE_REQUEST)) {
-                        establishConnection(msg);
-                    }
+    /**
+     * Tells the server which candidate port the peer actually connected
+     * from, so it can refine its predictions for the peer's NAT.
+     */
+    private void reportPunch(String requestID, InetSocketAddress accepted) {
+        Log.d(Consts.TAG, "Punched connection: " + accepted);
+        try {
+            JSONObject json = new JSONObject();
+            json.put("event", "punch_result");
+            json.put("id", requestID);
+            json.put("success", accepted != null);
+            if (accepted != null)
+                json.put("port", accepted.getPort());
+            mChannel.send(json);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            Log.d(Consts.TAG, "Unable to report punch: " + e.getMessage());
+        }
+    }
 
-                } catch (Exception e) {
-                    e.printStackTrace();
+    private void handleGCMMessageReceived(final JSONObject msg,
+        final long receivedAt) {
+        // whatever the message is, it woke the radio
+        mOutbox.onActive();
+        // the same request may arrive over both push paths or be redelivered
+        String event = msg.optString(Consts.GCM_EVENT);
+        String requestID = msg.optString(Consts.GCM_SERVICE_REQUEST_ID);
+        if (event.equals(Consts.GCM_EVENT_SERVICE_REQUEST)
+            && !mRequests.admit(requestID)) {
+            Log.d(Consts.TAG, "Dropped duplicate request " + requestID);
+            mMetrics.increment(Counter.DUPLICATES);
+            return;
+        }
+        if (event.equals(Consts.GCM_EVENT_SERVICE_REQUEST)
+            && mFirstRequest.compareAndSet(false, true))
+            mMetrics.record(Phase.FIRST_REQUEST, mCreatedAt, true);
+        mScheduler.submit(Lane.CONNECTION, TAG_CONNECTION,
+            Consts.CONNECTION_DEADLINE, new Runnable() {
+
+                @Override
+                public void run() {
+                    mMetrics.record(Phase.DISPATCH, receivedAt, true);
+                    long start = Metrics.now();
+                    boolean success = false;
+                    try {
+                        String event = msg.getString(Consts.GCM_EVENT);
+                        Log.d(Consts.TAG, msg.toString());
+
+                        if (!event.equals(Consts.GCM_EVENT_SERVICE_REQUEST))
+                            return;
+                        success = establishConnection(msg);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    mMetrics.record(Phase.TOTAL, start, success);
+                    mMetrics.increment(success ? Counter.CONNECTIONS
+                        : Counter.CONNECTION_FAILURES);
                 }
-                return null;
-            }
-        }.execute(json);
+            });
     }
 }
@@ -0,0 +1,62 @@
+package ee.ut.cs.mc.natpeer.settings;
+
+/**
+ * Immutable snapshot of the application settings. Changes are made by
+ * creating a modified copy, see {@link SettingsStore}.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public final class Settings {
+
+    static final Settings EMPTY = new Settings("", null);
+
+    private final String mDeviceID;
+    private final Boolean mNatStatus;
+
+    Settings(String deviceID, Boolean natStatus) {
+        mDeviceID = deviceID;
+        mNatStatus = natStatus;
+    }
+
+    /**
+     * Returns the ID of the device obtained from the remote server, an empty
+     * string if the device is not registered.
+     */
+    public String getDeviceID() {
+        return mDeviceID;
+    }
+
+    public boolean hasDeviceID() {
+        return !mDeviceID.equals("");
+    }
+
+    /**
+     * Returns true if the user has told whether the device is behind NAT.
+     */
+    public boolean isNatConfigured() {
+        return mNatStatus != null;
+    }
+
+    /**
+     * Returns true if the device is behind NAT. Devices are assumed to be
+     * behind NAT until configured otherwise.
+     */
+    public boolean isNatEnabled() {
+        return mNatStatus == null || mNatStatus.booleanValue();
+    }
+
+    Settings withDeviceID(String deviceID) {
+        return new Settings(deviceID == null ? "" : deviceID, mNatStatus);
+    }
+
+    Settings withNatEnabled(boolean enabled) {
+        return new Settings(mDeviceID, Boolean.valueOf(enabled));
+    }
+
+    @Override
+    public String toString() {
+        return "device=" + mDeviceID + " nat=" + mNatStatus;
+    }
+
+}
@@ -0,0 +1,109 @@
+package ee.ut.cs.mc.natpeer.settings;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import ee.ut.cs.mc.natpeer.util.Consts;
+
+/**
+ * Holds the application settings in memory. The preferences file is read
+ * once, after that readers only get the current {@link Settings} snapshot.
+ * Updates replace the snapshot, notify listeners and are written to disk in
+ * the background.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class SettingsStore {
+
+    /**
+     * Notified after the settings have changed, on the thread which made the
+     * change.
+     */
+    public interface Listener {
+        void onSettingsChanged(Settings previous, Settings current);
+    }
+
+    private final Context mContext;
+    private final CopyOnWriteArrayList<Listener> mListeners;
+    private volatile Settings mSettings;
+
+    public SettingsStore(Context context) {
+        mContext = context;
+        mListeners = new CopyOnWriteArrayList<Listener>();
+    }
+
+    /**
+     * Reads the settings from disk unless they have already been read.
+     */
+    public synchronized void load() {
+        if (mSettings != null)
+            return;
+        SharedPreferences prefs = getPreferences();
+        Settings settings = Settings.EMPTY.withDeviceID(prefs.getString(
+            Consts.DEVICE_ID, ""));
+        String nat = prefs.getString(Consts.NAT_STATUS, "");
+        if (!nat.equals(""))
+            settings = settings.withNatEnabled(Boolean.parseBoolean(nat));
+        mSettings = settings;
+        Log.d(Consts.TAG, "SettingsStore: Loaded " + settings);
+    }
+
+    /**
+     * Returns the current settings, loading them first if needed.
+     */
+    public Settings get() {
+        Settings settings = mSettings;
+        if (settings != null)
+            return settings;
+        load();
+        return mSettings;
+    }
+
+    public void setDeviceID(String deviceID) {
+        Settings previous;
+        Settings current;
+        synchronized (this) {
+            previous = get();
+            current = previous.withDeviceID(deviceID);
+            mSettings = current;
+            getPreferences().edit()
+                .putString(Consts.DEVICE_ID, current.getDeviceID()).apply();
+        }
+        notifyListeners(previous, current);
+    }
+
+    public void setNatEnabled(boolean enabled) {
+        Settings previous;
+        Settings current;
+        synchronized (this) {
+            previous = get();
+            current = previous.withNatEnabled(enabled);
+            mSettings = current;
+            getPreferences().edit()
+                .putString(Consts.NAT_STATUS, Boolean.toString(enabled))
+                .apply();
+        }
+        notifyListeners(previous, current);
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private SharedPreferences getPreferences() {
+        return mContext.getSharedPreferences(Consts.SETTINGS_FILE, 0);
+    }
+
+    private void notifyListeners(Settings previous, Settings current) {
+        for (Listener listener : mListeners)
+            listener.onSettingsChanged(previous, current);
+    }
+
+}
@@ -0,0 +1,55 @@
+package ee.ut.cs.mc.natpeer.task;
+
+import android.os.Process;
+
+/**
+ * Execution lanes of the {@link TaskScheduler}. Each lane has its own
+ * threads and queue, so a slow registration call never delays an incoming
+ * connection request.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public enum Lane {
+
+    /** Answering service requests and punching, latency critical. */
+    CONNECTION(4, 32, Process.THREAD_PRIORITY_MORE_FAVORABLE),
+
+    /** Device and service registration at the remote server. */
+    REGISTRATION(1, 16, Process.THREAD_PRIORITY_BACKGROUND),
+
+    /** Starting and stopping components, persisting state. */
+    HOUSEKEEPING(1, 16, Process.THREAD_PRIORITY_BACKGROUND);
+
+    private final int mThreads;
+    private final int mCapacity;
+    private final int mPriority;
+
+    private Lane(int threads, int capacity, int priority) {
+        mThreads = threads;
+        mCapacity = capacity;
+        mPriority = priority;
+    }
+
+    /**
+     * Returns the maximum number of tasks of the lane running at once.
+     */
+    public int getThreads() {
+        return mThreads;
+    }
+
+    /**
+     * Returns the maximum number of tasks waiting in the lane.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the Linux thread priority of the threads of the lane.
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+}
@@ -0,0 +1,82 @@
+package ee.ut.cs.mc.natpeer.task;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A task submitted to the {@link TaskScheduler}. The deadline covers both
+ * the time spent waiting in the queue and running; a task which has not
+ * finished by then is cancelled and its thread interrupted.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class Task<V> extends FutureTask<V> {
+
+    private final TaskScheduler mScheduler;
+    private final Lane mLane;
+    private final String mTag;
+    private final long mDeadline;
+    private volatile Future<?> mTimer;
+    private volatile boolean mExpired;
+
+    Task(TaskScheduler scheduler, Lane lane, String tag, long deadline,
+        Callable<V> callable) {
+        super(callable);
+        mScheduler = scheduler;
+        mLane = lane;
+        mTag = tag;
+        mDeadline = deadline;
+    }
+
+    public Lane getLane() {
+        return mLane;
+    }
+
+    public String getTag() {
+        return mTag;
+    }
+
+    /**
+     * Returns true if the task was cancelled because its deadline passed.
+     */
+    public boolean isExpired() {
+        return mExpired;
+    }
+
+    @Override
+    public void run() {
+        if (mDeadline != 0 && System.currentTimeMillis() >= mDeadline) {
+            expire();
+            return;
+        }
+        super.run();
+    }
+
+    @Override
+    protected void done() {
+        Future<?> timer = mTimer;
+        if (timer != null)
+            timer.cancel(false);
+        mScheduler.onDone(this);
+    }
+
+    long getDeadline() {
+        return mDeadline;
+    }
+
+    void setTimer(Future<?> timer) {
+        mTimer = timer;
+        if (isDone())
+            timer.cancel(false);
+    }
+
+    void expire() {
+        if (isDone())
+            return;
+        mExpired = true;
+        cancel(true);
+    }
+
+}
@@ -0,0 +1,263 @@
+package ee.ut.cs.mc.natpeer.task;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+import ee.ut.cs.mc.natpeer.util.Consts;
+
+/**
+ * Runs background work of the application in separate {@link Lane}s. Every
+ * lane has a bounded number of threads and a bounded queue; tasks may have a
+ * deadline after which they are cancelled, and tasks carrying the same tag
+ * can be cancelled together.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class TaskScheduler {
+
+    /** Deadline value for tasks which may run indefinitely. */
+    public static final long NO_DEADLINE = 0;
+
+    private final Map<Lane, LaneExecutor> mLanes;
+    private final ScheduledThreadPoolExecutor mTimer;
+    private final ConcurrentHashMap<Task<?>, Boolean> mTasks;
+
+    public TaskScheduler() {
+        mLanes = new EnumMap<Lane, LaneExecutor>(Lane.class);
+        for (Lane lane : Lane.values())
+            mLanes.put(lane, new LaneExecutor(lane));
+        mTimer = new ScheduledThreadPoolExecutor(1, new LaneThreadFactory(
+            "TaskScheduler-timer", android.os.Process.THREAD_PRIORITY_DEFAULT));
+        mTasks = new ConcurrentHashMap<Task<?>, Boolean>();
+    }
+
+    /**
+     * Submits a task to a lane.
+     *
+     * @param lane
+     *            - lane to run the task in
+     * @param tag
+     *            - tag for cancelling the task together with others, may be
+     *            null
+     * @param timeout
+     *            - milliseconds from now after which the task is cancelled,
+     *            or NO_DEADLINE
+     * @param callable
+     *            - work to be done
+     * @return the task, already cancelled if the lane was full or the
+     *         scheduler has been shut down
+     */
+    public <V> Task<V> submit(Lane lane, String tag, long timeout,
+        Callable<V> callable) {
+        Task<V> task = new Task<V>(this, lane, tag, deadline(0, timeout),
+            callable);
+        mTasks.put(task, Boolean.TRUE);
+        enqueue(task, timeout);
+        return task;
+    }
+
+    /**
+     * Submits a task without a result, see
+     * {@link #submit(Lane, String, long, Callable)}.
+     */
+    public Task<Void> submit(Lane lane, String tag, long timeout,
+        Runnable runnable) {
+        return submit(lane, tag, timeout,
+            Executors.<Void> callable(runnable, null));
+    }
+
+    /**
+     * Submits a task to a lane after a delay. Until then the task only
+     * waits in a timer and does not take up room in the lane.
+     *
+     * @param delay
+     *            - milliseconds from now after which the task is submitted
+     * @param timeout
+     *            - milliseconds after the delay after which the task is
+     *            cancelled, or NO_DEADLINE
+     * @return the task, already cancelled if the scheduler has been shut
+     *         down
+     * @see #submit(Lane, String, long, Callable)
+     */
+    public <V> Task<V> schedule(Lane lane, String tag, long delay,
+        final long timeout, Callable<V> callable) {
+        final Task<V> task = new Task<V>(this, lane, tag, deadline(delay,
+            timeout), callable);
+        mTasks.put(task, Boolean.TRUE);
+        try {
+            task.setTimer(mTimer.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (!task.isDone())
+                        enqueue(task, timeout);
+                }
+            }, delay, TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException e) {
+            mTasks.remove(task);
+            task.cancel(false);
+        }
+        return task;
+    }
+
+    /**
+     * Submits a task without a result after a delay, see
+     * {@link #schedule(Lane, String, long, long, Callable)}.
+     */
+    public Task<Void> schedule(Lane lane, String tag, long delay,
+        long timeout, Runnable runnable) {
+        return schedule(lane, tag, delay, timeout,
+            Executors.<Void> callable(runnable, null));
+    }
+
+    private static long deadline(long delay, long timeout) {
+        return timeout == NO_DEADLINE ? NO_DEADLINE : System
+            .currentTimeMillis() + delay + timeout;
+    }
+
+    private void enqueue(final Task<?> task, long timeout) {
+        LaneExecutor executor = mLanes.get(task.getLane());
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            executor.mRejected.incrementAndGet();
+            mTasks.remove(task);
+            task.cancel(false);
+            Log.d(Consts.TAG, "TaskScheduler: Rejected task " + task.getTag()
+                + " in " + task.getLane());
+            return;
+        }
+        executor.updatePeak();
+        if (timeout != NO_DEADLINE) {
+            try {
+                task.setTimer(mTimer.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        task.expire();
+                    }
+                }, timeout, TimeUnit.MILLISECONDS));
+            } catch (RejectedExecutionException e) {
+                // shutting down, the deadline is still checked before running
+            }
+        }
+    }
+
+    /**
+     * Cancels all unfinished tasks with given tag, interrupting running ones.
+     *
+     * @return number of tasks cancelled
+     */
+    public int cancel(String tag) {
+        int count = 0;
+        for (Task<?> task : mTasks.keySet()) {
+            if (tag.equals(task.getTag()) && task.cancel(true))
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Stops accepting new tasks. Tasks already submitted are still run.
+     */
+    public void shutdown() {
+        for (LaneExecutor executor : mLanes.values())
+            executor.shutdown();
+        mTimer.shutdown();
+    }
+
+    /**
+     * Returns a snapshot of the counters of a lane.
+     */
+    public TaskStats getStats(Lane lane) {
+        LaneExecutor executor = mLanes.get(lane);
+        return new TaskStats(lane, executor.getQueue().size(),
+            executor.mPeakQueued.get(), executor.getActiveCount(),
+            executor.mCompleted.get(), executor.mCancelled.get(),
+            executor.mExpired.get(), executor.mRejected.get());
+    }
+
+    void onDone(Task<?> task) {
+        if (mTasks.remove(task) == null)
+            return;
+        LaneExecutor executor = mLanes.get(task.getLane());
+        if (task.isExpired()) {
+            executor.mExpired.incrementAndGet();
+            Log.d(Consts.TAG, "TaskScheduler: Task " + task.getTag()
+                + " in " + task.getLane() + " missed its deadline");
+        } else if (task.isCancelled()) {
+            executor.mCancelled.incrementAndGet();
+        } else {
+            executor.mCompleted.incrementAndGet();
+        }
+        // drop cancelled tasks from the queue right away
+        if (task.isCancelled())
+            executor.remove(task);
+    }
+
+    /**
+     * Thread pool of a single lane.
+     */
+    private static class LaneExecutor extends ThreadPoolExecutor {
+
+        private final AtomicInteger mPeakQueued = new AtomicInteger();
+        private final AtomicLong mCompleted = new AtomicLong();
+        private final AtomicLong mCancelled = new AtomicLong();
+        private final AtomicLong mExpired = new AtomicLong();
+        private final AtomicLong mRejected = new AtomicLong();
+
+        LaneExecutor(Lane lane) {
+            super(lane.getThreads(), lane.getThreads(), 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(lane.getCapacity()),
+                new LaneThreadFactory("TaskScheduler-"
+                    + lane.name().toLowerCase(), lane.getPriority()));
+            allowCoreThreadTimeOut(true);
+        }
+
+        void updatePeak() {
+            int queued = getQueue().size();
+            int peak;
+            while (queued > (peak = mPeakQueued.get())
+                && !mPeakQueued.compareAndSet(peak, queued))
+                ;
+        }
+    }
+
+    private static class LaneThreadFactory implements ThreadFactory {
+
+        private final String mName;
+        private final int mPriority;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        LaneThreadFactory(String name, int priority) {
+            mName = name;
+            mPriority = priority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    android.os.Process.setThreadPriority(mPriority);
+                    r.run();
+                }
+            }, mName + "-" + mCount.incrementAndGet());
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package ee.ut.cs.mc.natpeer.task;
+
+/**
+ * Snapshot of the counters of one lane of the {@link TaskScheduler}.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class TaskStats {
+
+    private final Lane mLane;
+    private final int mQueued;
+    private final int mPeakQueued;
+    private final int mActive;
+    private final long mCompleted;
+    private final long mCancelled;
+    private final long mExpired;
+    private final long mRejected;
+
+    TaskStats(Lane lane, int queued, int peakQueued, int active,
+        long completed, long cancelled, long expired, long rejected) {
+        mLane = lane;
+        mQueued = queued;
+        mPeakQueued = peakQueued;
+        mActive = active;
+        mCompleted = completed;
+        mCancelled = cancelled;
+        mExpired = expired;
+        mRejected = rejected;
+    }
+
+    public Lane getLane() {
+        return mLane;
+    }
+
+    /**
+     * Returns the number of tasks waiting for a thread.
+     */
+    public int getQueued() {
+        return mQueued;
+    }
+
+    /**
+     * Returns the largest number of tasks that have been waiting at once.
+     */
+    public int getPeakQueued() {
+        return mPeakQueued;
+    }
+
+    /**
+     * Returns the number of tasks currently running.
+     */
+    public int getActive() {
+        return mActive;
+    }
+
+    public long getCompleted() {
+        return mCompleted;
+    }
+
+    /**
+     * Returns the number of tasks cancelled by the caller, not including
+     * expired ones.
+     */
+    public long getCancelled() {
+        return mCancelled;
+    }
+
+    public long getExpired() {
+        return mExpired;
+    }
+
+    /**
+     * Returns the number of tasks rejected because the lane was full.
+     */
+    public long getRejected() {
+        return mRejected;
+    }
+
+    @Override
+    public String toString() {
+        return mLane + ": queued=" + mQueued + " peak=" + mPeakQueued
+            + " active=" + mActive + " completed=" + mCompleted
+            + " cancelled=" + mCancelled + " expired=" + mExpired
+            + " rejected=" + mRejected;
+    }
+
+}
@@ -16,8 +16,51 @@ public final class Consts {
 
     public static final int SERVER_TCP_PORT = 8001;
 
-    public static final String SERVER_API = "http://" + SERVER_IP + ":"
-        + SERVER_PORT + "/api";
+    public static final int SERVER_CONNECT_TIMEOUT = 10000;
+
+    public static final int RENDEZVOUS_TIMEOUT = 30000;
+
+    public static final int CONNECTION_DEADLINE = 45000;
+
+    public static final int PUNCH_TIMEOUT = 5000;
+
+    public static final int KEEPALIVE_INTERVAL = 60000;
+
+    public static final int KEEPALIVE_SLACK = 15000;
+
+    public static final int OUTBOX_DELAY = 15000;
+
+    public static final int RADIO_TAIL = 5000;
+
+    public static final int REQUEST_WINDOW = 120000;
+
+    public static final int RECONNECT_MIN_DELAY = 1000;
+
+    public static final int RECONNECT_MAX_DELAY = 300000;
+
+    public static final int REGISTRATION_DEADLINE = 60000;
+
+    public static final int HTTP_DEADLINE = 20000;
+
+    public static final int REQUEST_ATTEMPTS = 3;
+
+    public static final int RETRY_BACKOFF = 500;
+
+    public static final int HEDGE_DELAY = 1000;
+
+    public static final int HTTP_MAX_CONNECTIONS = 2;
+
+    public static final int HTTP_PIPELINE_DEPTH = 4;
+
+    public static final int HTTP_KEEPALIVE = 30000;
+
+    public static final int TRAFFIC_WEIGHT = 1;
+
+    public static final int TRAFFIC_QUANTUM = 4096;
+
+    public static final int UPLINK_RATE = 0;
+
+    public static final String SERVER_API = "/api";
 
     public static final String SENDER_ID = "";
 
@@ -34,22 +77,12 @@ public final class Consts {
 
     public static final int HTTP_CREATED = 201;
 
+    public static final int HTTP_NOT_FOUND = 404;
+
     public static final String SETTINGS_FILE = "NATPeerAndroid";
 
     public static final String DEVICE_ID = "_id";
 
-    public static final String GCM_MESSAGE_BODY = "GCM_MESSAGE_BODY";
-
-    public static final String EVENT_TYPE = "EVENT_TYPE";
-
-    public static final String EVENT_GCM_REGISTERED = "EVENT_GCM_REGISTERED";
-
-    public static final String EVENT_GCM_UNREGISTERED
-        = "EVENT_GCM_UNREGISTERED";
-
-    public static final String EVENT_GCM_MESSAGE_RECEIVED
-        = "EVENT_GCM_MESSAGE_RECEIVED";
-
     public static final String GCM_EVENT = "gcm_event";
 
     public static final String GCM_EVENT_SERVICE_REQUEST = "request";
@@ -60,9 +93,11 @@ public final class Consts {
 
     public static final String GCM_SERVICE_REQUEST_NAME = "service";
 
-    public static final String SERVICE_ID = "_id";
+    public static final String GCM_TIMESTAMP = "ts";
+
+    public static final String GCM_MUX = "mux";
 
-    public static final String INTERFACE = "wlan0";
+    public static final String SERVICE_ID = "_id";
 
     public static final String NAT_STATUS = "NAT_STATUS";
 
@@ -0,0 +1,211 @@
+package ee.ut.cs.mc.natpeer.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import ee.ut.cs.mc.natpeer.metrics.Counter;
+import ee.ut.cs.mc.natpeer.metrics.Metrics;
+import ee.ut.cs.mc.natpeer.task.Lane;
+import ee.ut.cs.mc.natpeer.task.TaskScheduler;
+
+/**
+ * Holds calls to the remote server which are not urgent until the radio is
+ * woken anyway. Waking a cellular radio takes a second or more and keeps it
+ * powered for several seconds after the last packet, so a few bytes sent on
+ * their own cost far more than the same bytes sent along with other
+ * traffic. A call posted while the radio is active from other traffic is
+ * made at once; otherwise it is held until something else wakes the radio,
+ * or until the first held call is due, and then all held calls are made
+ * together. An urgent call, such as a response to a connection request, is
+ * never held, and takes the held calls along with it.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class ControlOutbox {
+
+    private static final String TAG_FLUSH = "outbox";
+
+    private final TaskScheduler mScheduler;
+    private final Metrics mMetrics;
+    private final List<Message> mHeld;
+
+    /** Time until which the radio is taken to be active. */
+    private long mActiveUntil;
+
+    /** Time the earliest flush timer fires, Long.MAX_VALUE if none. */
+    private long mFlushAt;
+
+    public ControlOutbox(TaskScheduler scheduler) {
+        mScheduler = scheduler;
+        mMetrics = Metrics.getDefault();
+        mHeld = new ArrayList<Message>();
+        mActiveUntil = now();
+        mFlushAt = Long.MAX_VALUE;
+    }
+
+    /**
+     * Submits a call to a lane of the scheduler once the radio is active,
+     * at the latest after given delay.
+     *
+     * @param lane
+     *            - lane to run the call in
+     * @param tag
+     *            - tag for cancelling the call together with others, may be
+     *            null
+     * @param maxDelay
+     *            - milliseconds the call may be held
+     * @param timeout
+     *            - milliseconds after the call is submitted after which it
+     *            is cancelled, or {@link TaskScheduler#NO_DEADLINE}
+     * @param runnable
+     *            - the call
+     * @see TaskScheduler#submit(Lane, String, long, Runnable)
+     */
+    public void post(Lane lane, String tag, long maxDelay, long timeout,
+        Runnable runnable) {
+        Message message = new Message(lane, tag, timeout, runnable);
+        long now = now();
+        synchronized (this) {
+            if (now >= mActiveUntil) {
+                message.mDue = now + maxDelay;
+                mHeld.add(message);
+                if (message.mDue < mFlushAt)
+                    arm(message.mDue, now);
+                return;
+            }
+        }
+        mMetrics.increment(Counter.SENT_IMMEDIATELY);
+        submit(message);
+    }
+
+    /**
+     * Tells that an urgent call is being made right away, which wakes the
+     * radio. The held calls are made along with it.
+     */
+    public void onUrgent() {
+        mMetrics.increment(Counter.SENT_IMMEDIATELY);
+        flush();
+    }
+
+    /**
+     * Tells that something was received from the network, so the radio is
+     * active. The held calls are made while it is.
+     */
+    public void onActive() {
+        flush();
+    }
+
+    /**
+     * Makes all held calls now, before the scheduler is shut down.
+     */
+    public void drain() {
+        flush();
+    }
+
+    /**
+     * Drops held calls with given tag.
+     *
+     * @return number of calls dropped
+     */
+    public synchronized int cancel(String tag) {
+        int count = 0;
+        for (Iterator<Message> i = mHeld.iterator(); i.hasNext();) {
+            if (tag.equals(i.next().mTag)) {
+                i.remove();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns a one line summary of the held calls, for the service dump.
+     */
+    public synchronized String getStats() {
+        long now = now();
+        return "held=" + mHeld.size() + " radio="
+            + (now < mActiveUntil ? "active" : "idle");
+    }
+
+    /**
+     * Makes all held calls, and takes the radio to be active for a while,
+     * so calls posted shortly after are not held either.
+     */
+    private void flush() {
+        List<Message> batch;
+        synchronized (this) {
+            mActiveUntil = Math.max(mActiveUntil, now() + Consts.RADIO_TAIL);
+            if (mHeld.isEmpty())
+                return;
+            batch = new ArrayList<Message>(mHeld);
+            mHeld.clear();
+        }
+        mMetrics.increment(Counter.BATCHES);
+        for (Message message : batch) {
+            mMetrics.increment(Counter.SENT_BATCHED);
+            submit(message);
+        }
+    }
+
+    /**
+     * Flushes if a held call is due. A timer armed for calls which have
+     * been flushed since finds nothing due, and rearms for the calls held
+     * after them if there are any.
+     */
+    private void onTimer() {
+        synchronized (this) {
+            long now = now();
+            mFlushAt = Long.MAX_VALUE;
+            long due = Long.MAX_VALUE;
+            for (Message message : mHeld)
+                due = Math.min(due, message.mDue);
+            if (due == Long.MAX_VALUE)
+                return;
+            if (due > now) {
+                arm(due, now);
+                return;
+            }
+        }
+        flush();
+    }
+
+    private void arm(long due, long now) {
+        mFlushAt = due;
+        mScheduler.schedule(Lane.HOUSEKEEPING, TAG_FLUSH, due - now,
+            TaskScheduler.NO_DEADLINE, new Runnable() {
+
+                @Override
+                public void run() {
+                    onTimer();
+                }
+            });
+    }
+
+    private void submit(Message message) {
+        mScheduler.submit(message.mLane, message.mTag, message.mTimeout,
+            message.mRunnable);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static class Message {
+
+        final Lane mLane;
+        final String mTag;
+        final long mTimeout;
+        final Runnable mRunnable;
+        long mDue;
+
+        Message(Lane lane, String tag, long timeout, Runnable runnable) {
+            mLane = lane;
+            mTag = tag;
+            mTimeout = timeout;
+            mRunnable = runnable;
+        }
+    }
+
+}
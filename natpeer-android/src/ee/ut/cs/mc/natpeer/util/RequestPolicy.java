@@ -0,0 +1,304 @@
+package ee.ut.cs.mc.natpeer.util;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+import ee.ut.cs.mc.natpeer.metrics.Counter;
+import ee.ut.cs.mc.natpeer.metrics.Histogram;
+import ee.ut.cs.mc.natpeer.metrics.Metrics;
+
+/**
+ * Runs calls to the remote server within a deadline. Failed attempts are
+ * retried after a jittered backoff while the deadline allows. Idempotent
+ * calls are also hedged: if the first attempt takes longer than most
+ * successful calls of the policy did, a second one is started alongside it
+ * and whichever succeeds first is used. Calls which are not idempotent are
+ * only retried when the request cannot have reached the server.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class RequestPolicy {
+
+    /**
+     * One attempt of a call.
+     */
+    public interface Attempt<T> {
+
+        /**
+         * @param number
+         *            - 0 for the first attempt, counting up for retries and
+         *            hedges
+         * @param timeout
+         *            - milliseconds the attempt may take
+         * @return result of the call, never null
+         * @throws Exception
+         *             if the attempt failed, it is retried if the exception
+         *             is an {@link IOException} or caused by one
+         */
+        T run(int number, int timeout) throws Exception;
+    }
+
+    /** Quantile of the latency after which a call is hedged. */
+    private static final double HEDGE_QUANTILE = 0.95;
+
+    /** Calls to measure before the latency quantile is trusted. */
+    private static final int HEDGE_MIN_SAMPLES = 20;
+
+    /** Hedges sooner than this would mostly duplicate healthy calls. */
+    private static final int HEDGE_MIN_DELAY = 50;
+
+    private static final ExecutorService sExecutor = Executors
+        .newCachedThreadPool(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RequestPolicy");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private static final Random sRandom = new Random();
+
+    private final String mName;
+    private final int mDeadline;
+    private final int mAttempts;
+    private final boolean mIdempotent;
+    private final Histogram mLatency;
+    private final Metrics mMetrics;
+
+    /**
+     * @param name
+     *            - name of the call, for logging
+     * @param deadline
+     *            - milliseconds all attempts together may take
+     * @param attempts
+     *            - maximum number of attempts, including hedges
+     * @param idempotent
+     *            - whether the call may reach the server more than once
+     */
+    public RequestPolicy(String name, int deadline, int attempts,
+        boolean idempotent) {
+        mName = name;
+        mDeadline = deadline;
+        mAttempts = attempts;
+        mIdempotent = idempotent;
+        mLatency = new Histogram();
+        mMetrics = Metrics.getDefault();
+    }
+
+    /**
+     * Runs the call, blocking until it succeeds, fails for good or the
+     * deadline passes.
+     *
+     * @return result of the first successful attempt, null if none succeeded
+     */
+    public <T> T execute(Attempt<T> attempt) {
+        long start = Metrics.now();
+        T result = mIdempotent ? executeHedged(attempt, start)
+            : executeInline(attempt, start);
+        if (result != null)
+            mLatency.record((Metrics.now() - start) / 1000);
+        return result;
+    }
+
+    /**
+     * Returns the delay after which a call is hedged: the latency quantile
+     * of earlier calls, or the default until enough have been measured.
+     */
+    public int getHedgeDelay() {
+        Histogram.Snapshot snapshot = mLatency.snapshot();
+        if (snapshot.getCount() < HEDGE_MIN_SAMPLES)
+            return Consts.HEDGE_DELAY;
+        long delay = snapshot.getPercentile(HEDGE_QUANTILE) / 1000;
+        return (int) Math.max(HEDGE_MIN_DELAY, Math.min(delay, mDeadline));
+    }
+
+    private <T> T executeInline(Attempt<T> attempt, long start) {
+        Exception error = null;
+        for (int number = 0; number < mAttempts; number++) {
+            int remaining = remaining(start);
+            if (remaining <= 0)
+                break;
+            try {
+                T result = attempt.run(number, remaining);
+                if (result != null)
+                    return result;
+                error = new IOException("No result");
+            } catch (Exception e) {
+                error = e;
+            }
+            // the server may have acted on a request which was sent
+            if (!isUnsent(error) || !backoff(number, start, error))
+                break;
+        }
+        giveUp(error);
+        return null;
+    }
+
+    private <T> T executeHedged(final Attempt<T> attempt, long start) {
+        final BlockingQueue<Outcome<T>> outcomes =
+            new LinkedBlockingQueue<Outcome<T>>();
+        List<Future<?>> running = new ArrayList<Future<?>>();
+        int hedgeDelay = getHedgeDelay();
+        int started = 0;
+        int pending = 0;
+        int hedge = -1;
+        long launched = start;
+        Exception error = null;
+        try {
+            running.add(submit(attempt, started++, remaining(start),
+                outcomes));
+            pending++;
+            while (true) {
+                int remaining = remaining(start);
+                if (remaining <= 0)
+                    break;
+                boolean mayHedge = hedge < 0 && started < mAttempts;
+                int wait = mayHedge ? Math.min(remaining, hedgeDelay
+                    - elapsed(launched)) : remaining;
+                Outcome<T> outcome = outcomes.poll(Math.max(wait, 0),
+                    TimeUnit.MILLISECONDS);
+                if (outcome == null) {
+                    if (!mayHedge)
+                        break;
+                    Log.d(Consts.TAG, "RequestPolicy: Hedging " + mName
+                        + " after " + hedgeDelay + " ms");
+                    mMetrics.increment(Counter.HEDGES);
+                    hedge = started;
+                    running.add(submit(attempt, started++, remaining(start),
+                        outcomes));
+                    pending++;
+                    continue;
+                }
+                pending--;
+                if (outcome.mResult != null) {
+                    if (outcome.mNumber == hedge)
+                        mMetrics.increment(Counter.HEDGE_WINS);
+                    return outcome.mResult;
+                }
+                error = outcome.mError;
+                // another attempt still running may yet succeed
+                if (pending > 0)
+                    continue;
+                if (!isRetryable(error) || started >= mAttempts
+                    || !backoff(started - 1, start, error))
+                    break;
+                launched = Metrics.now();
+                running.add(submit(attempt, started++, remaining(start),
+                    outcomes));
+                pending++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Future<?> future : running)
+                future.cancel(true);
+        }
+        giveUp(error);
+        return null;
+    }
+
+    private <T> Future<?> submit(final Attempt<T> attempt, final int number,
+        final int timeout, final BlockingQueue<Outcome<T>> outcomes) {
+        return sExecutor.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                Outcome<T> outcome = new Outcome<T>(number);
+                try {
+                    outcome.mResult = attempt.run(number, timeout);
+                    if (outcome.mResult == null)
+                        outcome.mError = new IOException("No result");
+                } catch (Exception e) {
+                    outcome.mError = e;
+                }
+                outcomes.add(outcome);
+            }
+        });
+    }
+
+    /**
+     * Sleeps before the next attempt: a random delay between half and all of
+     * the base backoff, doubled for every attempt made so far.
+     *
+     * @return false if the deadline would pass before the next attempt
+     */
+    private boolean backoff(int number, long start, Exception cause) {
+        int base = Consts.RETRY_BACKOFF << Math.min(number, 10);
+        int delay = base / 2 + sRandom.nextInt(base / 2 + 1);
+        if (delay >= remaining(start))
+            return false;
+        Log.d(Consts.TAG, "RequestPolicy: Retrying " + mName + " in " + delay
+            + " ms: " + cause);
+        mMetrics.increment(Counter.REQUEST_RETRIES);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    private void giveUp(Exception error) {
+        Log.d(Consts.TAG, "RequestPolicy: " + mName + " failed: "
+            + (error != null ? error : "deadline passed"));
+    }
+
+    private int remaining(long start) {
+        return mDeadline - elapsed(start);
+    }
+
+    private static int elapsed(long start) {
+        return (int) ((Metrics.now() - start) / 1000000);
+    }
+
+    private static boolean isRetryable(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof IOException)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the exception shows that no connection to the server
+     * was made, so the request cannot have been sent.
+     */
+    private static boolean isUnsent(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof ConnectException
+                || t instanceof NoRouteToHostException
+                || t instanceof UnknownHostException)
+                return true;
+        }
+        return false;
+    }
+
+    private static class Outcome<T> {
+
+        final int mNumber;
+        T mResult;
+        Exception mError;
+
+        Outcome(int number) {
+            mNumber = number;
+        }
+    }
+
+}
@@ -1,19 +1,37 @@
 package ee.ut.cs.mc.natpeer.util;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.util.Log;
 
-import com.github.kevinsawicki.http.HttpRequest;
-
 import ee.ut.cs.mc.natpeer.exception.NATPeerAndroidException;
 import ee.ut.cs.mc.natpeer.externalservice.ExternalService;
+import ee.ut.cs.mc.natpeer.http.HttpClient;
+import ee.ut.cs.mc.natpeer.http.HttpFuture;
+import ee.ut.cs.mc.natpeer.http.Request;
+import ee.ut.cs.mc.natpeer.http.Response;
+import ee.ut.cs.mc.natpeer.metrics.Counter;
+import ee.ut.cs.mc.natpeer.metrics.Metrics;
+import ee.ut.cs.mc.natpeer.rendezvous.ControlChannel;
+import ee.ut.cs.mc.natpeer.rendezvous.Frame;
+import ee.ut.cs.mc.natpeer.rendezvous.FrameDecoder;
 
 /**
  * Common routines which handle communication with a remote server.
@@ -23,6 +41,26 @@ import ee.ut.cs.mc.natpeer.externalservice.ExternalService;
  */
 public class ServerCommon {
 
+    /** Keep-alive connections to the remote server, shared by all calls. */
+    private static final HttpClient sClient = new HttpClient(
+        Consts.SERVER_IP, Consts.SERVER_PORT);
+
+    /** Registrations create records, so they are not sent twice. */
+    private static final RequestPolicy REGISTER = new RequestPolicy(
+        "register", Consts.HTTP_DEADLINE, Consts.REQUEST_ATTEMPTS, false);
+
+    private static final RequestPolicy UNREGISTER = new RequestPolicy(
+        "unregister", Consts.HTTP_DEADLINE, Consts.REQUEST_ATTEMPTS, true);
+
+    /**
+     * Responses are not hedged. The exchange lasts until the peer has
+     * punched, which says nothing about how slow the server is, and the
+     * server only acts on the first response to a request, so a hedge would
+     * open a connection and a probe only to be turned down.
+     */
+    private static final RequestPolicy RESPOND = new RequestPolicy(
+        "respond", Consts.RENDEZVOUS_TIMEOUT, 2, false);
+
     /**
      * Registers device with a remote server.
      * 
@@ -30,26 +68,51 @@ public class ServerCommon {
      *            - GCM id
      * @return unique device ID after successful registration, null otherwise
      */
-    public static String registerDevice(String gcmID) {
-        HttpRequest request = HttpRequest.post(Consts.SERVER_API + "/devices")
-            .send(Consts.GCM_ID + "=" + gcmID);
-        if (request.code() == Consts.HTTP_CREATED) {
-            try {
-                JSONObject response = new JSONObject(request.body());
-                String deviceID = response.getString(Consts.DEVICE_ID);
-                if (deviceID.equals(""))
-                    throw new NATPeerAndroidException("No Device ID received");
-                Log.d(Consts.TAG, "ServerUtils: Device registered at "
-                    + "the remote server");
-                return deviceID;
-            } catch (Exception e) {
-                e.printStackTrace();
+    public static String registerDevice(final String gcmID) {
+        String deviceID = REGISTER.execute(new RequestPolicy.Attempt<String>() {
+
+            @Override
+            public String run(int number, int timeout) throws Exception {
+                return await(registerDeviceAsync(gcmID, timeout), timeout);
             }
-        }
-        Log.d(Consts.TAG,
-            "ServerUtils: Failed to register device at the remote server");
-        return null;
+        });
+        if (deviceID != null)
+            Log.d(Consts.TAG, "ServerUtils: Device registered at "
+                + "the remote server");
+        else
+            Log.d(Consts.TAG,
+                "ServerUtils: Failed to register device at the remote server");
+        return deviceID;
+    }
+
+    /**
+     * Registers device with a remote server, without waiting for it. The
+     * request is sent once.
+     * 
+     * @param gcmID
+     *            - GCM id
+     * @param timeout
+     *            - milliseconds to wait for the response
+     * @return future of the unique device ID
+     */
+    public static HttpFuture<String> registerDeviceAsync(String gcmID,
+        int timeout) {
+        Request request = new Request("POST", Consts.SERVER_API + "/devices")
+            .body(Request.CONTENT_TYPE_FORM, Consts.GCM_ID + "=" + gcmID);
+        return sClient.execute(request, timeout).transform(
+            new HttpFuture.Transform<Response, String>() {
 
+                @Override
+                public String apply(Response response) throws Exception {
+                    expect(response, Consts.HTTP_CREATED);
+                    JSONObject json = new JSONObject(response.body());
+                    String deviceID = json.getString(Consts.DEVICE_ID);
+                    if (deviceID.equals(""))
+                        throw new NATPeerAndroidException(
+                            "No Device ID received");
+                    return deviceID;
+                }
+            });
     }
 
     /**
@@ -60,10 +123,17 @@ public class ServerCommon {
      * @return true if unregistration at the remote server was successful, false
      *         otherwise
      */
-    public static boolean unregisterDevice(String deviceID) {
-        HttpRequest request = HttpRequest.delete(Consts.SERVER_API
-            + "/devices/" + deviceID);
-        if (request.code() == Consts.HTTP_OK) {
+    public static boolean unregisterDevice(final String deviceID) {
+        Boolean result = UNREGISTER.execute(
+            new RequestPolicy.Attempt<Boolean>() {
+
+                @Override
+                public Boolean run(int number, int timeout) throws Exception {
+                    return await(delete("/devices/" + deviceID, number,
+                        timeout), timeout);
+                }
+            });
+        if (result != null) {
             Log.d(Consts.TAG, "ServerUtils: Device unregistered at "
                 + "the remote server");
             return true;
@@ -74,6 +144,20 @@ public class ServerCommon {
         }
     }
 
+    /**
+     * Unregisters device with a remote server, without waiting for it.
+     * 
+     * @param deviceID
+     *            - ID of the device which was obtained from the remote server
+     * @param timeout
+     *            - milliseconds to wait for the response
+     * @return future which completes once the device is unregistered
+     */
+    public static HttpFuture<Boolean> unregisterDeviceAsync(String deviceID,
+        int timeout) {
+        return delete("/devices/" + deviceID, 0, timeout);
+    }
+
     /**
      * Registers new service with a remote server.
      * 
@@ -83,28 +167,50 @@ public class ServerCommon {
      *            - ID of the device
      * @return serviceID if registration was successful, null otherwise
      */
-    public static String registerService(ExternalService service,
-        String deviceID) {
-        try {
-            HttpRequest request = HttpRequest.post(
-                Consts.SERVER_API + "/services").send(
-                "name=" + service.getName() + "&device=" + deviceID);
-            if (request.code() == Consts.HTTP_CREATED) {
-                JSONObject json = new JSONObject(request.body());
-                String serviceID = json.getString(Consts.SERVICE_ID);
-                Log.d(Consts.TAG, "ServerCommon: Registered new service with "
-                    + "the remote server.");
-                return serviceID;
-            } else {
-                Log.d(Consts.TAG, request.code() + "");
-                Log.d(Consts.TAG, request.body());
-                throw new NATPeerAndroidException(
-                    "Unable to register a service");
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
+    public static String registerService(final ExternalService service,
+        final String deviceID) {
+        String serviceID = REGISTER.execute(
+            new RequestPolicy.Attempt<String>() {
+
+                @Override
+                public String run(int number, int timeout) throws Exception {
+                    return await(registerServiceAsync(service, deviceID,
+                        timeout), timeout);
+                }
+            });
+        if (serviceID != null)
+            Log.d(Consts.TAG, "ServerCommon: Registered new service with "
+                + "the remote server.");
+        return serviceID;
+    }
+
+    /**
+     * Registers new service with a remote server, without waiting for it.
+     * The request is sent once.
+     * 
+     * @param service
+     *            - service to be registered
+     * @param deviceID
+     *            - ID of the device
+     * @param timeout
+     *            - milliseconds to wait for the response
+     * @return future of the serviceID
+     */
+    public static HttpFuture<String> registerServiceAsync(
+        ExternalService service, String deviceID, int timeout) {
+        Request request = new Request("POST", Consts.SERVER_API + "/services")
+            .body(Request.CONTENT_TYPE_FORM, "name=" + service.getName()
+                + "&device=" + deviceID);
+        return sClient.execute(request, timeout).transform(
+            new HttpFuture.Transform<Response, String>() {
+
+                @Override
+                public String apply(Response response) throws Exception {
+                    expect(response, Consts.HTTP_CREATED);
+                    JSONObject json = new JSONObject(response.body());
+                    return json.getString(Consts.SERVICE_ID);
+                }
+            });
     }
 
     /**
@@ -114,67 +220,504 @@ public class ServerCommon {
      *            - service to be unregistered
      * @return true if service was unregistered was successful, false otherwise
      */
-    public static boolean unregisterService(ExternalService service) {
-        try {
-            HttpRequest req = HttpRequest.delete(Consts.SERVER_API
-                + "/services/" + service.getID());
-            Log.d(Consts.TAG, "ServerCommon: " + req.toString());
-            if (req.code() == Consts.HTTP_OK) {
-                return true;
-            } else {
-                throw new NATPeerAndroidException("Unexpected response: "
-                    + req.body());
+    public static boolean unregisterService(final ExternalService service) {
+        return UNREGISTER.execute(new RequestPolicy.Attempt<Boolean>() {
+
+            @Override
+            public Boolean run(int number, int timeout) throws Exception {
+                return await(delete("/services/" + service.getID(), number,
+                    timeout), timeout);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        }) != null;
+    }
+
+    /**
+     * Unregisters an existing service with a remote server, without waiting
+     * for it.
+     * 
+     * @param service
+     *            - service to be unregistered
+     * @param timeout
+     *            - milliseconds to wait for the response
+     * @return future which completes once the service is unregistered
+     */
+    public static HttpFuture<Boolean> unregisterServiceAsync(
+        ExternalService service, int timeout) {
+        return delete("/services/" + service.getID(), 0, timeout);
+    }
+
+    /**
+     * Registers a list of services with a remote server in a single request.
+     * The IDs assigned by the server are set on the services.
+     * 
+     * @param services
+     *            - services to be registered
+     * @param deviceID
+     *            - ID of the device
+     * @return true if all services were registered, false otherwise
+     */
+    public static boolean registerServices(
+        final List<ExternalService> services, final String deviceID) {
+        Boolean result = REGISTER.execute(
+            new RequestPolicy.Attempt<Boolean>() {
+
+                @Override
+                public Boolean run(int number, int timeout) throws Exception {
+                    return await(registerServicesAsync(services, deviceID,
+                        timeout), timeout);
+                }
+            });
+        if (result == null)
+            return false;
+        Log.d(Consts.TAG, "ServerCommon: Registered " + services.size()
+            + " services with the remote server.");
+        return true;
+    }
+
+    /**
+     * Registers a list of services with a remote server in a single request,
+     * without waiting for it. The IDs assigned by the server are set on the
+     * services before the future completes. The request is sent once.
+     * 
+     * @param services
+     *            - services to be registered
+     * @param deviceID
+     *            - ID of the device
+     * @param timeout
+     *            - milliseconds to wait for the response
+     * @return future which completes once all services are registered
+     */
+    public static HttpFuture<Boolean> registerServicesAsync(
+        final List<ExternalService> services, String deviceID, int timeout) {
+        JSONArray names = new JSONArray();
+        for (ExternalService service : services)
+            names.put(service.getName());
+        Request request;
+        try {
+            request = new Request("POST", Consts.SERVER_API + "/services")
+                .body(Request.CONTENT_TYPE_JSON, new JSONObject()
+                    .put("device", deviceID).put("services", names)
+                    .toString());
+        } catch (JSONException e) {
+            return failed(e);
         }
-        return false;
+        return sClient.execute(request, timeout).transform(
+            new HttpFuture.Transform<Response, Boolean>() {
+
+                @Override
+                public Boolean apply(Response response) throws Exception {
+                    expect(response, Consts.HTTP_CREATED);
+                    JSONArray created = new JSONArray(response.body());
+                    if (created.length() != services.size())
+                        throw new NATPeerAndroidException("Expected "
+                            + services.size() + " services, got "
+                            + created.length());
+                    for (int i = 0; i < created.length(); i++)
+                        services.get(i).setID(
+                            created.getJSONObject(i).getString(
+                                Consts.SERVICE_ID));
+                    return Boolean.TRUE;
+                }
+            });
+    }
+
+    /**
+     * Unregisters a list of services with a remote server in a single
+     * request.
+     * 
+     * @param services
+     *            - services to be unregistered
+     * @param deviceID
+     *            - ID of the device the services belong to
+     * @return true if the request was successful, false otherwise
+     */
+    public static boolean unregisterServices(
+        final List<ExternalService> services, final String deviceID) {
+        Boolean result = UNREGISTER.execute(
+            new RequestPolicy.Attempt<Boolean>() {
+
+                @Override
+                public Boolean run(int number, int timeout) throws Exception {
+                    return await(unregisterServicesAsync(services, deviceID,
+                        timeout), timeout);
+                }
+            });
+        if (result == null)
+            return false;
+        Log.d(Consts.TAG, "ServerCommon: Unregistered " + services.size()
+            + " services with the remote server.");
+        return true;
+    }
+
+    /**
+     * Unregisters a list of services with a remote server in a single
+     * request, without waiting for it. DELETE is tunnelled through POST, as
+     * the server only reads a body with POST.
+     * 
+     * @param services
+     *            - services to be unregistered
+     * @param deviceID
+     *            - ID of the device the services belong to
+     * @param timeout
+     *            - milliseconds to wait for the response
+     * @return future which completes once the services are unregistered
+     */
+    public static HttpFuture<Boolean> unregisterServicesAsync(
+        List<ExternalService> services, String deviceID, int timeout) {
+        JSONArray ids = new JSONArray();
+        for (ExternalService service : services)
+            ids.put(service.getID());
+        Request request;
+        try {
+            request = new Request("POST", Consts.SERVER_API + "/services")
+                .header("X-HTTP-Method-Override", "DELETE").body(
+                    Request.CONTENT_TYPE_JSON, new JSONObject()
+                        .put("device", deviceID).put("services", ids)
+                        .toString());
+        } catch (JSONException e) {
+            return failed(e);
+        }
+        return sClient.execute(request, timeout).transform(
+            new HttpFuture.Transform<Response, Boolean>() {
+
+                @Override
+                public Boolean apply(Response response) throws Exception {
+                    expect(response, Consts.HTTP_OK);
+                    return Boolean.TRUE;
+                }
+            });
+    }
+
+    /**
+     * Returns a one line summary of the connections to the remote server,
+     * for the service dump.
+     */
+    public static String getHttpStats() {
+        return sClient.getStats();
     }
 
     /**
-     * Responds to a service request.
+     * Responds to a service request over the control channel. The one-shot
+     * connection is only used if the control channel cannot be opened, or if
+     * the response over the channel cannot have reached the server and is
+     * retried. Behind NAT a probe connection is made along with the
+     * response, so the server can predict the port of the punched
+     * connection; if the probe does not reach the server, the response is
+     * made over the one-shot connection instead.
      * 
+     * @param channel
+     *            - control channel to the rendezvous server
      * @param requestID
      *            - ID of the request which was made
      * @param natStatus
      *            - boolean indicating whether this device is behind a NAT
      *            router or not
+     * @param localPort
+     *            - local port the connection will be punched to
      * @return - stringified JSON array which contains information about the
      *         remote peer who wants to access given host
      */
-    public static String respondToRequest(String requestID, boolean natStatus) {
+    public static String respondToRequest(final ControlChannel channel,
+        final String requestID, final boolean natStatus, final int localPort) {
+        return RESPOND.execute(new RequestPolicy.Attempt<String>() {
+
+            @Override
+            public String run(int number, int timeout) throws Exception {
+                // an exchange is open per request, later attempts use
+                // connections of their own
+                if (number == 0)
+                    return respondOverChannel(channel, requestID, natStatus,
+                        localPort, timeout);
+                return respondOverConnection(requestID, natStatus,
+                    localPort, timeout);
+            }
+        });
+    }
+
+    /**
+     * Responds to a service request over a connection of its own.
+     * 
+     * @param requestID
+     *            - ID of the request which was made
+     * @param natStatus
+     *            - boolean indicating whether this device is behind a NAT
+     *            router or not
+     * @param localPort
+     *            - local port the connection will be punched to
+     * @return - stringified JSON array which contains information about the
+     *         remote peer who wants to access given host
+     */
+    public static String respondToRequest(final String requestID,
+        final boolean natStatus, final int localPort) {
+        return RESPOND.execute(new RequestPolicy.Attempt<String>() {
+
+            @Override
+            public String run(int number, int timeout) throws Exception {
+                return respondOverConnection(requestID, natStatus,
+                    localPort, timeout);
+            }
+        });
+    }
+
+    private static String respondOverChannel(ControlChannel channel,
+        String requestID, boolean natStatus, int localPort, int timeout)
+        throws Exception {
+        ControlChannel.Exchange exchange;
+        try {
+            exchange = channel.openExchange(requestID);
+        } catch (IOException e) {
+            Log.d(Consts.TAG, "ServerCommon: Control channel unavailable ("
+                + e.getMessage() + "), using a one-shot connection");
+            Metrics.getDefault().increment(Counter.RETRIES);
+            return respondOverConnection(requestID, natStatus, localPort,
+                timeout);
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        SocketChannel probe = null;
+        try {
+            if (natStatus) {
+                probe = startProbe();
+                if (probe == null)
+                    return respondOverConnection(requestID, natStatus,
+                        localPort, timeout);
+            }
+            exchange.send(createResponse(requestID, natStatus, localPort));
+            // without the probe the server has nothing to predict the port
+            // of this device from, a connection of its own gives it that
+            if (probe != null && !finishProbe(probe, requestID, deadline))
+                return respondOverConnection(requestID, natStatus,
+                    localPort, remaining(deadline));
+            JSONObject endpoints = exchange.receive(remaining(deadline));
+            if (probe != null && endpoints.has("error")) {
+                Log.d(Consts.TAG, "ServerCommon: Server did not take the "
+                    + "response (" + endpoints.optString("error")
+                    + "), using a one-shot connection");
+                return respondOverConnection(requestID, natStatus,
+                    localPort, remaining(deadline));
+            }
+            JSONArray array = new JSONArray();
+            array.put(endpoints);
+            array.put(checked(exchange.receive(remaining(deadline))));
+            Log.d(Consts.TAG, "response: " + array.toString(2));
+            return array.toString();
+        } finally {
+            exchange.close();
+            if (probe != null)
+                closeQuietly(probe);
+        }
+    }
+
+    private static String respondOverConnection(String requestID,
+        boolean natStatus, int localPort, int timeout) throws Exception {
+        long deadline = System.currentTimeMillis() + timeout;
+        Socket s = new Socket();
         try {
-            Socket s = new Socket();
             s.setReuseAddress(true);
             s.connect(new InetSocketAddress(Consts.SERVER_IP,
-                Consts.SERVER_TCP_PORT));
+                Consts.SERVER_TCP_PORT), Math.min(timeout,
+                Consts.SERVER_CONNECT_TIMEOUT));
 
-            DataInputStream dis = new DataInputStream(s.getInputStream());
-            DataOutputStream dos = new DataOutputStream(s.getOutputStream());
-            JSONObject json = new JSONObject();
-            json.put("event", "response");
-            json.put("id", requestID);
-            if (natStatus) {
-                json.put("nat", true);
-            }
-            dos.writeBytes(json.toString());
-            dos.flush();
+            OutputStream out = s.getOutputStream();
+            out.write(Frame.encodeJson(createResponse(requestID, natStatus,
+                localPort)));
+            out.flush();
+
+            final JSONArray array = new JSONArray();
+            FrameDecoder decoder = new FrameDecoder();
+            FrameDecoder.Handler handler = new FrameDecoder.Handler() {
 
+                @Override
+                public void onFrame(byte type, ByteBuffer payload)
+                    throws IOException {
+                    JSONObject json = Frame.decode(type, payload);
+                    if (json.has("error"))
+                        throw new IOException("Server: "
+                            + json.optString("error"));
+                    array.put(json);
+                }
+            };
+            InputStream in = s.getInputStream();
             byte[] buffer = new byte[2048];
-            int len = dis.read(buffer);
-            String response = new String(buffer, 0, len);
-            JSONArray array = new JSONArray(response);
-            len = dis.read(buffer);
-            response = new String(buffer, 0, len);
-            JSONObject jo = new JSONObject(response);
-            array.put(jo);
+            while (array.length() < 2) {
+                s.setSoTimeout(remaining(deadline));
+                int len = in.read(buffer);
+                if (len < 0)
+                    throw new NATPeerAndroidException("Unexpected EOF");
+                decoder.decode(ByteBuffer.wrap(buffer, 0, len), handler);
+            }
             Log.d(Consts.TAG, "response: " + array.toString(2));
-            s.close();
             return array.toString();
+        } finally {
+            try {
+                s.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns a message of the server, unless it is an error. The server
+     * tells a response it does not act on with an error, e.g. when another
+     * attempt of the same response was first.
+     */
+    private static JSONObject checked(JSONObject json)
+        throws NATPeerAndroidException {
+        if (json.has("error"))
+            throw new NATPeerAndroidException("Server: "
+                + json.optString("error"));
+        return json;
+    }
+
+    /**
+     * Returns milliseconds left until the deadline, at least one, since a
+     * socket timeout of zero would mean no timeout at all.
+     */
+    private static int remaining(long deadline) {
+        return (int) Math.max(1, deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * Deletes a record of the remote server.
+     * 
+     * @param number
+     *            - number of the attempt, a retried delete also succeeds if
+     *            the record is already gone, since an earlier attempt may
+     *            have deleted it
+     */
+    private static HttpFuture<Boolean> delete(String path, final int number,
+        int timeout) {
+        return sClient.execute(new Request("DELETE", Consts.SERVER_API + path),
+            timeout).transform(new HttpFuture.Transform<Response, Boolean>() {
+
+            @Override
+            public Boolean apply(Response response) throws Exception {
+                if (number == 0 || response.code() != Consts.HTTP_NOT_FOUND)
+                    expect(response, Consts.HTTP_OK);
+                return Boolean.TRUE;
+            }
+        });
+    }
+
+    /**
+     * Waits for a call on behalf of a synchronous caller, throwing what the
+     * call failed with.
+     */
+    private static <T> T await(HttpFuture<T> future, int timeout)
+        throws Exception {
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new SocketTimeoutException("No response within " + timeout
+                + " ms");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    private static <T> HttpFuture<T> failed(Exception e) {
+        HttpFuture<T> future = new HttpFuture<T>();
+        future.fail(e);
+        return future;
+    }
+
+    /**
+     * Checks the status code of a response. Server errors are thrown as
+     * IOExceptions, so that they are retried.
+     */
+    private static void expect(Response response, int code)
+        throws IOException, NATPeerAndroidException {
+        int actual = response.code();
+        if (actual == code)
+            return;
+        if (actual >= 500)
+            throw new IOException("Server error " + actual);
+        throw new NATPeerAndroidException("Unexpected response " + actual
+            + ": " + response.body());
+    }
+
+    private static JSONObject createResponse(String requestID,
+        boolean natStatus, int localPort) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("event", "response");
+        json.put("id", requestID);
+        json.put("local_port", localPort);
+        if (natStatus) {
+            json.put("nat", true);
+        }
+        return json;
+    }
+
+    /**
+     * Starts connecting a probe to the server. A response sent over the
+     * control channel tells nothing about the current state of the NAT, the
+     * mapping of a fresh connection does. The connection is started before
+     * the response is sent, so both travel at the same time.
+     */
+    private static SocketChannel startProbe() {
+        SocketChannel probe = null;
+        try {
+            probe = SocketChannel.open();
+            probe.configureBlocking(false);
+            probe.connect(new InetSocketAddress(Consts.SERVER_IP,
+                Consts.SERVER_TCP_PORT));
+            return probe;
+        } catch (IOException e) {
+            Log.d(Consts.TAG, "ServerCommon: Unable to probe: "
+                + e.getMessage());
+            if (probe != null)
+                closeQuietly(probe);
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the probe to connect and tells the server which request it
+     * belongs to and which local port it was made from. The socket timeout
+     * does not apply to connecting, so the connect is waited for with a
+     * selector.
+     *
+     * @param deadline
+     *            - time by which the probe has to be connected
+     * @return true if the probe was sent
+     */
+    private static boolean finishProbe(SocketChannel probe,
+        String requestID, long deadline) {
+        try {
+            Selector selector = Selector.open();
+            try {
+                probe.register(selector, SelectionKey.OP_CONNECT);
+                while (!probe.finishConnect()) {
+                    if (System.currentTimeMillis() >= deadline)
+                        throw new SocketTimeoutException(
+                            "Probe did not connect in time");
+                    selector.select(remaining(deadline));
+                }
+            } finally {
+                selector.close();
+            }
+            probe.configureBlocking(true);
+            JSONObject json = new JSONObject();
+            json.put("event", "probe");
+            json.put("id", requestID);
+            json.put("local_port", probe.socket().getLocalPort());
+            probe.write(ByteBuffer.wrap(Frame.encodeJson(json)));
+            return true;
         } catch (Exception e) {
+            Log.d(Consts.TAG, "ServerCommon: Probe failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
             e.printStackTrace();
         }
-        return null;
     }
 
 }
@@ -0,0 +1,112 @@
+package ee.ut.cs.mc.natpeer.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ee.ut.cs.mc.natpeer.event.EventBus;
+import ee.ut.cs.mc.natpeer.event.EventHandler;
+import ee.ut.cs.mc.natpeer.event.MessageReceivedEvent;
+import ee.ut.cs.mc.natpeer.event.RegisteredEvent;
+import ee.ut.cs.mc.natpeer.metrics.Metrics;
+import ee.ut.cs.mc.natpeer.util.Consts;
+
+/**
+ * Delivery of a pushed message from GCMIntentService.onMessage to the
+ * service: the message is encoded by the server, parsed once and posted on
+ * the event bus.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventBenchmark {
+
+    private EventBus mBus;
+    private String mMessage;
+    private Object mLast;
+
+    private final EventHandler<MessageReceivedEvent> mMessageHandler =
+        new EventHandler<MessageReceivedEvent>() {
+
+            @Override
+            public void onEvent(MessageReceivedEvent event) {
+                mLast = event;
+            }
+        };
+
+    private final EventHandler<RegisteredEvent> mRegisteredHandler =
+        new EventHandler<RegisteredEvent>() {
+
+            @Override
+            public void onEvent(RegisteredEvent event) {
+                mLast = event;
+            }
+        };
+
+    @Setup
+    public void setUp() throws JSONException {
+        mBus = new EventBus();
+        mBus.register(MessageReceivedEvent.class, mMessageHandler);
+        mBus.register(RegisteredEvent.class, mRegisteredHandler);
+        mMessage = encodeMessage().toString();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mBus.unregister(MessageReceivedEvent.class, mMessageHandler);
+        mBus.unregister(RegisteredEvent.class, mRegisteredHandler);
+    }
+
+    /**
+     * Builds the message the server pushes for a request.
+     */
+    @Benchmark
+    public JSONObject encodeMessage() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(Consts.GCM_EVENT, Consts.GCM_EVENT_SERVICE_REQUEST);
+        json.put(Consts.GCM_SERVICE_REQUEST_ID,
+            "755C1D8297028CB41BD025C1D29BBCF9");
+        json.put(Consts.GCM_SERVICE_REQUEST_NAME, "web");
+        json.put(Consts.GCM_TIMESTAMP, 1380000000000L);
+        return json;
+    }
+
+    /**
+     * Parses a received message and posts it to the service.
+     */
+    @Benchmark
+    public Object receiveMessage() throws JSONException {
+        mBus.post(new MessageReceivedEvent(new JSONObject(mMessage),
+            Metrics.now()));
+        return mLast;
+    }
+
+    /**
+     * Posts an event which needs no parsing, to tell the bus apart from the
+     * JSON handling.
+     */
+    @Benchmark
+    public Object postEvent() {
+        mBus.post(new RegisteredEvent("gcm"));
+        return mLast;
+    }
+
+}
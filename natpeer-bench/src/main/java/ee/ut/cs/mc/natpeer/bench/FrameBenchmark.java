@@ -0,0 +1,162 @@
+package ee.ut.cs.mc.natpeer.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ee.ut.cs.mc.natpeer.rendezvous.Frame;
+import ee.ut.cs.mc.natpeer.rendezvous.FrameDecoder;
+
+/**
+ * Encoding a response to the rendezvous server and decoding its answer, as
+ * done by ServerCommon.respondToRequest and
+ * NATPeerAndroidService.establishConnection.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+
+    private static final String REQUEST_ID = "755C1D8297028CB41BD025C1D29BBCF9";
+
+    /**
+     * Whether the server answers with binary frames or JSON frames.
+     */
+    @Param({ "binary", "json" })
+    public String format;
+
+    private byte[] mAnswer;
+
+    @Setup
+    public void setUp() throws IOException, JSONException {
+        int[] ports = { 40001, 40002, 40000, 40003, 39999 };
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        if (format.equals("binary")) {
+            ByteBuffer endpoints = ByteBuffer.allocate(256);
+            putString(endpoints, REQUEST_ID);
+            putAddress(endpoints, "193.40.5.10");
+            endpoints.putShort((short) 51234);
+            putAddress(endpoints, "90.191.4.20");
+            endpoints.putShort((short) ports[0]);
+            endpoints.put((byte) ports.length);
+            for (int port : ports)
+                endpoints.putShort((short) port);
+            putFrame(buffer, Frame.TYPE_ENDPOINTS, endpoints);
+
+            ByteBuffer info = ByteBuffer.allocate(64);
+            putString(info, REQUEST_ID);
+            info.putInt((int) 4000000000L).putInt(7);
+            putFrame(buffer, Frame.TYPE_CONNECTION_INFO, info);
+        } else {
+            JSONObject endpoints = new JSONObject();
+            endpoints.put("id", REQUEST_ID);
+            endpoints.put("ip", "193.40.5.10");
+            endpoints.put("port", 51234);
+            endpoints.put("peer_ip", "90.191.4.20");
+            endpoints.put("peer_port", ports[0]);
+            JSONArray array = new JSONArray();
+            for (int port : ports)
+                array.put(port);
+            endpoints.put("peer_ports", array);
+            buffer.put(Frame.encodeJson(endpoints));
+
+            JSONObject info = new JSONObject();
+            info.put("event", "connection_info");
+            info.put("id", REQUEST_ID);
+            info.put("isn", 4000000000L);
+            info.put("ts_val", 7);
+            buffer.put(Frame.encodeJson(info));
+        }
+        buffer.flip();
+        mAnswer = new byte[buffer.remaining()];
+        buffer.get(mAnswer);
+    }
+
+    /**
+     * Builds and frames the response the device sends for a request.
+     */
+    @Benchmark
+    public byte[] encodeResponse() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("event", "response");
+        json.put("id", REQUEST_ID);
+        json.put("local_port", 8080);
+        json.put("nat", true);
+        return Frame.encodeJson(json);
+    }
+
+    /**
+     * Decodes the server's answer into the string handed to the connection
+     * task.
+     */
+    @Benchmark
+    public String decodeAnswer() throws IOException {
+        final JSONArray array = new JSONArray();
+        new FrameDecoder().decode(ByteBuffer.wrap(mAnswer),
+            new FrameDecoder.Handler() {
+
+                @Override
+                public void onFrame(byte type, ByteBuffer payload)
+                    throws IOException {
+                    array.put(Frame.decode(type, payload));
+                }
+            });
+        return array.toString();
+    }
+
+    /**
+     * Decodes the answer and reads the fields the punch is made with.
+     */
+    @Benchmark
+    public long decodeAndParse() throws IOException, JSONException {
+        JSONArray array = new JSONArray(decodeAnswer());
+        JSONObject jo1 = array.getJSONObject(0);
+        JSONObject jo2 = array.getJSONObject(1);
+        long sum = jo1.getString("peer_ip").length();
+        JSONArray ports = jo1.optJSONArray("peer_ports");
+        for (int i = 0; ports != null && i < ports.length(); i++)
+            sum += ports.getInt(i);
+        return sum + jo2.getLong("isn") + jo2.getLong("ts_val");
+    }
+
+    private static void putString(ByteBuffer buffer, String s)
+        throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        buffer.put((byte) bytes.length).put(bytes);
+    }
+
+    private static void putAddress(ByteBuffer buffer, String addr)
+        throws IOException {
+        byte[] bytes = InetAddress.getByName(addr).getAddress();
+        buffer.put((byte) bytes.length).put(bytes);
+    }
+
+    private static void putFrame(ByteBuffer buffer, byte type,
+        ByteBuffer payload) {
+        payload.flip();
+        buffer.put(type).putInt(payload.remaining()).put(payload);
+    }
+
+}
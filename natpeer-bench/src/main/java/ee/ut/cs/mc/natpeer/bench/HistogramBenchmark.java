@@ -0,0 +1,65 @@
+package ee.ut.cs.mc.natpeer.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ee.ut.cs.mc.natpeer.metrics.Histogram;
+import ee.ut.cs.mc.natpeer.metrics.Metrics;
+import ee.ut.cs.mc.natpeer.metrics.Phase;
+
+/**
+ * Cost of recording metrics on the connection path, alone and from as many
+ * threads as the connection lane runs.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistogramBenchmark {
+
+    private final Histogram mHistogram = new Histogram();
+    private final Metrics mMetrics = new Metrics();
+
+    @State(Scope.Thread)
+    public static class Value {
+
+        private long mValue = 1;
+
+        long next() {
+            mValue = mValue * 6364136223846793005L + 1442695040888963407L;
+            return (mValue >>> 40) & 0xfffff;
+        }
+    }
+
+    @Benchmark
+    public void record(Value value) {
+        mHistogram.record(value.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended(Value value) {
+        mHistogram.record(value.next());
+    }
+
+    @Benchmark
+    public void recordPhase() {
+        mMetrics.record(Phase.PUNCH, Metrics.now(), true);
+    }
+
+}
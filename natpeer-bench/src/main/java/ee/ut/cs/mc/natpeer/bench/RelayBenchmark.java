@@ -0,0 +1,146 @@
+package ee.ut.cs.mc.natpeer.bench;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ee.ut.cs.mc.natpeer.relay.RelayEngine;
+
+/**
+ * Round trips through the RelayEngine to a local echo service, over
+ * loopback. Every benchmark thread has a relayed connection of its own, run
+ * with -t to load the selector with several sessions. Throughput in bytes is
+ * twice the payload size times the operation rate.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelayBenchmark {
+
+    private static final String LOCALHOST = "127.0.0.1";
+
+    @Param({ "64", "16384" })
+    public int payload;
+
+    private ServerSocket mEcho;
+    private RelayEngine mRelay;
+    private int mRelayPort;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mEcho = new ServerSocket(0, 50, InetAddress.getByName(LOCALHOST));
+        Thread acceptor = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    while (true)
+                        echo(mEcho.accept());
+                } catch (IOException e) {
+                    // closed in tearDown
+                }
+            }
+        }, "echo-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        mRelay = new RelayEngine();
+        mRelay.start();
+        mRelayPort = mRelay.listen(0, new InetSocketAddress(LOCALHOST,
+            mEcho.getLocalPort()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mRelay.stop();
+        mEcho.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private Socket mSocket;
+        private OutputStream mOut;
+        private DataInputStream mIn;
+        private byte[] mBuffer;
+
+        @Setup(Level.Trial)
+        public void setUp(RelayBenchmark bench) throws IOException {
+            mSocket = new Socket(LOCALHOST, bench.mRelayPort);
+            mSocket.setTcpNoDelay(true);
+            mOut = mSocket.getOutputStream();
+            mIn = new DataInputStream(mSocket.getInputStream());
+            mBuffer = new byte[bench.payload];
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            mSocket.close();
+        }
+    }
+
+    /**
+     * Sends a payload through the relay and waits for the echo.
+     */
+    @Benchmark
+    public byte[] roundTrip(Client client) throws IOException {
+        client.mOut.write(client.mBuffer);
+        client.mIn.readFully(client.mBuffer);
+        return client.mBuffer;
+    }
+
+    private static void echo(final Socket socket) {
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                byte[] buffer = new byte[64 * 1024];
+                try {
+                    socket.setTcpNoDelay(true);
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    int n;
+                    while ((n = in.read(buffer)) > 0)
+                        out.write(buffer, 0, n);
+                } catch (IOException e) {
+                    // connection closed
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }, "echo");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+}
@@ -0,0 +1,90 @@
+package ee.ut.cs.mc.natpeer.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ee.ut.cs.mc.natpeer.externalservice.ExternalService;
+import ee.ut.cs.mc.natpeer.externalservice.ExternalServiceRegistry;
+
+/**
+ * Service lookups behind ExternalServiceManager.findServiceByName and the
+ * other finders, which run for every incoming request.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceLookupBenchmark {
+
+    @Param({ "1", "16", "256" })
+    public int services;
+
+    private ExternalServiceRegistry mRegistry;
+    private String[] mNames;
+
+    @Setup
+    public void setUp() {
+        mRegistry = new ExternalServiceRegistry();
+        mNames = new String[services];
+        for (int i = 0; i < services; i++) {
+            mNames[i] = "service-" + i;
+            ExternalService service = new ExternalService(mNames[i],
+                1024 + i);
+            service.setID(String.format("%024x", i));
+            mRegistry.add(service);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int mNext;
+
+        int next(int bound) {
+            if (++mNext >= bound)
+                mNext = 0;
+            return mNext;
+        }
+    }
+
+    @Benchmark
+    public ExternalService findByName(Cursor cursor) {
+        return mRegistry.findByName(mNames[cursor.next(services)]);
+    }
+
+    @Benchmark
+    public ExternalService findByNameMissing() {
+        return mRegistry.findByName("unknown");
+    }
+
+    @Benchmark
+    public ExternalService findByPort(Cursor cursor) {
+        return mRegistry.findByPort(1024 + cursor.next(services));
+    }
+
+    /**
+     * Copies the services, as done when all of them are unregistered.
+     */
+    @Benchmark
+    public List<ExternalService> getServices() {
+        return mRegistry.getServices();
+    }
+
+}
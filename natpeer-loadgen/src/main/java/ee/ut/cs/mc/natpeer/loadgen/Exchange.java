@@ -0,0 +1,135 @@
+package ee.ut.cs.mc.natpeer.loadgen;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * One simulated client requesting a service: sends the request, waits for
+ * the device's endpoints, sends its connection information and waits until
+ * the device has received it.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+class Exchange implements Runnable {
+
+    private final LoadGenerator mGenerator;
+    private final StepStats mStats;
+    private final String mService;
+    private final long mScheduled;
+    private final CountDownLatch mLatch;
+    private volatile long mCompleted;
+
+    /**
+     * @param scheduled
+     *            - System.nanoTime() the exchange was scheduled to start at
+     */
+    Exchange(LoadGenerator generator, StepStats stats, String service,
+        long scheduled) {
+        mGenerator = generator;
+        mStats = stats;
+        mService = service;
+        mScheduled = scheduled;
+        mLatch = new CountDownLatch(1);
+    }
+
+    StepStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Called by the device once the connection information has arrived.
+     */
+    void complete() {
+        mCompleted = System.nanoTime();
+        mLatch.countDown();
+    }
+
+    @Override
+    public void run() {
+        long deadline = mScheduled
+            + TimeUnit.MILLISECONDS.toNanos(mGenerator.getTimeout());
+        FramedSocket socket = null;
+        String id = null;
+        try {
+            socket = FramedSocket.connect(mGenerator.getServer(),
+                remaining(deadline));
+            JSONObject request = new JSONObject();
+            request.put("event", "request");
+            request.put("service", mService);
+            request.put("local_port", socket.getLocalPort());
+            socket.send(request);
+
+            socket.setTimeout(remaining(deadline));
+            JSONObject endpoints = socket.receive();
+            if ("error".equals(endpoints.optString("event"))) {
+                mStats.onFailed(Failure.REJECTED);
+                return;
+            }
+            mStats.onEndpoints(System.nanoTime() - mScheduled);
+            id = endpoints.optString("id", null);
+            if (id == null)
+                throw new ProtocolException("No request ID in " + endpoints);
+            mGenerator.addPending(id, this);
+            sendConnectionInfo(id, remaining(deadline));
+
+            if (mLatch.await(remaining(deadline), TimeUnit.MILLISECONDS))
+                mStats.onCompleted(mCompleted - mScheduled);
+            else
+                mStats.onFailed(Failure.TIMEOUT);
+        } catch (SocketTimeoutException e) {
+            mStats.onFailed(Failure.TIMEOUT);
+        } catch (ProtocolException e) {
+            mStats.onFailed(Failure.PROTOCOL);
+        } catch (JSONException e) {
+            mStats.onFailed(Failure.PROTOCOL);
+        } catch (IOException e) {
+            mStats.onFailed(Failure.IO);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mStats.onFailed(Failure.TIMEOUT);
+        } finally {
+            if (id != null)
+                mGenerator.removePending(id);
+            if (socket != null)
+                socket.close();
+        }
+    }
+
+    private void sendConnectionInfo(String id, int timeout)
+        throws IOException, JSONException {
+        FramedSocket socket = FramedSocket.connect(mGenerator.getServer(),
+            timeout);
+        try {
+            JSONObject info = new JSONObject();
+            info.put("event", "connection_info");
+            info.put("id", id);
+            info.put("isn", mScheduled & 0xffffffffL);
+            info.put("ts_val", 1);
+            socket.send(info);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Returns the milliseconds left until the deadline.
+     *
+     * @throws SocketTimeoutException
+     *             if the deadline has passed
+     */
+    private static int remaining(long deadline) throws SocketTimeoutException {
+        long millis = TimeUnit.NANOSECONDS.toMillis(deadline
+            - System.nanoTime());
+        if (millis <= 0)
+            throw new SocketTimeoutException("Deadline passed");
+        return (int) millis;
+    }
+
+}
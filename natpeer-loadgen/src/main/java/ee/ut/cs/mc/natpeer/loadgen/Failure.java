@@ -0,0 +1,41 @@
+package ee.ut.cs.mc.natpeer.loadgen;
+
+/**
+ * Reasons an exchange did not complete.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+enum Failure {
+
+    /**
+     * No answer within the timeout.
+     */
+    TIMEOUT,
+
+    /**
+     * The server could not be connected to or closed the connection.
+     */
+    IO,
+
+    /**
+     * The server sent something unexpected.
+     */
+    PROTOCOL,
+
+    /**
+     * The server refused the request, e.g. for an unknown service.
+     */
+    REJECTED,
+
+    /**
+     * The generator itself was saturated and did not start the exchange.
+     */
+    DROPPED,
+
+    /**
+     * A simulated device failed to respond to a push.
+     */
+    DEVICE
+
+}
@@ -0,0 +1,136 @@
+package ee.ut.cs.mc.natpeer.loadgen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stands in for the GCM HTTP endpoint. The rendezvous server is pointed at
+ * it with the GCM_URL environment variable; every message it receives is
+ * acknowledged the way GCM would and handed to the simulated device it was
+ * addressed to.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+class FakePushServer implements HttpHandler {
+
+    static final String PATH = "/gcm/send";
+
+    private static final String REGISTRATION_ID = "registration_id=";
+
+    private static final String MESSAGE = "data.message=";
+
+    /**
+     * Receives pushed messages.
+     */
+    interface Listener {
+
+        /**
+         * @return false if no device has the registration ID
+         */
+        boolean onPush(String registrationID, String message);
+    }
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+    private final Listener mListener;
+    private final AtomicLong mMessageIDs;
+
+    FakePushServer(int port, int threads, Listener listener)
+        throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(port), 128);
+        mExecutor = Executors.newFixedThreadPool(threads);
+        mListener = listener;
+        mMessageIDs = new AtomicLong();
+        mServer.createContext(PATH, this);
+        mServer.setExecutor(mExecutor);
+    }
+
+    void start() {
+        mServer.start();
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "");
+                return;
+            }
+            String body = read(exchange.getRequestBody());
+            String registrationID = field(body, REGISTRATION_ID);
+            String message = field(body, MESSAGE);
+            if (registrationID == null || message == null) {
+                respond(exchange, 400, "Missing registration_id or data");
+                return;
+            }
+            if (!message.startsWith("{"))
+                message = URLDecoder.decode(message, "UTF-8");
+            long id = mMessageIDs.incrementAndGet();
+            if (mListener.onPush(registrationID, message))
+                respond(exchange, 200, "{\"multicast_id\":" + id
+                    + ",\"success\":1,\"failure\":0,\"canonical_ids\":0,"
+                    + "\"results\":[{\"message_id\":\"0:" + id + "\"}]}");
+            else
+                respond(exchange, 200, "{\"multicast_id\":" + id
+                    + ",\"success\":0,\"failure\":1,\"canonical_ids\":0,"
+                    + "\"results\":[{\"error\":\"NotRegistered\"}]}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Returns the value of a form field. The message is always the last
+     * field and is sent unencoded, so it may contain anything but its name.
+     */
+    private static String field(String body, String name) {
+        int start = 0;
+        if (!body.startsWith(name)) {
+            start = body.indexOf("&" + name) + 1;
+            if (start == 0)
+                return null;
+        }
+        start += name.length();
+        if (name.equals(MESSAGE))
+            return body.substring(start);
+        int end = body.indexOf('&', start);
+        return body.substring(start, end < 0 ? body.length() : end);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int len;
+        while ((len = in.read(buffer)) > 0)
+            out.write(buffer, 0, len);
+        return out.toString("UTF-8");
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body)
+        throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+}
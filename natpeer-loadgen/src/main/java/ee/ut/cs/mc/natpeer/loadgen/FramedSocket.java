@@ -0,0 +1,107 @@
+package ee.ut.cs.mc.natpeer.loadgen;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import org.json.JSONObject;
+
+import ee.ut.cs.mc.natpeer.rendezvous.Frame;
+import ee.ut.cs.mc.natpeer.rendezvous.FrameDecoder;
+
+/**
+ * Blocking connection to the rendezvous server which exchanges framed
+ * messages.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+class FramedSocket {
+
+    private final Socket mSocket;
+    private final OutputStream mOut;
+    private final InputStream mIn;
+    private final FrameDecoder mDecoder;
+    private final ArrayDeque<JSONObject> mFrames;
+    private final byte[] mBuffer;
+
+    private final FrameDecoder.Handler mHandler = new FrameDecoder.Handler() {
+
+        @Override
+        public void onFrame(byte type, ByteBuffer payload) throws IOException {
+            mFrames.add(Frame.decode(type, payload));
+        }
+    };
+
+    private FramedSocket(Socket socket) throws IOException {
+        mSocket = socket;
+        mOut = socket.getOutputStream();
+        mIn = socket.getInputStream();
+        mDecoder = new FrameDecoder();
+        mFrames = new ArrayDeque<JSONObject>();
+        mBuffer = new byte[2048];
+    }
+
+    /**
+     * Connects to the server.
+     *
+     * @param timeout
+     *            - connect and read timeout in milliseconds
+     */
+    static FramedSocket connect(InetSocketAddress server, int timeout)
+        throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(server, timeout);
+            socket.setSoTimeout(timeout);
+            return new FramedSocket(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    void send(JSONObject json) throws IOException {
+        mOut.write(Frame.encodeJson(json));
+        mOut.flush();
+    }
+
+    /**
+     * Waits for the next message.
+     *
+     * @throws java.net.SocketTimeoutException
+     *             if nothing arrived within the read timeout
+     */
+    JSONObject receive() throws IOException {
+        while (mFrames.isEmpty()) {
+            int len = mIn.read(mBuffer);
+            if (len < 0)
+                throw new EOFException("Connection closed by server");
+            mDecoder.decode(ByteBuffer.wrap(mBuffer, 0, len), mHandler);
+        }
+        return mFrames.poll();
+    }
+
+    void setTimeout(int timeout) throws IOException {
+        mSocket.setSoTimeout(Math.max(timeout, 1));
+    }
+
+    int getLocalPort() {
+        return mSocket.getLocalPort();
+    }
+
+    void close() {
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+}
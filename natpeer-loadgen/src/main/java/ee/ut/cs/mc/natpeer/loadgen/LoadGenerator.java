@@ -0,0 +1,288 @@
+package ee.ut.cs.mc.natpeer.loadgen;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Drives the rendezvous server with simulated devices and clients. Devices
+ * are registered over the REST API and receive their pushes from a fake
+ * GCM endpoint, or over control channels of their own; clients request the
+ * devices' services at a fixed rate which is raised step by step. Every step
+ * prints the achieved request rate, the error rate and the rendezvous
+ * latency percentiles.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+public class LoadGenerator implements FakePushServer.Listener {
+
+    private static final int SETUP_THREADS = 16;
+
+    private static final int PUSH_THREADS = 8;
+
+    private static final long DRAIN_POLL = 50;
+
+    private final Options mOptions;
+    private final InetSocketAddress mServer;
+    private final RestClient mRest;
+    private final Map<String, SimulatedDevice> mDevices;
+    private final Map<String, Exchange> mPending;
+    private final List<String> mServices;
+    private final ThreadPoolExecutor mClients;
+    private final ExecutorService mDeviceExecutor;
+    private final Random mRandom;
+    private FakePushServer mPushServer;
+    private volatile StepStats mCurrent;
+
+    LoadGenerator(Options options) {
+        mOptions = options;
+        mServer = new InetSocketAddress(options.host, options.tcpPort);
+        mRest = new RestClient("http://" + options.host + ":"
+            + options.apiPort + "/api", options.timeout);
+        mDevices = new ConcurrentHashMap<String, SimulatedDevice>();
+        mPending = new ConcurrentHashMap<String, Exchange>();
+        mServices = new ArrayList<String>();
+        mClients = new ThreadPoolExecutor(options.concurrency,
+            options.concurrency, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(options.concurrency));
+        mDeviceExecutor = Executors.newFixedThreadPool(options.concurrency);
+        mRandom = new Random();
+        mCurrent = new StepStats(0);
+    }
+
+    InetSocketAddress getServer() {
+        return mServer;
+    }
+
+    int getTimeout() {
+        return mOptions.timeout;
+    }
+
+    StepStats getCurrentStats() {
+        return mCurrent;
+    }
+
+    void addPending(String id, Exchange exchange) {
+        mPending.put(id, exchange);
+    }
+
+    Exchange removePending(String id) {
+        return mPending.remove(id);
+    }
+
+    @Override
+    public boolean onPush(String registrationID, String message) {
+        SimulatedDevice device = mDevices.get(registrationID);
+        if (device == null)
+            return false;
+        mCurrent.onPush();
+        handlePush(device, message);
+        return true;
+    }
+
+    /**
+     * A device received a message over its control channel.
+     */
+    void onChannelPush(SimulatedDevice device, String message) {
+        mCurrent.onChannelPush();
+        handlePush(device, message);
+    }
+
+    private void handlePush(final SimulatedDevice device,
+        final String message) {
+        try {
+            mDeviceExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    device.onPush(message);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    void run() throws IOException, InterruptedException {
+        mPushServer = new FakePushServer(mOptions.pushPort, PUSH_THREADS,
+            this);
+        mPushServer.start();
+        System.out.println("Push endpoint: http://<this host>:"
+            + mOptions.pushPort + FakePushServer.PATH);
+        System.out.println("Start natpeer-server with GCM_URL pointing to it");
+        try {
+            register();
+            System.out.println(StepStats.header());
+            for (int rate : mOptions.rates) {
+                StepStats stats = runStep(rate);
+                System.out.println(stats.row());
+                String failures = stats.failures();
+                if (failures.length() > 0)
+                    System.out.println("         " + failures);
+            }
+            printPushStats();
+        } finally {
+            mClients.shutdownNow();
+            mDeviceExecutor.shutdownNow();
+            unregister();
+            mPushServer.stop();
+        }
+    }
+
+    /**
+     * Registers all devices and their services, several at a time.
+     */
+    private void register() throws InterruptedException {
+        String run = Long.toString(System.currentTimeMillis(), 36);
+        final List<SimulatedDevice> devices = new ArrayList<SimulatedDevice>();
+        for (int i = 0; i < mOptions.devices; i++) {
+            List<String> services = new ArrayList<String>();
+            for (int j = 0; j < mOptions.services; j++)
+                services.add("loadgen-" + run + "-" + i + "-" + j);
+            devices.add(new SimulatedDevice(this, "loadgen-" + run + "-" + i,
+                services));
+        }
+        long start = System.nanoTime();
+        forEach(devices, new DeviceTask() {
+
+            @Override
+            public void run(SimulatedDevice device) throws Exception {
+                device.register(mRest);
+                mDevices.put(device.getGcmID(), device);
+                if (mOptions.channel)
+                    device.openChannel();
+            }
+        });
+        for (SimulatedDevice device : mDevices.values())
+            mServices.addAll(device.getServices());
+        System.out.println("Registered " + mDevices.size() + " devices with "
+            + mServices.size() + " services in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+            + " ms");
+        if (mServices.isEmpty())
+            throw new IllegalStateException("No services were registered");
+    }
+
+    /**
+     * Prints the wake-up latencies of both push paths as measured by the
+     * server.
+     */
+    private void printPushStats() {
+        try {
+            JSONObject push = mRest.getStatus().optJSONObject("push");
+            if (push != null)
+                System.out.println("Server wake-up latency (ms): " + push);
+        } catch (IOException e) {
+            System.err.println("Unable to get server status: "
+                + e.getMessage());
+        } catch (JSONException e) {
+            System.err.println("Unable to get server status: "
+                + e.getMessage());
+        }
+    }
+
+    private void unregister() throws InterruptedException {
+        forEach(new ArrayList<SimulatedDevice>(mDevices.values()),
+            new DeviceTask() {
+
+                @Override
+                public void run(SimulatedDevice device) throws Exception {
+                    device.unregister(mRest);
+                }
+            });
+        System.out.println("Unregistered " + mDevices.size() + " devices");
+    }
+
+    private interface DeviceTask {
+
+        void run(SimulatedDevice device) throws Exception;
+    }
+
+    private void forEach(List<SimulatedDevice> devices, final DeviceTask task)
+        throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(SETUP_THREADS);
+        for (final SimulatedDevice device : devices) {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        task.run(device);
+                    } catch (IOException e) {
+                        System.err.println(device.getGcmID() + ": "
+                            + e.getMessage());
+                    } catch (JSONException e) {
+                        System.err.println(device.getGcmID() + ": "
+                            + e.getMessage());
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts exchanges at a fixed rate for the length of a step, then waits
+     * for the started ones to finish.
+     */
+    private StepStats runStep(int rate) throws InterruptedException {
+        StepStats stats = new StepStats(rate);
+        mCurrent = stats;
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(mOptions.step);
+        for (long next = start; next < end; next += interval) {
+            long wait = next - System.nanoTime();
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+            stats.onStarted();
+            String service = mServices.get(mRandom.nextInt(mServices.size()));
+            try {
+                mClients.execute(new Exchange(this, stats, service, next));
+            } catch (RejectedExecutionException e) {
+                stats.onFailed(Failure.DROPPED);
+            }
+        }
+        stats.setDuration(System.nanoTime() - start);
+        long deadline = System.currentTimeMillis() + mOptions.timeout;
+        while (!stats.isDrained() && System.currentTimeMillis() < deadline)
+            Thread.sleep(DRAIN_POLL);
+        return stats;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 1 && args[0].equals("-help")) {
+            System.out.println(Options.USAGE);
+            return;
+        }
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(1);
+            return;
+        }
+        new LoadGenerator(options).run();
+    }
+
+}
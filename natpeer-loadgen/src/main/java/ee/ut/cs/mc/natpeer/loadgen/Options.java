@@ -0,0 +1,97 @@
+package ee.ut.cs.mc.natpeer.loadgen;
+
+/**
+ * Command line options of the load generator.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+class Options {
+
+    static final String USAGE = "Usage: java -jar natpeer-loadgen.jar "
+        + "[options]\n"
+        + "  -host HOST         rendezvous server address (127.0.0.1)\n"
+        + "  -api PORT          REST API port (8000)\n"
+        + "  -port PORT         rendezvous TCP port (8001)\n"
+        + "  -push PORT         port of the fake GCM endpoint (8090)\n"
+        + "  -devices N         simulated devices (100)\n"
+        + "  -services N        services per device (1)\n"
+        + "  -rates R1,R2,...   request rates per second, one per step "
+        + "(10,20,50,100)\n"
+        + "  -step SECONDS      length of each step (10)\n"
+        + "  -concurrency N     exchanges in progress at most (256)\n"
+        + "  -timeout MS        timeout of an exchange (10000)\n"
+        + "  -channel           devices keep control channels and get their "
+        + "pushes\n"
+        + "                     over them instead of the fake GCM endpoint";
+
+    String host = "127.0.0.1";
+    int apiPort = 8000;
+    int tcpPort = 8001;
+    int pushPort = 8090;
+    int devices = 100;
+    int services = 1;
+    int[] rates = { 10, 20, 50, 100 };
+    int step = 10;
+    int concurrency = 256;
+    int timeout = 10000;
+    boolean channel;
+
+    /**
+     * @throws IllegalArgumentException
+     *             if an option is unknown or its value is invalid
+     */
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (name.equals("-channel")) {
+                options.channel = true;
+                continue;
+            }
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for "
+                    + name);
+            String value = args[++i];
+            if (name.equals("-host"))
+                options.host = value;
+            else if (name.equals("-api"))
+                options.apiPort = positive(name, value);
+            else if (name.equals("-port"))
+                options.tcpPort = positive(name, value);
+            else if (name.equals("-push"))
+                options.pushPort = positive(name, value);
+            else if (name.equals("-devices"))
+                options.devices = positive(name, value);
+            else if (name.equals("-services"))
+                options.services = positive(name, value);
+            else if (name.equals("-rates")) {
+                String[] parts = value.split(",");
+                options.rates = new int[parts.length];
+                for (int j = 0; j < parts.length; j++)
+                    options.rates[j] = positive(name, parts[j].trim());
+            } else if (name.equals("-step"))
+                options.step = positive(name, value);
+            else if (name.equals("-concurrency"))
+                options.concurrency = positive(name, value);
+            else if (name.equals("-timeout"))
+                options.timeout = positive(name, value);
+            else
+                throw new IllegalArgumentException("Unknown option " + name);
+        }
+        return options;
+    }
+
+    private static int positive(String name, String value) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n > 0)
+                return n;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid value for " + name + ": "
+            + value);
+    }
+
+}
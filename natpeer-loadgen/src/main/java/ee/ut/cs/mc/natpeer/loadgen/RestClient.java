@@ -0,0 +1,133 @@
+package ee.ut.cs.mc.natpeer.loadgen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Registers and unregisters simulated devices and their services over the
+ * REST API of the rendezvous server.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+class RestClient {
+
+    private static final int HTTP_OK = 200;
+
+    private static final int HTTP_CREATED = 201;
+
+    private final String mApi;
+    private final int mTimeout;
+
+    /**
+     * @param api
+     *            - base URL of the API, e.g. http://127.0.0.1:8000/api
+     * @param timeout
+     *            - connect and read timeout in milliseconds
+     */
+    RestClient(String api, int timeout) {
+        mApi = api;
+        mTimeout = timeout;
+    }
+
+    /**
+     * Registers a device.
+     *
+     * @return ID the server assigned to the device
+     */
+    String registerDevice(String gcmID) throws IOException, JSONException {
+        String body = "gcm=" + URLEncoder.encode(gcmID, "UTF-8");
+        JSONObject json = new JSONObject(request("POST", "/devices",
+            "application/x-www-form-urlencoded", body, null, HTTP_CREATED));
+        return json.getString("_id");
+    }
+
+    void unregisterDevice(String deviceID) throws IOException {
+        request("DELETE", "/devices/" + deviceID, null, null, null, HTTP_OK);
+    }
+
+    /**
+     * Registers all services of a device in one request.
+     *
+     * @return IDs the server assigned to the services, in order
+     */
+    List<String> registerServices(String deviceID, List<String> names)
+        throws IOException, JSONException {
+        JSONObject json = new JSONObject();
+        json.put("device", deviceID);
+        json.put("services", new JSONArray(names));
+        JSONArray array = new JSONArray(request("POST", "/services",
+            "application/json", json.toString(), null, HTTP_CREATED));
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < array.length(); i++)
+            ids.add(array.getJSONObject(i).getString("_id"));
+        return ids;
+    }
+
+    void unregisterServices(String deviceID, List<String> ids)
+        throws IOException, JSONException {
+        JSONObject json = new JSONObject();
+        json.put("device", deviceID);
+        json.put("services", new JSONArray(ids));
+        request("POST", "/services", "application/json", json.toString(),
+            "DELETE", HTTP_OK);
+    }
+
+    /**
+     * Returns the status the server reports at the root of the API.
+     */
+    JSONObject getStatus() throws IOException, JSONException {
+        return new JSONObject(request("GET", "", null, null, null, HTTP_OK));
+    }
+
+    private String request(String method, String path, String contentType,
+        String body, String override, int expected) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(mApi + path)
+            .openConnection();
+        try {
+            conn.setConnectTimeout(mTimeout);
+            conn.setReadTimeout(mTimeout);
+            conn.setRequestMethod(method);
+            if (override != null)
+                conn.setRequestProperty("X-HTTP-Method-Override", override);
+            if (body != null) {
+                conn.setDoOutput(true);
+                conn.setRequestProperty("Content-Type", contentType);
+                OutputStream out = conn.getOutputStream();
+                out.write(body.getBytes("UTF-8"));
+                out.close();
+            }
+            int code = conn.getResponseCode();
+            if (code != expected)
+                throw new IOException(method + " " + path + ": HTTP " + code);
+            return read(conn.getInputStream());
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = in.read(buffer)) > 0)
+                out.write(buffer, 0, len);
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+package ee.ut.cs.mc.natpeer.loadgen;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A device with registered services. Responds to pushed requests over a
+ * connection of its own, like the application does when it has no control
+ * channel, and claims to have a public address so the server does not wait
+ * for a probe. Requests are pushed through the fake GCM endpoint, or over a
+ * control channel if the device has opened one.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+class SimulatedDevice {
+
+    /** Keepalive interval the control channel announces to the server. */
+    private static final int KEEPALIVE_INTERVAL = 20000;
+
+    private final LoadGenerator mGenerator;
+    private final String mGcmID;
+    private final List<String> mServices;
+    private String mDeviceID;
+    private List<String> mServiceIDs;
+    private volatile FramedSocket mChannel;
+
+    SimulatedDevice(LoadGenerator generator, String gcmID,
+        List<String> services) {
+        mGenerator = generator;
+        mGcmID = gcmID;
+        mServices = Collections.unmodifiableList(new ArrayList<String>(
+            services));
+        mServiceIDs = Collections.emptyList();
+    }
+
+    String getGcmID() {
+        return mGcmID;
+    }
+
+    List<String> getServices() {
+        return mServices;
+    }
+
+    /**
+     * Registers the device and its services at the server.
+     */
+    void register(RestClient rest) throws IOException, JSONException {
+        mDeviceID = rest.registerDevice(mGcmID);
+        mServiceIDs = rest.registerServices(mDeviceID, mServices);
+    }
+
+    /**
+     * Opens a control channel which asks the server for pushes and starts
+     * reading them on a thread of its own.
+     */
+    void openChannel() throws IOException, JSONException {
+        FramedSocket socket = FramedSocket.connect(mGenerator.getServer(),
+            mGenerator.getTimeout());
+        try {
+            JSONObject hello = new JSONObject();
+            hello.put("event", "hello");
+            hello.put("device", mDeviceID);
+            hello.put("gcm", mGcmID);
+            hello.put("push", true);
+            hello.put("keepalive", KEEPALIVE_INTERVAL);
+            socket.send(hello);
+            JSONObject reply = socket.receive();
+            if (!"OK".equals(reply.optString("status")))
+                throw new IOException("Control channel rejected: " + reply);
+            socket.setTimeout(KEEPALIVE_INTERVAL);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        mChannel = socket;
+        Thread reader = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                readChannel();
+            }
+        }, "channel-" + mGcmID);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Acknowledges and handles pushes until the channel is closed, pinging
+     * the server whenever the channel has been idle for the keepalive
+     * interval.
+     */
+    private void readChannel() {
+        FramedSocket socket = mChannel;
+        try {
+            while (true) {
+                JSONObject json;
+                try {
+                    json = socket.receive();
+                } catch (SocketTimeoutException e) {
+                    socket.send(new JSONObject().put("event", "ping"));
+                    continue;
+                }
+                JSONObject message = json.optJSONObject("message");
+                if (!"push".equals(json.optString("event"))
+                    || message == null)
+                    continue;
+                socket.send(new JSONObject().put("event", "push_ack").put(
+                    "id", message.optString("id")));
+                mGenerator.onChannelPush(this, message.toString());
+            }
+        } catch (IOException e) {
+            if (mChannel == socket)
+                System.err.println(mGcmID + ": control channel lost: "
+                    + e.getMessage());
+        } catch (JSONException e) {
+            System.err.println(mGcmID + ": " + e.getMessage());
+        }
+        socket.close();
+    }
+
+    /**
+     * Removes the device and its services from the server.
+     */
+    void unregister(RestClient rest) throws IOException, JSONException {
+        FramedSocket channel = mChannel;
+        mChannel = null;
+        if (channel != null)
+            channel.close();
+        if (mDeviceID == null)
+            return;
+        if (!mServiceIDs.isEmpty())
+            rest.unregisterServices(mDeviceID, mServiceIDs);
+        rest.unregisterDevice(mDeviceID);
+        mDeviceID = null;
+    }
+
+    /**
+     * Handles a pushed message. Blocks until the exchange is over.
+     */
+    void onPush(String message) {
+        StepStats stats = mGenerator.getCurrentStats();
+        FramedSocket socket = null;
+        try {
+            JSONObject json = new JSONObject(message);
+            if (!"request".equals(json.optString("gcm_event")))
+                return;
+            String id = json.getString("id");
+            socket = FramedSocket.connect(mGenerator.getServer(),
+                mGenerator.getTimeout());
+            JSONObject response = new JSONObject();
+            response.put("event", "response");
+            response.put("id", id);
+            response.put("local_port", socket.getLocalPort());
+            socket.send(response);
+
+            socket.receive();
+            socket.receive();
+            Exchange exchange = mGenerator.removePending(id);
+            if (exchange != null)
+                exchange.complete();
+        } catch (IOException e) {
+            stats.onFailed(Failure.DEVICE);
+        } catch (JSONException e) {
+            stats.onFailed(Failure.DEVICE);
+        } finally {
+            if (socket != null)
+                socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package ee.ut.cs.mc.natpeer.loadgen;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ee.ut.cs.mc.natpeer.metrics.Histogram;
+
+/**
+ * Results of one load step. Latencies are measured from the time an
+ * exchange was scheduled to start, so a saturated server or generator shows
+ * up as latency rather than as a lower request rate.
+ *
+ * @author Kristjan Reinloo
+ *
+ */
+class StepStats {
+
+    private final int mRate;
+    private final Histogram mEndpoints;
+    private final Histogram mRendezvous;
+    private final AtomicLong mStarted;
+    private final AtomicLong mCompleted;
+    private final AtomicLong mFinished;
+    private final AtomicLong mPushes;
+    private final AtomicLong mChannelPushes;
+    private final AtomicLongArray mFailures;
+    private volatile long mDuration;
+
+    /**
+     * @param rate
+     *            - offered request rate per second
+     */
+    StepStats(int rate) {
+        mRate = rate;
+        mEndpoints = new Histogram();
+        mRendezvous = new Histogram();
+        mStarted = new AtomicLong();
+        mCompleted = new AtomicLong();
+        mFinished = new AtomicLong();
+        mPushes = new AtomicLong();
+        mChannelPushes = new AtomicLong();
+        mFailures = new AtomicLongArray(Failure.values().length);
+    }
+
+    void onStarted() {
+        mStarted.incrementAndGet();
+    }
+
+    void onPush() {
+        mPushes.incrementAndGet();
+    }
+
+    void onChannelPush() {
+        mChannelPushes.incrementAndGet();
+    }
+
+    /**
+     * The client has received the device's endpoints.
+     */
+    void onEndpoints(long nanos) {
+        mEndpoints.record(nanos / 1000);
+    }
+
+    /**
+     * The device has received the client's connection information.
+     */
+    void onCompleted(long nanos) {
+        mRendezvous.record(nanos / 1000);
+        mCompleted.incrementAndGet();
+        mFinished.incrementAndGet();
+    }
+
+    void onFailed(Failure failure) {
+        mFailures.incrementAndGet(failure.ordinal());
+        if (failure != Failure.DEVICE)
+            mFinished.incrementAndGet();
+    }
+
+    /**
+     * Returns true once every started exchange has completed or failed.
+     */
+    boolean isDrained() {
+        return mFinished.get() >= mStarted.get();
+    }
+
+    void setDuration(long nanos) {
+        mDuration = nanos;
+    }
+
+    static String header() {
+        return String.format("%8s %8s %8s %8s %7s %8s %8s %8s %8s %8s",
+            "offered", "achieved", "started", "done", "err%", "ep-p50",
+            "p50", "p90", "p99", "max");
+    }
+
+    /**
+     * Formats the step as a row of the table, latencies in milliseconds.
+     */
+    String row() {
+        long started = mStarted.get();
+        long failed = 0;
+        for (Failure failure : Failure.values()) {
+            if (failure != Failure.DEVICE)
+                failed += mFailures.get(failure.ordinal());
+        }
+        double seconds = Math.max(mDuration, 1) / 1e9;
+        Histogram.Snapshot rendezvous = mRendezvous.snapshot();
+        return String.format("%8d %8.1f %8d %8d %6.2f%% %8.1f %8.1f %8.1f "
+            + "%8.1f %8.1f", mRate, mCompleted.get() / seconds, started,
+            mCompleted.get(), started == 0 ? 0.0 : 100.0 * failed / started,
+            millis(mEndpoints.snapshot().getPercentile(0.5)),
+            millis(rendezvous.getPercentile(0.5)),
+            millis(rendezvous.getPercentile(0.9)),
+            millis(rendezvous.getPercentile(0.99)),
+            millis(rendezvous.getMax()));
+    }
+
+    /**
+     * Lists the failures of the step, empty if there were none.
+     */
+    String failures() {
+        StringBuilder sb = new StringBuilder();
+        for (Failure failure : Failure.values()) {
+            long count = mFailures.get(failure.ordinal());
+            if (count > 0)
+                sb.append(' ').append(failure).append('=').append(count);
+        }
+        if (sb.length() > 0)
+            sb.insert(0, "pushes=" + mPushes.get() + " channel="
+                + mChannelPushes.get());
+        return sb.toString();
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+}
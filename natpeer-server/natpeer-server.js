@@ -10,9 +10,14 @@ var express  = require("express"),
     mongoose = require("mongoose"),
     util     = require("util"),
     net      = require("net"),
-    needle   = require("needle");
-
-var GCM_URL      = "https://android.googleapis.com/gcm/send",
+    needle   = require("needle"),
+    PortPredictor = require("./port-predictor"),
+    PushStats     = require("./push-stats"),
+    RouteCache    = require("./route-cache");
+
+// GCM_URL may point to a fake push endpoint, see natpeer-loadgen
+var GCM_URL      = process.env.GCM_URL ||
+                   "https://android.googleapis.com/gcm/send",
     GCM_AUTH_KEY = "",
     DB_NAME      = "natpeer-server";
 
@@ -55,6 +60,58 @@ var Service = new Schema({
 
 var ServiceModel = mongoose.model("Service", Service);
 
+var routes = new RouteCache();
+
+/*
+    Caches the routes of newly registered services of a device.
+ */
+function addRoutes(services) {
+  if (services.length === 0)
+    return;
+  DeviceModel.findById(services[0].device, function(err, device) {
+    if (err || device === null)
+      return;
+    services.forEach(function(service) {
+      routes.set(service.name, {
+        service : service._id.toString(),
+        device  : service.device,
+        gcm     : device.gcm
+      });
+    });
+  });
+};
+
+/*
+    Finds the device which provides a service, from the cache if possible.
+    Calls back with a null route if there is no such service.
+ */
+function findRoute(name, callback) {
+  var route = routes.get(name);
+  if (route !== undefined)
+    return callback(null, route);
+  ServiceModel.findOne({ name: name }, function(err, service) {
+    if (err)
+      return callback(err);
+    if (service === null) {
+      routes.setMissing(name);
+      return callback(null, null);
+    }
+    DeviceModel.findById(service.device, function(err, device) {
+      if (err)
+        return callback(err);
+      if (device === null)
+        return callback(null, null);
+      route = {
+        service : service._id.toString(),
+        device  : service.device,
+        gcm     : device.gcm
+      };
+      routes.set(name, route);
+      callback(null, route);
+    });
+  });
+};
+
 mongoose.connect("mongodb://localhost/" + DB_NAME);
 api.configure(function() {
     api.use(express.bodyParser());
@@ -64,7 +121,11 @@ api.configure(function() {
 });
 
 api.get("/api", function(req, res) {
-  res.send(200, { status: "OK" });
+  res.send(200, {
+    status: "OK",
+    routes: { size: routes.size, hits: routes.hits, misses: routes.misses },
+    push:   pushStats
+  });
 });
 
 api.post("/api/devices", function(req, res) {
@@ -88,6 +149,7 @@ api.delete("/api/devices/:id", function(req, res) {
     }
     return device.remove(function(err) {
       if (!err) {
+        routes.removeDevice(device._id.toString());
         console.log("Device deleted: " + device._id);
       } else {
         console.log(err);
@@ -97,6 +159,75 @@ api.delete("/api/devices/:id", function(req, res) {
   });
 });
 
+/*
+    Batch variants of service registration and unregistration. A body with a
+    list of names (POST) or IDs (DELETE) handles a whole device's services in
+    one round trip. Clients which cannot send a body with DELETE use POST with
+    X-HTTP-Method-Override: DELETE.
+ */
+api.post("/api/services", function(req, res, next) {
+  if (!Array.isArray(req.body.services))
+    return next();
+  var services = req.body.services.map(function(name) {
+    return new ServiceModel({
+      name: name,
+      device: req.body.device
+    });
+  });
+  var pending = services.length,
+      saved   = [],
+      failed  = false;
+  if (pending === 0)
+    return res.send(201, []);
+  // The batch succeeds or fails as a whole: once every save has finished,
+  // the services which were saved are removed again if any save failed
+  services.forEach(function(service) {
+    service.save(function(err) {
+      if (err) {
+        failed = true;
+        console.log(err);
+      } else {
+        saved.push(service._id);
+      }
+      if (--pending > 0)
+        return;
+      if (!failed) {
+        services.forEach(function(service) {
+          console.log("Service created: " + service.name + " " + service._id);
+        });
+        addRoutes(services);
+        return res.send(201, services);
+      }
+      ServiceModel.remove({ _id: { $in: saved } }, function(err) {
+        if (err)
+          console.log(err);
+        res.send(500, { err: "unable to create services" });
+      });
+    });
+  });
+});
+
+api.delete("/api/services", function(req, res) {
+  if (!Array.isArray(req.body.services) || !req.body.device)
+    return res.send(400, { err: "expected device and services" });
+  var query = {
+    _id: { $in: req.body.services },
+    device: req.body.device
+  };
+  return ServiceModel.remove(query, function(err, count) {
+    if (err) {
+      console.log(err);
+      return res.send(500, { err: "unable to delete services" });
+    }
+    req.body.services.forEach(function(id) {
+      routes.removeService(id);
+    });
+    console.log("Services deleted: " + count + " of device "
+      + req.body.device);
+    return res.send(200, { message: "OK", count: count });
+  });
+});
+
 api.post("/api/services", function(req, res) {
   var service = new ServiceModel({
     name: req.body.name,
@@ -106,11 +237,12 @@ api.post("/api/services", function(req, res) {
     if (err) {
       return console.log(err);
     } else {
+      addRoutes([service]);
       return console.log("Service created: " + service.name + " "
         + service._id);
     }
   });
-  return res.set("Connection", "close") && res.send(201, service);
+  return res.send(201, service);
 });
 
 api.delete("/api/services/:id", function(req, res) {
@@ -122,6 +254,7 @@ api.delete("/api/services/:id", function(req, res) {
       if (err) {
         console.log(err);
       } else {
+        routes.removeService(service._id.toString());
         console.log("Service deleted: " + service.name + " " + service._id);
       }
       return res.send(200, { message: "OK" });
@@ -131,10 +264,451 @@ api.delete("/api/services/:id", function(req, res) {
 
 api.listen(8000);
 
-var requests = {};
+var requests    = {},
+    channels    = {},
+    predictions = {},
+    predictor   = new PortPredictor(),
+    pushStats   = new PushStats();
+
+// How long a response waits for the probe of a device behind NAT
+var PROBE_TIMEOUT      = 1000,
+    PREDICTION_TIMEOUT = 60 * 1000;
+
+// How long a push over a control channel waits for its acknowledgement
+// before the request is sent through GCM. Control channels of devices which
+// announce a keepalive interval are dropped if nothing arrives on them for
+// KEEPALIVE_MISSES intervals.
+var PUSH_ACK_TIMEOUT   = 2000,
+    KEEPALIVE_MISSES   = 3;
+
+/*
+    Framed wire format: a one byte type, a four byte big-endian payload length
+    and the payload. Connections whose first byte is not a frame type carry a
+    single bare JSON document instead (libnatpeer clients).
+ */
+var FRAME_JSON            = 0x01,
+    FRAME_ENDPOINTS       = 0x02,
+    FRAME_CONNECTION_INFO = 0x03,
+    FRAME_HEADER_LENGTH   = 5,
+    FRAME_MAX_LENGTH      = 64 * 1024;
+
+function isFrameType(b) {
+  return b >= FRAME_JSON && b <= FRAME_CONNECTION_INFO;
+};
+
+function FrameDecoder() {
+  this.chunks = [];
+  this.length = 0;
+};
+
+/*
+    Appends data and calls back with every complete frame. Returns an error if
+    the stream is corrupt, in which case the connection has to be dropped.
+ */
+FrameDecoder.prototype.push = function(data, callback) {
+  this.chunks.push(data);
+  this.length += data.length;
+  while (this.length >= FRAME_HEADER_LENGTH) {
+    if (this.chunks[0].length < FRAME_HEADER_LENGTH)
+      this.chunks = [Buffer.concat(this.chunks, this.length)];
+    var head = this.chunks[0],
+        type = head[0],
+        len  = head.readUInt32BE(1);
+    if (!isFrameType(type) || len > FRAME_MAX_LENGTH)
+      return new Error("invalid frame: type " + type + ", length " + len);
+    if (this.length < FRAME_HEADER_LENGTH + len)
+      break;
+    if (head.length < FRAME_HEADER_LENGTH + len)
+      head = Buffer.concat(this.chunks, this.length);
+    var payload = head.slice(FRAME_HEADER_LENGTH, FRAME_HEADER_LENGTH + len),
+        rest    = head.slice(FRAME_HEADER_LENGTH + len);
+    if (head === this.chunks[0])
+      this.chunks.shift();
+    else
+      this.chunks = [];
+    if (rest.length > 0)
+      this.chunks.unshift(rest);
+    this.length -= FRAME_HEADER_LENGTH + len;
+    callback(type, payload);
+  }
+  return null;
+};
+
+function encodeFrame(type, payload) {
+  var header = new Buffer(FRAME_HEADER_LENGTH);
+  header[0] = type;
+  header.writeUInt32BE(payload.length, 1);
+  return Buffer.concat([header, payload]);
+};
+
+function encodeString(str) {
+  var bytes = new Buffer(str, "utf8");
+  return Buffer.concat([new Buffer([bytes.length]), bytes]);
+};
+
+function encodeAddress(addr) {
+  var v4 = addr.replace(/^::ffff:/, "");
+  if (net.isIPv4(v4))
+    return new Buffer([4].concat(v4.split(".").map(Number)));
+  var groups = addr.split("::"),
+      head   = groups[0] ? groups[0].split(":") : [],
+      tail   = groups.length > 1 && groups[1] ? groups[1].split(":") : [],
+      words  = head;
+  for (var i = head.length + tail.length; i < 8; i++)
+    words.push("0");
+  words = words.concat(tail);
+  var buf = new Buffer(17);
+  buf[0] = 16;
+  for (i = 0; i < 8; i++)
+    buf.writeUInt16BE(parseInt(words[i], 16), 1 + i * 2);
+  return buf;
+};
+
+function encodePort(port) {
+  var buf = new Buffer(2);
+  buf.writeUInt16BE(port, 0);
+  return buf;
+};
+
+function encodeUInt32(value) {
+  var buf = new Buffer(4);
+  buf.writeUInt32BE(value >>> 0, 0);
+  return buf;
+};
+
+function decodeFrame(type, payload) {
+  if (type === FRAME_JSON)
+    return JSON.parse(payload.toString("utf8"));
+  var len = payload[0],
+      id  = payload.toString("utf8", 1, 1 + len);
+  if (type === FRAME_CONNECTION_INFO) {
+    return {
+      event  : "connection_info",
+      id     : id,
+      isn    : payload.readUInt32BE(1 + len),
+      ts_val : payload.readUInt32BE(5 + len)
+    };
+  }
+  throw new Error("unexpected frame type " + type);
+};
+
+function writeMessage(soc, message) {
+  if (soc.framed)
+    soc.write(encodeFrame(FRAME_JSON, new Buffer(JSON.stringify(message))));
+  else
+    soc.write(JSON.stringify(message));
+};
+
+/*
+    Tells a client its request failed and closes the connection. Bare JSON
+    clients get the error in an array, where they expect the endpoints.
+ */
+function writeError(soc, message) {
+  var error = { event: "error", error: message };
+  writeMessage(soc, soc.framed ? error : [error]);
+  soc.end();
+};
+
+/*
+    Binary endpoints may be followed by a one byte count and that many
+    candidate peer ports, most likely first.
+ */
+function writeEndpoints(soc, endpoints) {
+  if (soc.binary) {
+    var parts = [
+      encodeString(endpoints.id),
+      encodeAddress(endpoints.ip),
+      encodePort(endpoints.port),
+      encodeAddress(endpoints.peer_ip),
+      encodePort(endpoints.peer_port)
+    ];
+    if (endpoints.peer_ports) {
+      parts.push(new Buffer([endpoints.peer_ports.length]));
+      endpoints.peer_ports.forEach(function(port) {
+        parts.push(encodePort(port));
+      });
+    }
+    soc.write(encodeFrame(FRAME_ENDPOINTS, Buffer.concat(parts)));
+  } else if (soc.framed) {
+    writeMessage(soc, endpoints);
+  } else {
+    writeMessage(soc, [endpoints]);
+  }
+};
+
+function writeConnectionInfo(soc, info) {
+  if (soc.binary) {
+    soc.write(encodeFrame(FRAME_CONNECTION_INFO, Buffer.concat([
+      encodeString(info.id),
+      encodeUInt32(info.isn),
+      encodeUInt32(info.ts_val)
+    ])));
+  } else {
+    writeMessage(soc, info);
+  }
+};
+
+function openChannel(soc, json) {
+  DeviceModel.findById(json.device, function(err, device) {
+    if (err || device === null || device.gcm !== json.gcm) {
+      writeMessage(soc, { event: "hello", status: "DENIED" });
+      soc.end();
+      return;
+    }
+    var id = device._id.toString();
+    if (channels[id] && channels[id] !== soc)
+      channels[id].end();
+    channels[id] = soc;
+    soc.control     = true;
+    soc.binary      = soc.framed && json.binary === true;
+    soc.device      = id;
+    soc.acceptsPush = json.push === true;
+    soc.setKeepAlive(true);
+    if (json.keepalive > 0)
+      soc.setTimeout(json.keepalive * KEEPALIVE_MISSES);
+    console.log("Control channel opened: " + id);
+    writeMessage(soc, { event: "hello", status: "OK" });
+  });
+};
+
+/*
+    Sends both peers each other's endpoints once the device has responded.
+    Peer ports are predicted from the peers' NAT profiles, the first
+    candidate is also sent as peer_port for peers which only try one port.
+ */
+function sendEndpoints(id) {
+  var request      = requests[id],
+      clientSocket = request.client,
+      soc          = request.server;
+
+  var clientPorts = predictor.predict(clientSocket.remoteAddress,
+      clientSocket.remotePort, request.clientLocalPort, request.clientNat);
+  var serverBase  = request.probe !== undefined ? request.probe
+                                                : soc.remotePort;
+  var serverPorts = predictor.predict(soc.remoteAddress, serverBase,
+      request.serverLocalPort, request.serverNat);
+
+  predictions[id] = {
+    ip   : clientSocket.remoteAddress,
+    base : clientSocket.remotePort
+  };
+  setTimeout(function() {
+    delete predictions[id];
+  }, PREDICTION_TIMEOUT);
+
+  writeEndpoints(clientSocket, {
+    id         : id,
+    ip         : clientSocket.remoteAddress,
+    port       : clientSocket.remotePort,
+    peer_ip    : soc.remoteAddress,
+    peer_port  : serverPorts[0],
+    peer_ports : clientSocket.framed ? serverPorts : undefined
+  });
+
+  writeEndpoints(soc, {
+    id         : id,
+    ip         : soc.remoteAddress,
+    port       : soc.remotePort,
+    peer_ip    : clientSocket.remoteAddress,
+    peer_port  : clientPorts[0],
+    peer_ports : soc.framed ? clientPorts : undefined
+  });
+};
+
+/*
+    Pushes a request to the device over its control channel if one is open
+    and the device asked for pushes in its hello, through GCM otherwise. A
+    channel push which is not acknowledged in time is repeated through GCM,
+    the device answers whichever arrives first.
+ */
+function pushRequest(route, message, request) {
+  var channel = channels[route.device];
+  request.pushedAt = Date.now();
+  if (!channel || !channel.acceptsPush) {
+    request.path = "gcm";
+    pushStats.pushed("gcm");
+    return sendGCMMessage(route.gcm, message);
+  }
+  request.path = "channel";
+  pushStats.pushed("channel");
+  writeMessage(channel, { event: "push", message: message });
+  request.ackTimer = setTimeout(function() {
+    delete request.ackTimer;
+    util.debug("No push_ack for " + message.id + ", falling back to GCM");
+    request.path = "gcm";
+    request.pushedAt = Date.now();
+    pushStats.pushed("gcm");
+    pushStats.fallbacks++;
+    sendGCMMessage(route.gcm, message);
+  }, PUSH_ACK_TIMEOUT);
+};
+
+function clearAckTimer(request) {
+  if (request.ackTimer) {
+    clearTimeout(request.ackTimer);
+    delete request.ackTimer;
+  }
+};
+
+function handleMessage(soc, json) {
+  if (json.event === "hello") {
+    openChannel(soc, json);
+
+  } else if (json.event === "request") {
+    findRoute(json.service, function(err, route) {
+      if (err) {
+        console.log(err);
+        return writeError(soc, "service lookup failed");
+      }
+      if (route === null)
+        return writeError(soc, "unknown service: " + json.service);
+      var id = generateID();
+      requests[id] = {
+        client: soc,
+        gcm: route.gcm,
+        clientNat: json.nat === true,
+        clientLocalPort: json.local_port
+      };
+      var message = {
+        gcm_event: "request",
+        id:        id,
+        service:   json.service,
+        ts:        Date.now()
+      };
+      // the device answers with the port of its stream multiplexer
+      if (json.mux === true)
+        message.mux = true;
+      pushRequest(route, message, requests[id]);
+    });
+
+  } else if (json.event === "push_ack") {
+    var pushed = requests[json.id];
+    if (pushed)
+      clearAckTimer(pushed);
+
+  } else if (json.event === "ping") {
+    writeMessage(soc, { event: "pong" });
+
+  } else if (json.event === "response") {
+    var request = requests[json.id];
+    if (!request) {
+      console.log("Unknown request: " + json.id);
+      return;
+    }
+    // A response over a connection of its own takes over from one over the
+    // control channel which is still waiting for its probe
+    var waiting = request.probeTimer !== undefined && !soc.control;
+    // a device may send a response again, only the first one is acted on
+    // and the others are told so rather than left waiting
+    if (request.server && !waiting) {
+      if (request.server !== soc)
+        writeMessage(soc, { event: "error", id: json.id,
+                            error: "already answered" });
+      return;
+    }
+    if (waiting) {
+      clearTimeout(request.probeTimer);
+      delete request.probeTimer;
+      writeMessage(request.server, { event: "error", id: json.id,
+                                     error: "superseded" });
+    }
+    clearAckTimer(request);
+    if (!request.woken) {
+      request.woken = true;
+      pushStats.woken(request.path, Date.now() - request.pushedAt);
+    }
+    request.server = soc;
+    request.serverNat = json.nat === true;
+    request.serverLocalPort = json.local_port;
+
+    // A response over the control channel says nothing about the device's
+    // current NAT mapping, a probe connection opened along with it does.
+    // Without the probe the device is told to respond over a connection of
+    // its own, the port of the channel is too old to predict from.
+    if (soc.control && request.serverNat && !request.probe) {
+      request.probeTimer = setTimeout(function() {
+        delete request.probeTimer;
+        util.debug("No probe for " + json.id);
+        delete request.server;
+        writeMessage(soc, { event: "error", id: json.id,
+                            error: "no probe" });
+      }, PROBE_TIMEOUT);
+      return;
+    }
+    sendEndpoints(json.id);
+
+  } else if (json.event === "probe") {
+    if (json.local_port !== undefined)
+      predictor.observeLocal(soc.remoteAddress, soc.remotePort,
+          json.local_port);
+    soc.end();
+    var probed = requests[json.id];
+    if (!probed)
+      return;
+    probed.probe = soc.remotePort;
+    if (probed.probeTimer) {
+      clearTimeout(probed.probeTimer);
+      delete probed.probeTimer;
+      sendEndpoints(json.id);
+    }
+
+  } else if (json.event === "punch_result") {
+    var prediction = predictions[json.id];
+    if (!prediction)
+      return;
+    delete predictions[json.id];
+    if (json.success && json.port)
+      predictor.feedback(prediction.ip, prediction.base, json.port);
+
+  } else if (json.event === "connection_info") {
+    if (!requests[json.id] || !requests[json.id].server) {
+      console.log("Unknown request: " + json.id);
+      soc.end();
+      return;
+    }
+    var server = requests[json.id].server;
+    writeConnectionInfo(server, {
+      id     : json.id,
+      isn    : json.isn,
+      ts_val : json.ts_val
+    });
+    soc.end();
+    if (!server.control)
+      server.end();
+    delete requests[json.id];
+  } else if (!soc.control) {
+    soc.end();
+  }
+};
+
 var server = net.createServer(function(soc) {
+  predictor.observe(soc.remoteAddress, soc.remotePort);
 
   soc.on("data", function(data) {
+    if (soc.framed === undefined) {
+      soc.framed = isFrameType(data[0]);
+      if (soc.framed)
+        soc.decoder = new FrameDecoder();
+    }
+
+    if (soc.framed) {
+      var err = soc.decoder.push(data, function(type, payload) {
+        var json;
+        try {
+          json = decodeFrame(type, payload);
+        } catch (err) {
+          util.debug(soc.remoteAddress + ":" + soc.remotePort + " " + err);
+          return;
+        }
+        handleMessage(soc, json);
+      });
+      if (err) {
+        util.debug(soc.remoteAddress + ":" + soc.remotePort + " " + err);
+        soc.destroy();
+      }
+      return;
+    }
+
     var json;
     try {
       json = JSON.parse(data);
@@ -145,76 +719,29 @@ var server = net.createServer(function(soc) {
       soc.end();
       return;
     }
+    handleMessage(soc, json);
+  });
 
-    if (json.event === "request") {
-      ServiceModel.findOne({ name: json.service }, function(err, service) {
-        if (err) {
-          console.log(err);
-          return;
-        }
-        DeviceModel.findById(service.device, function(err, device) {
-          if (err) {
-            console.log(err);
-            return;
-          }
-          var id = generateID();
-          sendGCMMessage(device.gcm, {
-            gcm_event: "request",
-            id:        id,
-            service:   service.name
-          });
-          requests[id] = {
-            client: soc,
-            gcm: device.gcm
-          };
-          if (json.nat) {
-            requests[id].clientNat = true;
-          }
-        });
-      });
+  soc.on("end", function() {
+    console.log("EOF");
+  });
 
-    } else if (json.event === "response") {
-
-      var clientNat = requests[json.id].clientNat ? 1 : 0;
-      var serverNat = json.nat ? 1 : 0;
-
-      requests[json.id].server = soc;
-      clientSocket = requests[json.id].client;
-
-      clientSocket.write(JSON.stringify([{
-        id        : json.id,
-        ip        : clientSocket.remoteAddress,
-        port      : clientSocket.remotePort,
-        peer_ip   : soc.remoteAddress,
-        peer_port : soc.remotePort + serverNat
-      }]));
-
-      soc.write(JSON.stringify([{
-        id        : json.id,
-        ip        : soc.remoteAddress,
-        port      : soc.remotePort,
-        peer_ip   : clientSocket.remoteAddress,
-        peer_port : clientSocket.remotePort + clientNat
-      }]));
-
-    } else if (json.event === "connection_info") {
-      var server = requests[json.id].server;
-      server.write(JSON.stringify({
-        id     : json.id,
-        isn    : json.isn,
-        ts_val : json.ts_val
-      }));
-      soc.end();
-      server.end();
-      delete requests[json.id];
-    } else {
-      soc.end();
+  soc.on("timeout", function() {
+    if (soc.control) {
+      console.log("Control channel idle: " + soc.device);
+      soc.destroy();
     }
+  });
 
+  soc.on("close", function() {
+    if (soc.control && channels[soc.device] === soc) {
+      delete channels[soc.device];
+      console.log("Control channel closed: " + soc.device);
+    }
   });
 
-  soc.on("end", function() {
-    console.log("EOF");
+  soc.on("error", function(err) {
+    console.log(err);
   });
 
 });
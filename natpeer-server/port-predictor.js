@@ -0,0 +1,201 @@
+/*
+
+    port-predictor.js
+
+    Learns how NATs allocate public ports and predicts the port a NAT will
+    pick for the next outgoing connection of a peer.
+
+    Every connection the server sees from a public address is a sample of
+    that NAT's mappings. Consecutive samples which are close in time give
+    the allocation delta; how often the most common delta occurs gives the
+    randomness of the allocator. A NAT which keeps the local port of a
+    connection as its public port is port preserving. Confirmed mappings
+    reported back by peers after a punch weigh as much as several samples.
+
+    Every connection adds a profile, so profiles which have not been used
+    for PROFILE_TTL are dropped, and the least recently used profile is
+    evicted once there are MAX_PROFILES of them.
+
+ */
+
+var MAX_SAMPLES     = 32,
+    MAX_DELTAS      = 32,
+    SAMPLE_WINDOW   = 10 * 1000,
+    PROFILE_TTL     = 60 * 60 * 1000,
+    MAX_PROFILES    = 10000,
+    FEEDBACK_WEIGHT = 4,
+    MAX_CANDIDATES  = 8;
+
+function PortPredictor(maxProfiles) {
+  this.maxProfiles = maxProfiles || MAX_PROFILES;
+  this.profiles    = {};
+  this.size        = 0;
+  // Sentinel of the recency list, most recently used next to it
+  this.head        = {};
+  this.head.prev = this.head.next = this.head;
+};
+
+function unlink(profile) {
+  profile.prev.next = profile.next;
+  profile.next.prev = profile.prev;
+};
+
+PortPredictor.prototype.link = function(profile) {
+  profile.next = this.head.next;
+  profile.prev = this.head;
+  this.head.next.prev = profile;
+  this.head.next = profile;
+};
+
+PortPredictor.prototype.remove = function(profile) {
+  unlink(profile);
+  delete this.profiles[profile.ip];
+  this.size--;
+};
+
+PortPredictor.prototype.profile = function(ip) {
+  var profile = this.profiles[ip],
+      now     = Date.now(),
+      oldest;
+  if (profile && now - profile.updated > PROFILE_TTL)
+    this.remove(profile);
+  else if (profile) {
+    unlink(profile);
+    this.link(profile);
+  }
+  // The least recently used profiles are at the end of the list
+  while ((oldest = this.head.prev) !== this.head &&
+         now - oldest.updated > PROFILE_TTL)
+    this.remove(oldest);
+  if (!this.profiles[ip]) {
+    profile = this.profiles[ip] = {
+      ip        : ip,
+      samples   : [],
+      deltas    : [],
+      preserved : 0,
+      remapped  : 0,
+      updated   : now
+    };
+    this.link(profile);
+    this.size++;
+    if (this.size > this.maxProfiles)
+      this.remove(this.head.prev);
+  }
+  return profile;
+};
+
+function addDelta(profile, delta, weight) {
+  for (var i = 0; i < weight; i++)
+    profile.deltas.push(delta);
+  if (profile.deltas.length > MAX_DELTAS)
+    profile.deltas.splice(0, profile.deltas.length - MAX_DELTAS);
+};
+
+/*
+    Records a mapping seen by the server.
+ */
+PortPredictor.prototype.observe = function(ip, mappedPort) {
+  var profile = this.profile(ip),
+      now     = Date.now(),
+      last    = profile.samples[profile.samples.length - 1];
+
+  if (last && now - last.time < SAMPLE_WINDOW)
+    addDelta(profile, mappedPort - last.port, 1);
+  profile.samples.push({ port: mappedPort, time: now });
+  if (profile.samples.length > MAX_SAMPLES)
+    profile.samples.shift();
+  profile.updated = now;
+};
+
+/*
+    Records the local port of an observed mapping, as reported by the peer.
+ */
+PortPredictor.prototype.observeLocal = function(ip, mappedPort, localPort) {
+  var profile = this.profile(ip);
+  if (localPort === mappedPort)
+    profile.preserved++;
+  else
+    profile.remapped++;
+};
+
+/*
+    Records the port a punch actually succeeded on, relative to the base the
+    prediction was made from.
+ */
+PortPredictor.prototype.feedback = function(ip, base, port) {
+  var profile = this.profile(ip);
+  addDelta(profile, port - base, FEEDBACK_WEIGHT);
+  profile.updated = Date.now();
+};
+
+/*
+    Summarizes what has been learned about a NAT: the most common delta, the
+    share of deltas which differ from it and whether ports are preserved.
+ */
+PortPredictor.prototype.pattern = function(ip) {
+  var profile = this.profile(ip),
+      counts  = {},
+      delta   = 1,
+      best    = 0;
+
+  profile.deltas.forEach(function(d) {
+    counts[d] = (counts[d] || 0) + 1;
+    if (counts[d] > best) {
+      best  = counts[d];
+      delta = d;
+    }
+  });
+  return {
+    delta      : delta,
+    randomness : profile.deltas.length ? 1 - best / profile.deltas.length
+                                       : 0.5,
+    preserving : profile.preserved > profile.remapped,
+    samples    : profile.deltas.length
+  };
+};
+
+/*
+    Returns the candidate public ports for the next connection of a peer,
+    most likely first.
+
+    base      - public port of the peer's freshest connection
+    localPort - local port the peer will connect from, if known
+    nat       - whether the peer is behind a NAT at all
+ */
+PortPredictor.prototype.predict = function(ip, base, localPort, nat) {
+  if (!nat)
+    return [localPort !== undefined ? localPort : base];
+
+  var pattern    = this.pattern(ip),
+      candidates = [],
+      count;
+
+  function add(port) {
+    if (port > 0 && port < 65536 && candidates.indexOf(port) < 0 &&
+        candidates.length < MAX_CANDIDATES)
+      candidates.push(port);
+  };
+
+  if (pattern.preserving && localPort !== undefined)
+    add(localPort);
+
+  // Without samples the first candidate is the classic base + 1 guess
+  if (pattern.samples === 0) {
+    add(base + 1);
+    add(base + 2);
+    add(base);
+    return candidates;
+  }
+
+  count = 1 + Math.ceil(pattern.randomness * (MAX_CANDIDATES - 1));
+  for (var k = 1; candidates.length < count && k <= MAX_CANDIDATES; k++)
+    add(base + pattern.delta * k);
+  // An unpredictable allocator may still land next to the expected port
+  for (k = 1; candidates.length < count && k <= MAX_CANDIDATES; k++) {
+    add(base + pattern.delta + k);
+    add(base + pattern.delta - k);
+  }
+  return candidates;
+};
+
+module.exports = PortPredictor;
@@ -0,0 +1,83 @@
+/*
+
+    push-stats.js
+
+    Wake-up latency of devices per push path: the time from pushing a
+    service request to a device until its response arrives. Requests are
+    pushed over the device's control channel when it has one open and
+    through GCM otherwise, or when the channel did not acknowledge the push.
+
+    Only the most recent samples of each path are kept for percentiles.
+
+ */
+
+var MAX_SAMPLES = 1000;
+
+function PathStats() {
+  this.pushed  = 0;
+  this.woken   = 0;
+  this.sum     = 0;
+  this.max     = 0;
+  this.samples = [];
+  this.next    = 0;
+};
+
+PathStats.prototype.record = function(ms) {
+  this.woken++;
+  this.sum += ms;
+  if (ms > this.max)
+    this.max = ms;
+  if (this.samples.length < MAX_SAMPLES)
+    this.samples.push(ms);
+  else
+    this.samples[this.next] = ms;
+  this.next = (this.next + 1) % MAX_SAMPLES;
+};
+
+PathStats.prototype.toJSON = function() {
+  var sorted = this.samples.slice().sort(function(a, b) { return a - b; });
+  function percentile(p) {
+    if (sorted.length === 0)
+      return 0;
+    return sorted[Math.min(sorted.length - 1,
+                           Math.floor(sorted.length * p / 100))];
+  }
+  return {
+    pushed : this.pushed,
+    woken  : this.woken,
+    mean   : this.woken ? Math.round(this.sum / this.woken) : 0,
+    p50    : percentile(50),
+    p95    : percentile(95),
+    p99    : percentile(99),
+    max    : this.max
+  };
+};
+
+function PushStats() {
+  this.paths     = { channel: new PathStats(), gcm: new PathStats() };
+  this.fallbacks = 0;
+};
+
+/*
+    Counts a push over given path, "channel" or "gcm".
+ */
+PushStats.prototype.pushed = function(path) {
+  this.paths[path].pushed++;
+};
+
+/*
+    Records the wake-up latency of a request pushed over given path.
+ */
+PushStats.prototype.woken = function(path, ms) {
+  this.paths[path].record(ms);
+};
+
+PushStats.prototype.toJSON = function() {
+  return {
+    channel   : this.paths.channel.toJSON(),
+    gcm       : this.paths.gcm.toJSON(),
+    fallbacks : this.fallbacks
+  };
+};
+
+module.exports = PushStats;
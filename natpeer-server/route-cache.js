@@ -0,0 +1,137 @@
+/*
+
+    route-cache.js
+
+    Maps service names to the device which provides them, so a request can be
+    pushed to the device without querying the database.
+
+    Routes are added when services are registered or looked up and removed
+    when services or devices are deleted. The least recently used route is
+    evicted once the cache is full. Names which are not registered are
+    remembered for a short while, so repeated requests for them fail fast
+    without a database round trip.
+
+ */
+
+var MAX_ROUTES   = 10000,
+    MISSING_TTL  = 5 * 1000;
+
+function RouteCache(maxRoutes) {
+  this.maxRoutes   = maxRoutes || MAX_ROUTES;
+  this.routes      = {};
+  this.services    = {};
+  this.missing     = {};
+  this.missingSize = 0;
+  this.size        = 0;
+  this.hits        = 0;
+  this.misses      = 0;
+  // Sentinel of the recency list, most recently used next to it
+  this.head        = {};
+  this.head.prev = this.head.next = this.head;
+};
+
+function unlink(entry) {
+  entry.prev.next = entry.next;
+  entry.next.prev = entry.prev;
+};
+
+RouteCache.prototype.link = function(entry) {
+  entry.next = this.head.next;
+  entry.prev = this.head;
+  this.head.next.prev = entry;
+  this.head.next = entry;
+};
+
+/*
+    Returns the route of a service: { service, device, gcm }. Returns null if
+    the service is known not to exist and undefined if it is not cached.
+ */
+RouteCache.prototype.get = function(name) {
+  var entry = this.routes[name];
+  if (entry) {
+    unlink(entry);
+    this.link(entry);
+    this.hits++;
+    return entry.route;
+  }
+  this.misses++;
+  var missing = this.missing[name];
+  if (missing && Date.now() - missing < MISSING_TTL)
+    return null;
+  this.forget(name);
+  return undefined;
+};
+
+RouteCache.prototype.forget = function(name) {
+  if (this.missing[name]) {
+    delete this.missing[name];
+    this.missingSize--;
+  }
+};
+
+RouteCache.prototype.set = function(name, route) {
+  var entry = this.routes[name];
+  this.forget(name);
+  if (entry) {
+    delete this.services[entry.route.service];
+    unlink(entry);
+  } else {
+    entry = this.routes[name] = { name: name };
+    this.size++;
+  }
+  entry.route = route;
+  this.services[route.service] = name;
+  this.link(entry);
+
+  if (this.size > this.maxRoutes)
+    this.remove(this.head.prev.name);
+};
+
+RouteCache.prototype.remove = function(name) {
+  var entry = this.routes[name];
+  if (!entry)
+    return;
+  unlink(entry);
+  delete this.routes[name];
+  delete this.services[entry.route.service];
+  this.size--;
+};
+
+/*
+    Removes the route of a service by its ID.
+ */
+RouteCache.prototype.removeService = function(id) {
+  var name = this.services[id];
+  if (name !== undefined)
+    this.remove(name);
+};
+
+/*
+    Removes the routes of all services of a device.
+ */
+RouteCache.prototype.removeDevice = function(device) {
+  for (var entry = this.head.next; entry !== this.head; ) {
+    var next = entry.next;
+    if (entry.route.device === device)
+      this.remove(entry.name);
+    entry = next;
+  }
+};
+
+/*
+    Remembers that no service has the name.
+ */
+RouteCache.prototype.setMissing = function(name) {
+  this.remove(name);
+  // Forget all missing names rather than track their age once there are
+  // too many, they are only an optimization
+  if (this.missingSize >= this.maxRoutes) {
+    this.missing = {};
+    this.missingSize = 0;
+  }
+  if (!this.missing[name])
+    this.missingSize++;
+  this.missing[name] = Date.now();
+};
+
+module.exports = RouteCache;